@@ -24,7 +24,7 @@ public class CircuitBenchmarks {
   double dirtiness;
   @Param({"64", "256", "512"})
   int keys;
-  @Param({"100", "1000"})
+  @Param({"100", "1000", "10000"})
   int count;
 
   SplitMap[] splitMaps;
@@ -61,4 +61,30 @@ public class CircuitBenchmarks {
     }, values);
   }
 
+  @Benchmark
+  public SplitMap orWide() {
+    return Circuits.or(context, values);
+  }
+
+  @Benchmark
+  public SplitMap andSplitMap() {
+    return Circuits.evaluateIfKeysIntersect(context, slice -> {
+      Container intersection = null;
+      for (Container mask : slice) {
+        intersection = null == intersection ? mask.clone() : intersection.iand(mask);
+      }
+      return intersection;
+    }, values);
+  }
+
+  @Benchmark
+  public SplitMap andWide() {
+    return Circuits.and(context, values);
+  }
+
+  @Benchmark
+  public SplitMap atLeastTwo() {
+    return Circuits.evaluate(context, Threshold.atLeast(2), values);
+  }
+
 }
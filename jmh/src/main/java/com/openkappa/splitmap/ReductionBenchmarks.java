@@ -30,6 +30,7 @@ public class ReductionBenchmarks {
 
   private PrefixIndex<ChunkedDoubleArray> qty;
   private PrefixIndex<ChunkedDoubleArray> price;
+  private PrefixIndex<ChunkedDoubleArray> counterparty;
   private SplitMap[] instrumentIndex;
   private SplitMap[] ccyIndex;
   private List<Trade> trades;
@@ -39,6 +40,10 @@ public class ReductionBenchmarks {
   private int ccyId;
   private double[] test;
   private QueryContext<Integer, PriceQty> context;
+  private MultiAggregate<String> aggregates;
+  private KeySample tenth;
+  private Expression notional;
+  private Bins qtyBins;
 
   @Setup(Level.Trial)
   public void setup() {
@@ -53,6 +58,14 @@ public class ReductionBenchmarks {
     context = new QueryContext<>(Map.ofEntries(entry(0, instrumentIndex[instId1]), entry(1, ccyIndex[ccyId])),
             new EnumMap<>(
                     Map.ofEntries(entry(PriceQty.PRICE, price), entry(PriceQty.QUANTITY, qty))));
+    tenth = KeySample.of(0.1, ThreadLocalRandom.current().nextLong());
+    aggregates = MultiAggregate.<String>builder()
+            .withSum("qty", qty)
+            .withAverage("avgQty", qty)
+            .withPMCC("pmcc", price, qty)
+            .build();
+    qtyBins = Bins.adaptive(qty, 32);
+    notional = Expression.compile("sum(price * quantity)", context, name -> PriceQty.valueOf(name.toUpperCase()));
   }
 
   @Benchmark
@@ -82,6 +95,16 @@ public class ReductionBenchmarks {
             .sum();
   }
 
+  @Benchmark
+  public double reduceQtyApproximately() {
+    SampledSplitMap sample = Circuits.evaluateSample(context, tenth, slice -> slice.get(0).or(slice.get(1)), 0, 1);
+    return sample.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Approximate.reducer(Sum.reducer(qty))))
+            .collect(Approximate.estimate(sample, 1.96))
+            .getValue();
+  }
+
   @Benchmark
   public double reduceQtyVectorised() {
     return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
@@ -101,6 +124,16 @@ public class ReductionBenchmarks {
   }
 
 
+  @Benchmark
+  public double qtyXPriceForInstrumentIndexExpression() {
+    return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
+            .stream()
+            .parallel()
+            .map(partition -> partition.reduce(notional.reducer()))
+            .collect(notional.collector());
+  }
+
+
   @Benchmark
   public double averageQtyInstrumentAndCcyIndex() {
     return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
@@ -111,6 +144,48 @@ public class ReductionBenchmarks {
   }
 
 
+  @Benchmark
+  public Frequencies qtyHistogram() {
+    return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
+            .stream()
+            .parallel()
+            .map(partition -> partition.reduce(Histogram.reducer(qty, qtyBins)))
+            .collect(Histogram.collector(qtyBins));
+  }
+
+
+  @Benchmark
+  public double[] qtyQuartiles() {
+    return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
+            .stream()
+            .parallel()
+            .map(partition -> partition.reduce(Quantiles.reducer(qty)))
+            .collect(Quantiles.collector())
+            .quantiles(0.25, 0.5, 0.75);
+  }
+
+
+  @Benchmark
+  public long distinctCounterparties() {
+    return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
+            .stream()
+            .parallel()
+            .map(partition -> partition.reduce(DistinctCount.reducer(counterparty)))
+            .collect(DistinctCount.collector());
+  }
+
+
+  @Benchmark
+  public long distinctCounterpartiesStream() {
+    return trades.parallelStream()
+            .filter(trade -> trade.instrumentName.equals(instrumentNames[instId1])
+                    || trade.ccyId.equals(currencies[ccyId]))
+            .mapToInt(Trade::getCounterpartyId)
+            .distinct()
+            .count();
+  }
+
+
   @Benchmark
   public double productMomentCorrelationCoefficient() {
     return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
@@ -121,6 +196,26 @@ public class ReductionBenchmarks {
   }
 
 
+  @Benchmark
+  public double[] qtyXPricePerInstrument() {
+    return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
+            .stream()
+            .parallel()
+            .map(partition -> partition.reduce(GroupBy.sumProduct(price, qty, instrumentIndex)))
+            .collect(GroupBy.collector(GroupBy.SUM_PRODUCT, instrumentCount));
+  }
+
+
+  @Benchmark
+  public Map<String, Double> sumAverageAndPMCC() {
+    return Circuits.evaluate(context, slice -> slice.get(0).or(slice.get(1)), 0, 1)
+            .stream()
+            .parallel()
+            .map(partition -> partition.reduce(aggregates.reducer()))
+            .collect(aggregates.collector());
+  }
+
+
   @Benchmark
   public double qtyXPriceForInstrumentStream() {
     return trades.parallelStream()
@@ -140,6 +235,45 @@ public class ReductionBenchmarks {
   }
 
 
+  // the page kernels are selected once per JVM, so scalar and vector kernels are compared in separate forks;
+  // the vector forks need a JDK 17+ build of splitmap
+  @Benchmark
+  @Fork(jvmArgsAppend = "-Dsplitmap.kernels=scalar")
+  public double qtyXPriceXORScalarKernels() {
+    return qtyXPriceForInstrumentIndexXOR();
+  }
+
+
+  @Benchmark
+  @Fork(jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+  public double qtyXPriceXORVectorKernels() {
+    return qtyXPriceForInstrumentIndexXOR();
+  }
+
+
+  @Benchmark
+  @Fork(jvmArgsAppend = "-Dsplitmap.kernels=scalar")
+  public double pmccXORScalarKernels() {
+    return pmccXOR();
+  }
+
+
+  @Benchmark
+  @Fork(jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+  public double pmccXORVectorKernels() {
+    return pmccXOR();
+  }
+
+
+  private double pmccXOR() {
+    return Circuits.evaluate(context, slice -> slice.get(0).xor(slice.get(1)), 0, 1)
+            .stream()
+            .parallel()
+            .map(partition -> partition.reduce(SimpleLinearRegression.reducer(price, qty)))
+            .collect(SimpleLinearRegression.pmcc());
+  }
+
+
   @Benchmark
   public double qtyXPriceForInstrumentStreamXOR() {
     return trades.parallelStream()
@@ -160,6 +294,7 @@ public class ReductionBenchmarks {
             .toArray(SplitMapPageWriter[]::new);
     DoubleArrayPageWriter qtyWriter = new DoubleArrayPageWriter(Involutions::reverse);
     DoubleArrayPageWriter priceWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter counterpartyWriter = new DoubleArrayPageWriter(Involutions::reverse);
 
     int x = 0;
     for (Trade trade : trades) {
@@ -169,11 +304,13 @@ public class ReductionBenchmarks {
       ccyWriters[ccyIndex].add(x);
       qtyWriter.add(x, trade.qty);
       priceWriter.add(x, trade.price);
+      counterpartyWriter.add(x, trade.counterpartyId);
       ++x;
     }
 
     qty = qtyWriter.toIndex();
     price = priceWriter.toIndex();
+    counterparty = counterpartyWriter.toIndex();
     instrumentIndex = Arrays.stream(instrumentWriters).map(SplitMapPageWriter::toSplitMap).toArray(SplitMap[]::new);
     ccyIndex = Arrays.stream(ccyWriters).map(SplitMapPageWriter::toSplitMap).toArray(SplitMap[]::new);
   }
@@ -195,7 +332,8 @@ public class ReductionBenchmarks {
                       instrumentNames[instrumentId],
                     instrumentId,
                     currencies[ThreadLocalRandom.current().nextInt(ccyCount)],
-                    UUID.randomUUID().toString());})
+                    UUID.randomUUID().toString(),
+                    ThreadLocalRandom.current().nextInt(Math.max(1, tradeCount / 10)));})
             .collect(Collectors.toList());
   }
 
@@ -207,19 +345,22 @@ public class ReductionBenchmarks {
     private final String ccyId;
     private final String tradeId;
     private final int instrumentId;
+    private final int counterpartyId;
 
     private Trade(double price,
                   double qty,
                   String instrumentName,
                   int instrumentId,
                   String ccyId,
-                  String tradeId) {
+                  String tradeId,
+                  int counterpartyId) {
       this.price = price;
       this.qty = qty;
       this.instrumentId = instrumentId;
       this.instrumentName = instrumentName;
       this.ccyId = ccyId;
       this.tradeId = tradeId;
+      this.counterpartyId = counterpartyId;
     }
 
     public double getPrice() {
@@ -241,5 +382,9 @@ public class ReductionBenchmarks {
     public int getInstrumentId() {
       return instrumentId;
     }
+
+    public int getCounterpartyId() {
+      return counterpartyId;
+    }
   }
 }
@@ -51,4 +51,20 @@ public class ChunkedArray<T> {
     chunks[chunkIndex] = input;
   }
 
+  /**
+   * Estimates the heap used by the chunk table and the chunks, excluding the values.
+   *
+   * @return the estimated size in bytes.
+   */
+  public long sizeInBytes() {
+    long size = MemoryFootprint.align(MemoryFootprint.HEADER + MemoryFootprint.REFERENCE)
+            + MemoryFootprint.arraySize(chunks.length, MemoryFootprint.REFERENCE);
+    for (T[] chunk : chunks) {
+      if (null != chunk) {
+        size += MemoryFootprint.arraySize(chunk.length, MemoryFootprint.REFERENCE);
+      }
+    }
+    return size;
+  }
+
 }
@@ -1,5 +1,7 @@
 package com.openkappa.splitmap;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
 import java.util.function.DoubleBinaryOperator;
 import java.util.stream.DoubleStream;
@@ -10,8 +12,28 @@ import static java.lang.Long.numberOfTrailingZeros;
 
 public class ChunkedDoubleArray {
 
+  // pages faulted in by a store are published to the threads reducing the array with release/acquire
+  private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(double[][].class);
+  private static final VarHandle REFERENCED;
+
+  static {
+    try {
+      REFERENCED = MethodHandles.lookup().findVarHandle(ChunkedDoubleArray.class, "referenced", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
   private double[][] pages = new double[1 << 6][];
+  private final double[] sums = new double[1 << 6];
+  private final double[] sumsOfSquares = new double[1 << 6];
+  private final double[] mins = new double[1 << 6];
+  private final double[] maxes = new double[1 << 6];
   private long mask;
+  private long nans;
+  private PageStore store;
+  private long[] offsets;
+  private long referenced;
 
   /**
    * Writes the page to the corresponding index. Copies the page.
@@ -23,6 +45,7 @@ public class ChunkedDoubleArray {
     assert index < 64 && index >= 0;
     mask |= (1L << index);
     pages[index] = Arrays.copyOf(page, 1 << 10);
+    computeStatistics(index);
   }
 
 
@@ -44,6 +67,110 @@ public class ChunkedDoubleArray {
     assert index < 64 && index >= 0;
     mask |= (1L << index);
     pages[index] = page;
+    computeStatistics(index);
+  }
+
+  /**
+   * Gets the sum of the page, computed when the page was written.
+   *
+   * @param index the index of the page.
+   * @return the sum of all 1024 values of the page.
+   */
+  public double getPageSum(int index) {
+    assert index < 64 && index >= 0;
+    return sums[index];
+  }
+
+  /**
+   * Gets the sum of the squares of the page, computed when the page was written.
+   *
+   * @param index the index of the page.
+   * @return the sum of the squares of all 1024 values of the page.
+   */
+  public double getPageSumOfSquares(int index) {
+    assert index < 64 && index >= 0;
+    return sumsOfSquares[index];
+  }
+
+  /**
+   * Gets the smallest value of the page other than NaN, computed when the page was written.
+   *
+   * @param index the index of the page.
+   * @return the smallest value, +Infinity if the page is missing or only holds NaN.
+   */
+  public double getPageMin(int index) {
+    assert index < 64 && index >= 0;
+    return (mask & (1L << index)) == 0 ? Double.POSITIVE_INFINITY : mins[index];
+  }
+
+  /**
+   * Gets the largest value of the page other than NaN, computed when the page was written.
+   *
+   * @param index the index of the page.
+   * @return the largest value, -Infinity if the page is missing or only holds NaN.
+   */
+  public double getPageMax(int index) {
+    assert index < 64 && index >= 0;
+    return (mask & (1L << index)) == 0 ? Double.NEGATIVE_INFINITY : maxes[index];
+  }
+
+  /**
+   * Whether the page holds NaN, which is left out of its smallest and largest values but not out of
+   * its sums.
+   *
+   * @param index the index of the page.
+   * @return true if the page holds NaN, false otherwise (if the page is missing).
+   */
+  public boolean containsNaN(int index) {
+    assert index < 64 && index >= 0;
+    return (nans & (1L << index)) != 0;
+  }
+
+  /**
+   * Gets the number of values in a page, which is the same for every page present.
+   *
+   * @param index the index of the page.
+   * @return the number of values in the page, zero if the page is missing.
+   */
+  public int getPageCount(int index) {
+    assert index < 64 && index >= 0;
+    return (mask & (1L << index)) == 0 ? 0 : 1 << 10;
+  }
+
+  private void computeStatistics(int index) {
+    double[] page = pages[index];
+    double s1 = 0D, s2 = 0D, s3 = 0D, s4 = 0D;
+    double q1 = 0D, q2 = 0D, q3 = 0D, q4 = 0D;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    boolean nan = false;
+    for (int i = 0; i < page.length; i += 4) {
+      s1 += page[i];
+      s2 += page[i + 1];
+      s3 += page[i + 2];
+      s4 += page[i + 3];
+      q1 = Math.fma(page[i], page[i], q1);
+      q2 = Math.fma(page[i + 1], page[i + 1], q2);
+      q3 = Math.fma(page[i + 2], page[i + 2], q3);
+      q4 = Math.fma(page[i + 3], page[i + 3], q4);
+      // unlike Math.min and Math.max, these only return NaN when both arguments are NaN
+      min = min(min, min(min(page[i], page[i + 1]), min(page[i + 2], page[i + 3])));
+      max = max(max, max(max(page[i], page[i + 1]), max(page[i + 2], page[i + 3])));
+      nan |= page[i] != page[i] | page[i + 1] != page[i + 1] | page[i + 2] != page[i + 2] | page[i + 3] != page[i + 3];
+    }
+    sums[index] = s1 + s2 + s3 + s4;
+    sumsOfSquares[index] = q1 + q2 + q3 + q4;
+    mins[index] = min;
+    maxes[index] = max;
+    nans = nan ? nans | (1L << index) : nans & ~(1L << index);
+  }
+
+  private static double min(double x, double y) {
+    return y < x || x != x ? y : x;
+  }
+
+  private static double max(double x, double y) {
+    return y > x || x != x ? y : x;
   }
 
   /**
@@ -56,10 +183,10 @@ public class ChunkedDoubleArray {
   public double get(int index) {
     assert index < 1 << 16;
     int page = index >>> 10;
-    if (null == pages[page]) {
+    if ((mask & (1L << page)) == 0) {
       return 0D;
     }
-    return pages[page][index & 0x3FF];
+    return page(page)[index & 0x3FF];
   }
 
   /**
@@ -74,7 +201,7 @@ public class ChunkedDoubleArray {
     if ((mask & (1L << index)) == 0) {
       return false;
     }
-    System.arraycopy(pages[index], 0, target, 0, Math.min(target.length, 1 << 10));
+    System.arraycopy(page(index), 0, target, 0, Math.min(target.length, 1 << 10));
     return true;
   }
 
@@ -87,7 +214,7 @@ public class ChunkedDoubleArray {
    */
   public double[] getPageNoCopy(int index) {
     assert index < 64 && index >= 0;
-    return pages[index];
+    return (mask & (1L << index)) == 0 ? null : page(index);
   }
 
   /**
@@ -102,7 +229,7 @@ public class ChunkedDoubleArray {
     long mask = this.mask;
     while (mask != 0) {
       int index = numberOfTrailingZeros(mask);
-      double[] page = pages[index];
+      double[] page = page(index);
       for (int i = 0; i < page.length; ++i) {
         result = op.applyAsDouble(result, page[i]);
       }
@@ -114,8 +241,90 @@ public class ChunkedDoubleArray {
   public DoubleStream stream() {
     return LongStream.iterate(mask, m -> m != 0, m -> m ^ lowestOneBit(m))
             .mapToInt(Long::numberOfTrailingZeros)
-            .mapToObj(i -> DoubleStream.of(pages[i]))
+            .mapToObj(i -> DoubleStream.of(page(i)))
             .flatMapToDouble(i -> i);
   }
 
+  /**
+   * Gets the pages held on the heap, which is a subset of the page mask when pages have been
+   * spilled to a {@link PageStore}.
+   *
+   * @return the mask of the resident pages.
+   */
+  public long getResidentPageMask() {
+    long resident = 0L;
+    long temp = mask;
+    while (temp != 0) {
+      int index = numberOfTrailingZeros(temp);
+      if (isResident(index)) {
+        resident |= (1L << index);
+      }
+      temp &= (temp - 1);
+    }
+    return resident;
+  }
+
+  private double[] page(int index) {
+    if (null == store) {
+      return pages[index];
+    }
+    REFERENCED.getAndBitwiseOr(this, 1L << index);
+    double[] page = (double[]) PAGES.getAcquire(pages, index);
+    return null == page ? store.load(this, index) : page;
+  }
+
+  void attach(PageStore store) {
+    this.store = store;
+    this.offsets = new long[1 << 6];
+    Arrays.fill(offsets, -1L);
+  }
+
+  boolean isResident(int index) {
+    return null != PAGES.getAcquire(pages, index);
+  }
+
+  boolean clearReference(int index) {
+    return ((long) REFERENCED.getAndBitwiseAnd(this, ~(1L << index)) & (1L << index)) != 0;
+  }
+
+  long getOffset(int index) {
+    return offsets[index];
+  }
+
+  /**
+   * Drops the page from the heap, writing it to the store the first time it is evicted. Pages are
+   * never modified once written, so a page reloaded from the store can be dropped again for free.
+   */
+  void evict(int index) {
+    if (offsets[index] < 0) {
+      offsets[index] = store.write(pages[index]);
+    }
+    PAGES.setRelease(pages, index, null);
+  }
+
+  void restore(int index, double[] page) {
+    PAGES.setRelease(pages, index, page);
+  }
+
+  /**
+   * Estimates the heap used by the resident pages and the statistics of all pages.
+   *
+   * @return the estimated size in bytes.
+   */
+  public long sizeInBytes() {
+    long size = MemoryFootprint.align(MemoryFootprint.HEADER + 7 * MemoryFootprint.REFERENCE + 3 * Long.BYTES)
+            + MemoryFootprint.arraySize(pages.length, MemoryFootprint.REFERENCE)
+            + 4 * MemoryFootprint.arraySize(1 << 6, Double.BYTES);
+    if (null != offsets) {
+      size += MemoryFootprint.arraySize(offsets.length, Long.BYTES);
+    }
+    for (int i = 0; i < pages.length; ++i) {
+      double[] page = (double[]) PAGES.getAcquire(pages, i);
+      if (null != page) {
+        size += MemoryFootprint.arraySize(page.length, Double.BYTES);
+      }
+    }
+    return size;
+  }
+
 }
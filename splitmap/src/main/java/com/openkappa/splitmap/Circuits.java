@@ -18,10 +18,7 @@ public class Circuits {
   SplitMap evaluateIfKeysIntersect(QueryContext<Filter, ?> context,
                                    Function<Slice<Filter, Container>, Container> circuit,
                                    Filter... filters) {
-    return new SplitMap(groupByIntersectingKeys(context, EMPTY, filters)
-            .streamUniformPartitions()
-            .parallel()
-            .collect(new IndexAggregator<>(circuit)));
+    return evaluate(context, (x, y) -> x & y, -1L, null, null, circuit, filters);
   }
 
 
@@ -29,49 +26,256 @@ public class Circuits {
   SplitMap evaluate(QueryContext<Filter, ?> context,
                     Function<Slice<Filter, Container>, Container> circuit,
                     Filter... filters) {
-    return new SplitMap(groupByKey(context, EMPTY, filters)
-            .streamUniformPartitions()
+    return evaluate(context, (x, y) -> x | y, 0L, null, null, circuit, filters);
+  }
+
+  /**
+   * Evaluates the circuit only on the sampled keys, for approximate reductions.
+   *
+   * @param context the query context.
+   * @param sample  the keys to evaluate.
+   * @param circuit the circuit.
+   * @param filters the filters the circuit depends on.
+   * @return the result on the sampled keys, with the population and sample sizes.
+   */
+  public static <Filter>
+  SampledSplitMap evaluateSample(QueryContext<Filter, ?> context,
+                                 KeySample sample,
+                                 Function<Slice<Filter, Container>, Container> circuit,
+                                 Filter... filters) {
+    int populationSize = 0;
+    int sampleSize = 0;
+    for (int wordIndex = 0; wordIndex < 1024; ++wordIndex) {
+      long word = 0L;
+      for (Filter filter : filters) {
+        word |= context.getSplitMap(filter).getIndex().readKeyWord(wordIndex);
+      }
+      populationSize += Long.bitCount(word);
+      sampleSize += Long.bitCount(sample.sample(wordIndex, word));
+    }
+    SplitMap result = evaluate(context, (x, y) -> x | y, 0L, null, sample, circuit, filters);
+    return new SampledSplitMap(result, populationSize, sampleSize);
+  }
+
+  /**
+   * Evaluates the circuit only on the keys present in the domain filter, so a circuit of the form
+   * "domain and not (...)" never visits the keys where only the other filters are present.
+   * The domain filter is included in the slices passed to the circuit.
+   *
+   * @param context the query context.
+   * @param domain  the filter bounding the keys evaluated.
+   * @param circuit the circuit.
+   * @param filters the other filters the circuit depends on.
+   * @return the result of the circuit.
+   */
+  public static <Filter>
+  SplitMap evaluateWithin(QueryContext<Filter, ?> context,
+                          Filter domain,
+                          Function<Slice<Filter, Container>, Container> circuit,
+                          Filter... filters) {
+    Filter[] all = Arrays.copyOf(filters, filters.length + 1);
+    all[filters.length] = domain;
+    return evaluate(context, (x, y) -> x | y, 0L, context.getSplitMap(domain).getIndex(), null, circuit, all);
+  }
+
+  /**
+   * Computes the rows in the first filter but not in the second, visiting only the first
+   * filter's keys.
+   *
+   * @param context  the query context.
+   * @param filter   the filter to include.
+   * @param excluded the filter to exclude.
+   * @return the difference.
+   */
+  public static <Filter>
+  SplitMap andNot(QueryContext<Filter, ?> context, Filter filter, Filter excluded) {
+    SplitMap included = context.getSplitMap(filter);
+    return new SplitMap(difference(included.getIndex(), context.getSplitMap(excluded).getIndex()),
+            included.getInvolution());
+  }
+
+  /**
+   * Computes the rows ingested into the context which are not in the filter.
+   *
+   * @param context the query context, which must have a universe.
+   * @param filter  the filter to negate.
+   * @return the complement of the filter.
+   */
+  public static <Filter>
+  SplitMap not(QueryContext<Filter, ?> context, Filter filter) {
+    SplitMap universe = context.getUniverse();
+    if (null == universe) {
+      throw new IllegalStateException("NOT requires a query context with a universe");
+    }
+    return new SplitMap(difference(universe.getIndex(), context.getSplitMap(filter).getIndex()),
+            universe.getInvolution());
+  }
+
+  /**
+   * Computes the union of the filters without building a slice per key. The containers at each
+   * key are combined in one step, choosing between array merges, run merges and lazy bitmap
+   * accumulation according to the mix of containers present.
+   *
+   * @param context the query context.
+   * @param filters the filters.
+   * @return the union.
+   */
+  public static <Filter>
+  SplitMap or(QueryContext<Filter, ?> context, Filter... filters) {
+    return wide(context, true, filters);
+  }
+
+  /**
+   * Computes the intersection of the filters without building a slice per key. Only the keys
+   * every filter has are visited, and the containers at each key are intersected from the
+   * smallest up, stopping as soon as the intersection is empty.
+   *
+   * @param context the query context.
+   * @param filters the filters.
+   * @return the intersection.
+   */
+  public static <Filter>
+  SplitMap and(QueryContext<Filter, ?> context, Filter... filters) {
+    return wide(context, false, filters);
+  }
+
+  private static <Filter>
+  SplitMap wide(QueryContext<Filter, ?> context, boolean union, Filter... filters) {
+    if (filters.length == 0) {
+      return new SplitMap(new PrefixIndex<>());
+    }
+    PrefixIndex<Container>[] indices = Arrays.stream(filters)
+            .map(filter -> context.getSplitMap(filter).getIndex()).toArray(PrefixIndex[]::new);
+    PrefixIndex<Container> result = new PrefixIndex<>();
+    result.streamUniformPartitions()
             .parallel()
-            .collect(new IndexAggregator<>(circuit)));
+            .forEach(partition -> {
+              long[] keyWords = new long[indices.length];
+              Object[][] columns = new Object[indices.length][];
+              Container[] containers = new Container[indices.length];
+              for (int wordIndex = partition.getMinChunkIndex(); wordIndex < partition.getMaxChunkIndex(); ++wordIndex) {
+                long word = union ? 0L : -1L;
+                for (int k = 0; k < indices.length; ++k) {
+                  keyWords[k] = indices[k].readKeyWord(wordIndex);
+                  word = union ? word | keyWords[k] : word & keyWords[k];
+                }
+                if (word == 0) {
+                  continue;
+                }
+                for (int k = 0; k < indices.length; ++k) {
+                  columns[k] = (word & keyWords[k]) == 0 ? null : indices[k].getChunkNoCopy(wordIndex);
+                }
+                Container[] chunk = new Container[Long.SIZE];
+                long mask = word;
+                while (mask != 0) {
+                  int j = numberOfTrailingZeros(mask);
+                  int count = 0;
+                  for (int k = 0; k < indices.length; ++k) {
+                    if ((keyWords[k] & (1L << j)) != 0) {
+                      containers[count++] = (Container) columns[k][j];
+                    }
+                  }
+                  Container combined = union
+                          ? WideContainers.or(containers, count)
+                          : WideContainers.and(containers, count);
+                  if (null == combined || combined.isEmpty()) {
+                    word ^= (1L << j);
+                  } else {
+                    chunk[j] = combined;
+                  }
+                  mask &= (mask - 1);
+                }
+                partition.transferChunk(wordIndex, word, chunk);
+              }
+            });
+    return new SplitMap(result, context.getSplitMap(filters[0]).getInvolution());
   }
 
-  static <T, Filter>
-  PrefixIndex<Slice<Filter, T>> groupByKey(QueryContext<Filter, ?> context,
-                                           T defaultValue, Filter... filters) {
-    return groupByKey(context, (x, y) -> x | y, 0L, defaultValue, filters);
+  private static PrefixIndex<Container> difference(PrefixIndex<Container> included,
+                                                   PrefixIndex<Container> excluded) {
+    PrefixIndex<Container> result = new PrefixIndex<>();
+    result.streamUniformPartitions()
+            .parallel()
+            .forEach(partition -> {
+              for (int wordIndex = partition.getMinChunkIndex(); wordIndex < partition.getMaxChunkIndex(); ++wordIndex) {
+                long word = included.readKeyWord(wordIndex);
+                if (word == 0) {
+                  continue;
+                }
+                Container[] chunk = new Container[Long.SIZE];
+                Object[] in = included.getChunkNoCopy(wordIndex);
+                Object[] out = (word & excluded.readKeyWord(wordIndex)) == 0
+                        ? null : excluded.getChunkNoCopy(wordIndex);
+                long mask = word;
+                while (mask != 0) {
+                  int j = numberOfTrailingZeros(mask);
+                  // containers are never modified once written, so keys without exclusions are shared
+                  Container difference = null == out || null == out[j]
+                          ? (Container) in[j]
+                          : ((Container) in[j]).andNot((Container) out[j]);
+                  if (difference.isEmpty()) {
+                    word ^= (1L << j);
+                  } else {
+                    chunk[j] = difference;
+                  }
+                  mask &= (mask - 1);
+                }
+                if (word != 0) {
+                  partition.transferChunk(wordIndex, word, chunk);
+                }
+              }
+            });
+    return result;
   }
 
-  static <T, Filter>
-  PrefixIndex<Slice<Filter, T>> groupByIntersectingKeys(QueryContext<Filter, ?> context,
-                                                        T defaultValue,
-                                                        Filter... filters) {
-    return groupByKey(context, (x, y) -> x & y, -1L, defaultValue, filters);
+  private static <Filter>
+  SplitMap evaluate(QueryContext<Filter, ?> context,
+                    LongBinaryOperator op,
+                    long identity,
+                    PrefixIndex<Container> domain,
+                    KeySample sample,
+                    Function<Slice<Filter, Container>, Container> circuit,
+                    Filter... filters) {
+    PrefixIndex<Container>[] indices = Arrays.stream(filters)
+            .map(filter -> context.getSplitMap(filter).getIndex()).toArray(PrefixIndex[]::new);
+    // each worker groups the keys in its own range of words and then evaluates them, so nothing
+    // is done sequentially before the parallel stage
+    return new SplitMap(new PrefixIndex<Slice<Filter, Container>>()
+            .streamUniformPartitions()
+            .parallel()
+            .map(partition -> groupByKey(partition, indices, op, identity, domain, sample, EMPTY, filters))
+            .collect(new IndexAggregator<>(circuit)));
   }
 
   private static <T, Filter>
-  PrefixIndex<Slice<Filter, T>> groupByKey(QueryContext<Filter, ?> context,
+  PrefixIndex<Slice<Filter, T>> groupByKey(PrefixIndex<Slice<Filter, T>> partition,
+                                           PrefixIndex<T>[] indices,
                                            LongBinaryOperator op,
                                            long identity,
+                                           PrefixIndex<Container> domain,
+                                           KeySample sample,
                                            T defaultValue,
                                            Filter... filters) {
-    PrefixIndex<Slice<Filter, T>> grouped = new PrefixIndex<>();
-    PrefixIndex<T>[] indices = Arrays.stream(filters)
-            .map(filter -> context.getSplitMap(filter).getIndex()).toArray(PrefixIndex[]::new);
-
-    for (int wordIndex = 0; wordIndex < 1024; ++wordIndex) {
+    for (int wordIndex = partition.getMinChunkIndex(); wordIndex < partition.getMaxChunkIndex(); ++wordIndex) {
       long word = identity;
       for (PrefixIndex<T> index : indices) {
         word = index.computeKeyWord(wordIndex, word, op);
       }
+      if (null != domain) {
+        word &= domain.readKeyWord(wordIndex);
+      }
+      if (null != sample) {
+        word = sample.sample(wordIndex, word);
+      }
       if (word != 0) {
         Slice<Filter, T>[] chunk = new Slice[Long.SIZE];
-        int k = 0;
-        for (PrefixIndex<T> index : indices) {
-          T[] column = index.getChunkNoCopy(wordIndex);
+        for (int k = 0; k < indices.length; ++k) {
+          T[] column = indices[k].getChunkNoCopy(wordIndex);
           if (null == column) {
             continue;
           }
-          long mask = word;
+          // only the keys the filter has, so absent filters take the default value
+          long mask = word & indices[k].readKeyWord(wordIndex);
           while (mask != 0) {
             int j = numberOfTrailingZeros(mask);
             if (null == chunk[j]) {
@@ -80,11 +284,10 @@ public class Circuits {
             chunk[j].set(filters[k], column[j]);
             mask &= (mask - 1);
           }
-          ++k;
         }
-        grouped.transferChunk(wordIndex, word, chunk);
+        partition.transferChunk(wordIndex, word, chunk);
       }
     }
-    return grouped;
+    return partition;
   }
 }
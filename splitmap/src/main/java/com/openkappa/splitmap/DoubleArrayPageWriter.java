@@ -11,13 +11,31 @@ public class DoubleArrayPageWriter {
   private final PrefixIndex<ChunkedDoubleArray> index;
   private final double[][] pages = new double[1 << 6][1 << 10];
   private final KeyInvolution involution;
+  private final PageStore store;
 
   private long mask = 0;
   private int currentKey = -1;
+  private boolean dirty;
+  private int flushedKey = -1;
+  private long flushedBytes;
+  private long flushedPageBytes;
+  private long arrayBytes;
+  private long pageBytes;
 
   public DoubleArrayPageWriter(KeyInvolution involution) {
+    this(involution, null);
+  }
+
+  /**
+   * Creates a writer whose pages may be spilled by the store once written.
+   *
+   * @param involution the key involution.
+   * @param store      the store managing the written pages, or null to keep them on the heap.
+   */
+  public DoubleArrayPageWriter(KeyInvolution involution, PageStore store) {
     this.involution = involution;
     this.index = new PrefixIndex<>();
+    this.store = store;
   }
 
 
@@ -29,25 +47,78 @@ public class DoubleArrayPageWriter {
         throw new IllegalStateException("Must write in ascending order");
       }
       flush();
+      clear();
       currentKey = key;
     }
     pages[position >>> 10][position & 0x3FF] = value;
     mask |= (1L << (position >>> 10));
+    dirty = true;
   }
 
+  /**
+   * Writes the values added to the current key so far. The pages are kept until the key changes,
+   * so flushing part way through a key and adding more values to it replaces the key's storage
+   * with one holding all of its values.
+   */
   public void flush() {
-    if (mask != 0) {
+    if (dirty) {
       ChunkedDoubleArray storage = new ChunkedDoubleArray();
-      while (mask != 0) {
-        int page = numberOfTrailingZeros(mask);
+      long temp = mask;
+      while (temp != 0) {
+        int page = numberOfTrailingZeros(temp);
         storage.write(page, pages[page]);
-        Arrays.fill(pages[page], 0D);
-        mask ^= lowestOneBit(mask);
+        temp ^= lowestOneBit(temp);
+      }
+      if (flushedKey == currentKey) {
+        arrayBytes -= flushedBytes;
+        pageBytes -= flushedPageBytes;
       }
-      index.insert(involution.invert((short)(currentKey >>> 16)), storage);
+      // counted before the store can spill any of the pages
+      flushedKey = currentKey;
+      flushedPageBytes = Long.bitCount(mask) * MemoryFootprint.arraySize(1 << 10, Double.BYTES);
+      flushedBytes = storage.sizeInBytes() - flushedPageBytes;
+      arrayBytes += flushedBytes;
+      pageBytes += flushedPageBytes;
+      short key = involution.invert((short)(currentKey >>> 16));
+      if (null != store) {
+        ChunkedDoubleArray previous = index.get(key);
+        if (null != previous) {
+          store.release(previous);
+        }
+        store.manage(storage);
+      }
+      index.insert(key, storage);
+      dirty = false;
     }
   }
 
+  private void clear() {
+    while (mask != 0) {
+      int page = numberOfTrailingZeros(mask);
+      Arrays.fill(pages[page], 0D);
+      mask ^= lowestOneBit(mask);
+    }
+  }
+
+
+  /**
+   * Estimates the heap used by the values flushed so far other than their pages, without
+   * visiting the arrays written.
+   *
+   * @return the estimated size in bytes.
+   */
+  long sizeInBytesWithoutPages() {
+    return index.indexSizeInBytes() + arrayBytes;
+  }
+
+  /**
+   * Gets the size of the pages flushed so far, whether resident or spilled by the store.
+   *
+   * @return the size in bytes.
+   */
+  long getPageBytes() {
+    return pageBytes;
+  }
 
   public PrefixIndex<ChunkedDoubleArray> toIndex() {
     flush();
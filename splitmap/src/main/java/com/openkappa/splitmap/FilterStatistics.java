@@ -0,0 +1,137 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.BitmapContainer;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.RunContainer;
+
+import java.util.Arrays;
+
+import static java.lang.Integer.numberOfLeadingZeros;
+
+/**
+ * A snapshot of the shape of a SplitMap, maintained as containers are inserted, so that the
+ * selectivity of a filter can be estimated without touching its containers.
+ */
+public class FilterStatistics {
+
+  private final long cardinality;
+  private final int keyCount;
+  private final int arrayContainerCount;
+  private final int bitmapContainerCount;
+  private final int runContainerCount;
+  private final long[] keyCardinalityHistogram;
+
+  private FilterStatistics(long cardinality,
+                           int keyCount,
+                           int arrayContainerCount,
+                           int bitmapContainerCount,
+                           int runContainerCount,
+                           long[] keyCardinalityHistogram) {
+    this.cardinality = cardinality;
+    this.keyCount = keyCount;
+    this.arrayContainerCount = arrayContainerCount;
+    this.bitmapContainerCount = bitmapContainerCount;
+    this.runContainerCount = runContainerCount;
+    this.keyCardinalityHistogram = keyCardinalityHistogram;
+  }
+
+  public long getCardinality() {
+    return cardinality;
+  }
+
+  /**
+   * @return the number of keys with at least one row.
+   */
+  public int getKeyCount() {
+    return keyCount;
+  }
+
+  public int getArrayContainerCount() {
+    return arrayContainerCount;
+  }
+
+  public int getBitmapContainerCount() {
+    return bitmapContainerCount;
+  }
+
+  public int getRunContainerCount() {
+    return runContainerCount;
+  }
+
+  /**
+   * Element i counts the keys with between 2^i and 2^(i + 1) - 1 rows, for i in [0, 16].
+   *
+   * @return the number of keys by the order of magnitude of their cardinality.
+   */
+  public long[] getKeyCardinalityHistogram() {
+    return keyCardinalityHistogram.clone();
+  }
+
+  /**
+   * @return the fraction of the rows of the keys present which are selected.
+   */
+  public double getDensity() {
+    return keyCount == 0 ? 0D : (double) cardinality / ((long) keyCount << 16);
+  }
+
+  /**
+   * @param rowCount the number of rows in the universe, e.g. the number of rows ingested.
+   * @return the fraction of the rows which are selected.
+   */
+  public double getSelectivity(long rowCount) {
+    return rowCount == 0 ? 0D : (double) cardinality / rowCount;
+  }
+
+  @Override
+  public String toString() {
+    return "FilterStatistics{cardinality=" + cardinality
+            + ", keys=" + keyCount
+            + ", array=" + arrayContainerCount
+            + ", bitmap=" + bitmapContainerCount
+            + ", run=" + runContainerCount
+            + ", histogram=" + Arrays.toString(keyCardinalityHistogram) + "}";
+  }
+
+  static class Accumulator {
+    private long cardinality;
+    private int keyCount;
+    private int arrayContainerCount;
+    private int bitmapContainerCount;
+    private int runContainerCount;
+    private final long[] keyCardinalityHistogram = new long[17];
+
+    void add(Container container) {
+      update(container, 1);
+    }
+
+    void remove(Container container) {
+      update(container, -1);
+    }
+
+    FilterStatistics snapshot() {
+      return new FilterStatistics(cardinality, keyCount, arrayContainerCount, bitmapContainerCount,
+              runContainerCount, keyCardinalityHistogram.clone());
+    }
+
+    private void update(Container container, int sign) {
+      if (null == container) {
+        return;
+      }
+      int containerCardinality = container.getCardinality();
+      if (containerCardinality == 0) {
+        return;
+      }
+      cardinality += sign * containerCardinality;
+      keyCount += sign;
+      keyCardinalityHistogram[31 - numberOfLeadingZeros(containerCardinality)] += sign;
+      if (container instanceof RunContainer) {
+        runContainerCount += sign;
+      } else if (container instanceof BitmapContainer) {
+        bitmapContainerCount += sign;
+      } else if (container instanceof ArrayContainer) {
+        arrayContainerCount += sign;
+      }
+    }
+  }
+}
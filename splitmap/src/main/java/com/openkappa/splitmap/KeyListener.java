@@ -0,0 +1,14 @@
+package com.openkappa.splitmap;
+
+/**
+ * Notified by a {@link Mapper} when the rows of a key have been flushed.
+ */
+interface KeyListener {
+
+  /**
+   * Called on the ingesting thread after the key has been flushed.
+   *
+   * @param key the involuted key.
+   */
+  void refresh(short key);
+}
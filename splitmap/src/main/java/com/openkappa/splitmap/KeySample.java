@@ -0,0 +1,51 @@
+package com.openkappa.splitmap;
+
+import java.util.SplittableRandom;
+
+/**
+ * A random subset of the 65536 keys. Since the key involution spreads rows uniformly
+ * over the keys, each key is a cluster of rows and a subset of keys is a cluster sample.
+ */
+public class KeySample {
+
+  private final long[] mask;
+  private final double fraction;
+
+  private KeySample(long[] mask, double fraction) {
+    this.mask = mask;
+    this.fraction = fraction;
+  }
+
+  /**
+   * Selects each key independently with the given probability.
+   *
+   * @param fraction the probability of selecting each key, in (0, 1].
+   * @param seed     the seed, the same seed always selects the same keys.
+   * @return the sample.
+   */
+  public static KeySample of(double fraction, long seed) {
+    if (!(fraction > 0D && fraction <= 1D)) {
+      throw new IllegalArgumentException("fraction must be in (0, 1], got " + fraction);
+    }
+    SplittableRandom random = new SplittableRandom(seed);
+    long[] mask = new long[1 << 10];
+    for (int i = 0; i < mask.length; ++i) {
+      long word = 0L;
+      for (int j = 0; j < Long.SIZE; ++j) {
+        if (random.nextDouble() < fraction) {
+          word |= (1L << j);
+        }
+      }
+      mask[i] = word;
+    }
+    return new KeySample(mask, fraction);
+  }
+
+  public double getFraction() {
+    return fraction;
+  }
+
+  long sample(int wordIndex, long word) {
+    return word & mask[wordIndex];
+  }
+}
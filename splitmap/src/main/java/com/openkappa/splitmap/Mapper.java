@@ -1,8 +1,16 @@
 package com.openkappa.splitmap;
 
+import org.roaringbitmap.Container;
+import org.roaringbitmap.RunContainer;
+
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.function.IntUnaryOperator;
+import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collector;
 
 public class Mapper<Value, FilterModel, MetricModel extends Enum<MetricModel> & Metric<Value>> {
 
@@ -11,12 +19,29 @@ public class Mapper<Value, FilterModel, MetricModel extends Enum<MetricModel> &
   private final Map<FilterModel, SplitMapPageWriter> filterWriters;
   private final EnumMap<MetricModel, DoubleArrayPageWriter> metrics;
   private final Class<MetricModel> metricModel;
+  private final KeyInvolution involution;
+  private final List<KeyListener> listeners = new CopyOnWriteArrayList<>();
+  private final long memoryBudget;
+  private final PageStore store;
+  private QueryContext<FilterModel, MetricModel> live;
+  private int liveRows;
   private int index = 0;
 
   Mapper(Map<FilterModel, Predicate<Value>> filters, Class<MetricModel> metricModel, KeyInvolution involution) {
+    this(filters, metricModel, involution, Long.MAX_VALUE, null);
+  }
+
+  Mapper(Map<FilterModel, Predicate<Value>> filters,
+         Class<MetricModel> metricModel,
+         KeyInvolution involution,
+         long memoryBudget,
+         PageStore store) {
+    this.memoryBudget = memoryBudget;
+    this.store = store;
+    this.involution = involution;
     this.filters = filters;
     this.filterWriters = buildFilters(filters.keySet(), involution);
-    this.metrics = buildMetrics(metricModel, involution);
+    this.metrics = buildMetrics(metricModel, involution, store);
     this.metricModel = metricModel;
   }
 
@@ -40,6 +65,20 @@ public class Mapper<Value, FilterModel, MetricModel extends Enum<MetricModel> &
     return metrics;
   }
 
+  private static SplitMap snapshotUniverse(int rowCount, KeyInvolution involution) {
+    return extendUniverse(new SplitMap(involution), 0, rowCount, involution);
+  }
+
+  private static SplitMap extendUniverse(SplitMap universe, int from, int rowCount, KeyInvolution involution) {
+    // every row up to the count has been ingested, so each key holds a single run, and the key
+    // which was part way through is replaced
+    for (int key = from >>> 16; (long) key << 16 < rowCount; ++key) {
+      int end = (int) Math.min(1 << 16, rowCount - ((long) key << 16));
+      universe.insert(involution.invert((short) key), new RunContainer().iadd(0, end));
+    }
+    return universe;
+  }
+
   private static <FilterModel>
   Map<FilterModel, SplitMapPageWriter> buildFilters(Set<FilterModel> filters, KeyInvolution involution) {
     Map<FilterModel, SplitMapPageWriter> filterWriters = new HashMap<>();
@@ -50,15 +89,36 @@ public class Mapper<Value, FilterModel, MetricModel extends Enum<MetricModel> &
   }
 
   private static <Value, MetricModel extends Enum<MetricModel> & Metric<Value>>
-  EnumMap<MetricModel, DoubleArrayPageWriter> buildMetrics(Class<MetricModel> metricModel, KeyInvolution involution) {
+  EnumMap<MetricModel, DoubleArrayPageWriter> buildMetrics(Class<MetricModel> metricModel,
+                                                           KeyInvolution involution,
+                                                           PageStore store) {
     EnumMap<MetricModel, DoubleArrayPageWriter> metrics = new EnumMap<>(metricModel);
     for (MetricModel metric : EnumSet.allOf(metricModel)) {
-      metrics.put(metric, new DoubleArrayPageWriter(involution));
+      metrics.put(metric, new DoubleArrayPageWriter(involution, store));
     }
     return metrics;
   }
 
+  /**
+   * Consumes the next row.
+   *
+   * @param value the row.
+   * @throws IllegalStateException if the row starts a new key, and the rows consumed so far and
+   *                               another key of the same average size would exceed the memory
+   *                               budget. With a page store, only what it cannot spill counts.
+   *                               The universe built by each snapshot is not counted.
+   *                               The row is rejected, as is every later row, but snapshots of the
+   *                               rows consumed before it can still be taken and queried.
+   */
   public void consume(Value value) {
+    if (index != 0 && (index & 0xFFFF) == 0) {
+      if (!listeners.isEmpty()) {
+        refreshListeners((index - 1) >>> 16);
+      }
+      if (memoryBudget != Long.MAX_VALUE) {
+        checkBudget();
+      }
+    }
     filters.entrySet()
             .stream()
             .filter(f -> f.getValue().test(value))
@@ -68,14 +128,148 @@ public class Mapper<Value, FilterModel, MetricModel extends Enum<MetricModel> &
     ++index;
   }
 
+  /**
+   * Takes a snapshot of the rows consumed so far.
+   *
+   * @return the snapshot.
+   */
   public QueryContext<FilterModel, MetricModel> snapshot() {
-    return new QueryContext<>(snapshotFilters(filterWriters), snapshotMetrics(metricModel, metrics));
+    if (!listeners.isEmpty() && index != 0) {
+      refreshListeners((index - 1) >>> 16);
+    }
+    return new QueryContext<>(snapshotFilters(filterWriters),
+            snapshotMetrics(metricModel, metrics), snapshotUniverse(index, involution));
+  }
+
+  private long sizeInBytes(boolean pages) {
+    // the writers keep running totals of what they flush, and snapshots build their own universe
+    long size = 0;
+    for (SplitMapPageWriter writer : filterWriters.values()) {
+      size += writer.sizeInBytes();
+    }
+    for (DoubleArrayPageWriter writer : metrics.values()) {
+      size += writer.sizeInBytesWithoutPages() + (pages ? writer.getPageBytes() : 0);
+    }
+    return size;
+  }
+
+  /**
+   * Registers a query whose result is maintained as rows are consumed. Whenever the rows of a key
+   * are complete, or a snapshot is taken, only that key is evaluated again.
+   *
+   * @param circuit   the circuit selecting the rows.
+   * @param reducer   creates the reduction over the metrics of the context, whose universe holds
+   *                  the rows consumed so far.
+   * @param collector combines the reduced values of the keys.
+   * @param filters   the filters the circuit depends on.
+   * @return the standing query.
+   */
+  @SafeVarargs
+  public final <Model, Output, Result, Aggregate>
+  StandingQuery<FilterModel, Model, Output, Result, Aggregate> register(
+          Function<Slice<FilterModel, Container>, Container> circuit,
+          Function<QueryContext<FilterModel, MetricModel>, ReductionProcedure<Model, Output, Result, Container>> reducer,
+          Collector<ReductionContext<Model, Output, Result>, ?, Aggregate> collector,
+          FilterModel... filters) {
+    StandingQuery<FilterModel, Model, Output, Result, Aggregate> query
+            = new StandingQuery<>(live(), circuit, reducer, collector, filters);
+    query.refreshAll();
+    listeners.add(query);
+    return query;
+  }
+
+  /**
+   * Subscribes to the rows newly selected by the circuit. Whenever keys are flushed, the rows
+   * selected at those keys which had not been selected before are collected, and delivered in
+   * batches on the executor: flushes made while a delivery is pending join its batch. Rows
+   * selected when subscribing are not delivered.
+   *
+   * @param circuit   the circuit selecting the rows.
+   * @param aggregate a standing query registered with this mapper whose result is delivered
+   *                  with each batch, or null.
+   * @param executor  delivers the batches.
+   * @param listener  receives the batches.
+   * @param filters   the filters the circuit depends on.
+   * @return the subscription, which must be closed to stop deliveries.
+   */
+  @SafeVarargs
+  public final <Aggregate>
+  Subscription<FilterModel, Aggregate> subscribe(Function<Slice<FilterModel, Container>, Container> circuit,
+                                    StandingQuery<FilterModel, ?, ?, ?, Aggregate> aggregate,
+                                    Executor executor,
+                                    Consumer<Subscription.Update<Aggregate>> listener,
+                                    FilterModel... filters) {
+    if (null != aggregate && !listeners.contains(aggregate)) {
+      throw new IllegalArgumentException("The aggregate must be registered with this mapper");
+    }
+    Subscription<FilterModel, Aggregate> subscription = new Subscription<>(live(), circuit, aggregate, involution,
+            executor, listener, listeners::remove, filters);
+    subscription.refreshAll();
+    // added after the aggregate, so the aggregate is up to date when a batch is delivered
+    listeners.add(subscription);
+    return subscription;
+  }
+
+  private QueryContext<FilterModel, MetricModel> live() {
+    flush();
+    if (null == live) {
+      // the writers keep their SplitMaps and indices, so a context over them sees every flush,
+      // and the universe is extended by each flush
+      live = new QueryContext<>(snapshotFilters(filterWriters), snapshotMetrics(metricModel, metrics),
+              snapshotUniverse(index, involution));
+      liveRows = index;
+    }
+    return live;
+  }
+
+  private void checkBudget() {
+    int keys = index >>> 16;
+    flush();
+    if (null == store) {
+      long size = sizeInBytes(true);
+      // the next key is assumed to be as large as the average key so far
+      if (size + size / keys > memoryBudget) {
+        throw overBudget(size);
+      }
+    } else {
+      // pages faulted in by queries are bounded by the store's budget, so it gets what the rest leaves
+      long rest = sizeInBytes(false);
+      long projected = rest + rest / keys;
+      if (projected > memoryBudget) {
+        throw overBudget(rest + store.getResidentBytes());
+      }
+      store.limit(memoryBudget - projected);
+    }
+  }
+
+  private IllegalStateException overBudget(long size) {
+    return new IllegalStateException("Rows consumed so far use " + size + " bytes, another key would exceed "
+            + "the memory budget of " + memoryBudget + " bytes");
+  }
+
+  private void flush() {
+    filterWriters.values().forEach(SplitMapPageWriter::flush);
+    metrics.values().forEach(DoubleArrayPageWriter::flush);
+    if (null != live && liveRows != index) {
+      extendUniverse(live.getUniverse(), liveRows, index, involution);
+      liveRows = index;
+    }
+  }
+
+  private void refreshListeners(int key) {
+    flush();
+    short involuted = involution.invert((short) key);
+    for (KeyListener listener : listeners) {
+      listener.refresh(involuted);
+    }
   }
 
   public static class Builder<Value, FilterModel, MetricModel extends Enum<MetricModel> & Metric<Value>> {
     private Map<FilterModel, Predicate<Value>> filters = new HashMap<>();
     private Class<MetricModel> metricModel;
     private KeyInvolution involution = Involutions::reverse;
+    private long memoryBudget = Long.MAX_VALUE;
+    private PageStore store;
 
 
     public Builder<Value, FilterModel, MetricModel> withFilter(FilterModel field, Predicate<Value> predicate) {
@@ -93,11 +287,40 @@ public class Mapper<Value, FilterModel, MetricModel extends Enum<MetricModel> &
       return this;
     }
 
+    /**
+     * Limits the estimated heap used by the rows consumed. The budget is checked whenever a row
+     * starts a new key, and rows which would exceed it are rejected.
+     *
+     * @param bytes the budget in bytes.
+     * @return the builder.
+     */
+    public Builder<Value, FilterModel, MetricModel> withMemoryBudget(long bytes) {
+      if (bytes <= 0) {
+        throw new IllegalArgumentException("Memory budget must be positive, got " + bytes);
+      }
+      this.memoryBudget = bytes;
+      return this;
+    }
+
+    /**
+     * Spills the metric pages to the store under memory pressure. The store's budget is lowered
+     * to whatever the memory budget leaves for the pages, so queries faulting pages in keep the
+     * snapshots within the memory budget. The store must not be shared between mappers, and must
+     * outlive the snapshots taken.
+     *
+     * @param store the page store.
+     * @return the builder.
+     */
+    public Builder<Value, FilterModel, MetricModel> withPageStore(PageStore store) {
+      this.store = store;
+      return this;
+    }
+
     public Mapper<Value, FilterModel, MetricModel> build() {
       if (null == metricModel) {
         throw new IllegalStateException("Must provide metric model");
       }
-      return new Mapper<>(filters, metricModel, involution);
+      return new Mapper<>(filters, metricModel, involution, memoryBudget, store);
     }
   }
 
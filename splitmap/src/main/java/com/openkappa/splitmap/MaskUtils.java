@@ -1,63 +1,411 @@
 package com.openkappa.splitmap;
 
 import org.roaringbitmap.BitmapContainer;
+import org.roaringbitmap.Container;
 import org.roaringbitmap.PeekableShortIterator;
 import org.roaringbitmap.RunContainer;
 
+import java.util.Arrays;
+import java.util.function.DoubleConsumer;
+
 import static java.lang.Long.numberOfTrailingZeros;
 
 public class MaskUtils {
 
+  /**
+   * Below this many rows a key is reduced by visiting each row, rather than writing the mask onto
+   * 1024 words and running the masked kernels over every page, which costs as much as visiting
+   * roughly this many rows.
+   */
+  public static final int SPARSE_THRESHOLD = 1 << 11;
+
+  private static final PageKernels KERNELS = selectKernels();
+
+  /**
+   * Gets the fastest page kernels available: vectorised kernels when the library was built with
+   * the vector profile and jdk.incubator.vector is present (--add-modules jdk.incubator.vector),
+   * and scalar kernels otherwise. Setting the system property splitmap.kernels=scalar forces the
+   * scalar kernels.
+   *
+   * @return the page kernels.
+   */
+  public static PageKernels kernels() {
+    return KERNELS;
+  }
+
+  private static PageKernels selectKernels() {
+    if (!"scalar".equals(System.getProperty("splitmap.kernels"))
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+      try {
+        return (PageKernels) Class.forName("com.openkappa.splitmap.VectorPageKernels")
+                .getDeclaredConstructor()
+                .newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        // built without the vector profile
+      }
+    }
+    return ScalarPageKernels.INSTANCE;
+  }
+
+  /**
+   * Sums the values selected by the bitmap, allocating a buffer for the mask on each call.
+   *
+   * @param mask the bitmap.
+   * @param x    the values.
+   * @return the sum of the selected values.
+   */
   public static double pagedSum(BitmapContainer mask, ChunkedDoubleArray x) {
+    return pagedSum(mask, x, new long[1 << 10]);
+  }
+
+  /**
+   * Sums the values selected by the bitmap.
+   *
+   * @param mask  the bitmap.
+   * @param x     the values.
+   * @param words a buffer of 1024 words the mask is written onto, reused between calls.
+   * @return the sum of the selected values.
+   */
+  public static double pagedSum(BitmapContainer mask, ChunkedDoubleArray x, long[] words) {
+    return sum(toWords(mask, words), x);
+  }
+
+
+  /**
+   * Sums the values selected by the mask by visiting each selected row, for masks with fewer than
+   * {@link #SPARSE_THRESHOLD} rows.
+   *
+   * @param mask the rows.
+   * @param x    the values.
+   * @return the sum of the selected values.
+   */
+  public static double sparseSum(Container mask, ChunkedDoubleArray x) {
     double result = 0D;
     long pageMask = x.getPageMask();
     PeekableShortIterator it = mask.getShortIterator();
-    while (pageMask != 0L) {
-      int j = numberOfTrailingZeros(pageMask);
-      int pageOffset = j * 1024;
-      double[] page = x.getPageNoCopy(j);
-      if (mask.contains(pageOffset, pageOffset + 1024)) {
-        double r1 = 0D;
-        double r2 = 0D;
-        double r3 = 0D;
-        double r4 = 0D;
-        for (int k = 0; k < 1024; k += 4) {
-          r1 += page[k];
-          r2 += page[k + 1];
-          r3 += page[k + 2];
-          r4 += page[k + 3];
-        }
-        result += r1 + r2 + r3 + r4;
-        it.advanceIfNeeded((short) (pageOffset + 1024));
-      } else {
-        int next;
-        while (it.hasNext() && (next = it.nextAsInt()) < pageOffset + 1024) {
-          result += page[next - pageOffset];
-        }
+    while (it.hasNext()) {
+      int next = it.nextAsInt();
+      if ((pageMask & (1L << (next >>> 10))) != 0) {
+        result += x.getPageNoCopy(next >>> 10)[next & 0x3FF];
       }
-      pageMask &= (pageMask - 1);
     }
     return result;
   }
 
+  /**
+   * Sums the products of the values selected by the mask by visiting each selected row, for masks
+   * with fewer than {@link #SPARSE_THRESHOLD} rows.
+   *
+   * @param mask the rows.
+   * @param x    the first values.
+   * @param y    the second values.
+   * @return the sum of the products of the selected values.
+   */
+  public static double sparseSumProduct(Container mask, ChunkedDoubleArray x, ChunkedDoubleArray y) {
+    double result = 0D;
+    long pageMask = x.getPageMask() & y.getPageMask();
+    PeekableShortIterator it = mask.getShortIterator();
+    while (it.hasNext()) {
+      int next = it.nextAsInt();
+      int j = next >>> 10;
+      if ((pageMask & (1L << j)) != 0) {
+        result = Math.fma(x.getPageNoCopy(j)[next & 0x3FF], y.getPageNoCopy(j)[next & 0x3FF], result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds the sums of x, y, x * x, y * y and x * y over the values selected by the mask onto the
+   * first five elements of moments by visiting each selected row, for masks with fewer than
+   * {@link #SPARSE_THRESHOLD} rows.
+   *
+   * @param mask    the rows.
+   * @param x       the first values.
+   * @param y       the second values.
+   * @param moments the output.
+   */
+  public static void sparseMoments(Container mask, ChunkedDoubleArray x, ChunkedDoubleArray y, double[] moments) {
+    double sx = 0D;
+    double sy = 0D;
+    double sxx = 0D;
+    double syy = 0D;
+    double sxy = 0D;
+    long pageMask = x.getPageMask() & y.getPageMask();
+    PeekableShortIterator it = mask.getShortIterator();
+    while (it.hasNext()) {
+      int next = it.nextAsInt();
+      int j = next >>> 10;
+      if ((pageMask & (1L << j)) != 0) {
+        double kx = x.getPageNoCopy(j)[next & 0x3FF];
+        double ky = y.getPageNoCopy(j)[next & 0x3FF];
+        sx += kx;
+        sy += ky;
+        sxx = Math.fma(kx, kx, sxx);
+        syy = Math.fma(ky, ky, syy);
+        sxy = Math.fma(kx, ky, sxy);
+      }
+    }
+    moments[0] += sx;
+    moments[1] += sy;
+    moments[2] += sxx;
+    moments[3] += syy;
+    moments[4] += sxy;
+  }
+
+  /**
+   * Passes each value selected by the mask to the consumer in row order, skipping missing pages.
+   * This visits each selected row, so is meant for masks with fewer than {@link #SPARSE_THRESHOLD}
+   * rows.
+   *
+   * @param mask     the rows.
+   * @param x        the values.
+   * @param consumer receives the selected values.
+   */
+  public static void sparseForEach(Container mask, ChunkedDoubleArray x, DoubleConsumer consumer) {
+    long pageMask = x.getPageMask();
+    PeekableShortIterator it = mask.getShortIterator();
+    while (it.hasNext()) {
+      int next = it.nextAsInt();
+      if ((pageMask & (1L << (next >>> 10))) != 0) {
+        consumer.accept(x.getPageNoCopy(next >>> 10)[next & 0x3FF]);
+      }
+    }
+  }
+
+  /**
+   * Sums the values selected by the runs. Each run is split at page boundaries: fully selected
+   * pages use the page sums, partially selected pages are summed over the raw page and missing
+   * pages are skipped.
+   *
+   * @param mask the runs.
+   * @param x    the values.
+   * @return the sum of the selected values.
+   */
   public static double sum(RunContainer mask, ChunkedDoubleArray x) {
     double result = 0D;
+    long pageMask = x.getPageMask();
     for (int i = 0; i < mask.numberOfRuns(); ++i) {
       int start = mask.getValue(i) & 0xFFFF;
-      int end = start + mask.getLength(i) & 0xFFFF;
-      double r1 = 0D, r2 = 0D, r3 = 0D, r4 = 0D;
-      int j = start;
-      for (; j + 3 < end; j += 4) {
-        r1 += x.get(j);
-        r2 += x.get(j + 1);
-        r3 += x.get(j + 2);
-        r4 += x.get(j + 3);
+      int end = start + (mask.getLength(i) & 0xFFFF) + 1;
+      while (start < end) {
+        int j = start >>> 10;
+        int pageEnd = Math.min(end, (j + 1) << 10);
+        if ((pageMask & (1L << j)) != 0) {
+          result += pageEnd - start == 1024
+                  ? x.getPageSum(j)
+                  : rangeSum(x.getPageNoCopy(j), start & 0x3FF, pageEnd - (j << 10));
+        }
+        start = pageEnd;
       }
-      result += r1 + r2 + r3 + r4;
-      for (; j < end; ++j) {
-        result += x.get(j);
+    }
+    return result;
+  }
+
+  /**
+   * Sums the products of the values selected by the runs, split at page boundaries.
+   *
+   * @param mask the runs.
+   * @param x    the first values.
+   * @param y    the second values.
+   * @return the sum of the products of the selected values.
+   */
+  public static double sumProduct(RunContainer mask, ChunkedDoubleArray x, ChunkedDoubleArray y) {
+    double result = 0D;
+    long pageMask = x.getPageMask() & y.getPageMask();
+    for (int i = 0; i < mask.numberOfRuns(); ++i) {
+      int start = mask.getValue(i) & 0xFFFF;
+      int end = start + (mask.getLength(i) & 0xFFFF) + 1;
+      while (start < end) {
+        int j = start >>> 10;
+        int pageEnd = Math.min(end, (j + 1) << 10);
+        if ((pageMask & (1L << j)) != 0) {
+          result += rangeSumProduct(x.getPageNoCopy(j), y.getPageNoCopy(j), start & 0x3FF, pageEnd - (j << 10));
+        }
+        start = pageEnd;
       }
     }
     return result;
   }
+
+  /**
+   * Adds the sums of x, y, x * x, y * y and x * y over the values selected by the runs onto the
+   * first five elements of moments. Runs are split at page boundaries, and only the cross term is
+   * computed for fully selected pages.
+   *
+   * @param mask    the runs.
+   * @param x       the first values.
+   * @param y       the second values.
+   * @param moments the output.
+   */
+  public static void moments(RunContainer mask, ChunkedDoubleArray x, ChunkedDoubleArray y, double[] moments) {
+    long pageMask = x.getPageMask() & y.getPageMask();
+    for (int i = 0; i < mask.numberOfRuns(); ++i) {
+      int start = mask.getValue(i) & 0xFFFF;
+      int end = start + (mask.getLength(i) & 0xFFFF) + 1;
+      while (start < end) {
+        int j = start >>> 10;
+        int pageEnd = Math.min(end, (j + 1) << 10);
+        if ((pageMask & (1L << j)) != 0) {
+          double[] xPage = x.getPageNoCopy(j);
+          double[] yPage = y.getPageNoCopy(j);
+          if (pageEnd - start == 1024) {
+            moments[0] += x.getPageSum(j);
+            moments[1] += y.getPageSum(j);
+            moments[2] += x.getPageSumOfSquares(j);
+            moments[3] += y.getPageSumOfSquares(j);
+            moments[4] += rangeSumProduct(xPage, yPage, 0, 1024);
+          } else {
+            rangeMoments(xPage, yPage, start & 0x3FF, pageEnd - (j << 10), moments);
+          }
+        }
+        start = pageEnd;
+      }
+    }
+  }
+
+  private static double rangeSum(double[] page, int from, int to) {
+    double r1 = 0D, r2 = 0D, r3 = 0D, r4 = 0D;
+    int k = from;
+    for (; k + 3 < to; k += 4) {
+      r1 += page[k];
+      r2 += page[k + 1];
+      r3 += page[k + 2];
+      r4 += page[k + 3];
+    }
+    for (; k < to; ++k) {
+      r1 += page[k];
+    }
+    return r1 + r2 + r3 + r4;
+  }
+
+  private static double rangeSumProduct(double[] x, double[] y, int from, int to) {
+    double r1 = 0D, r2 = 0D, r3 = 0D, r4 = 0D;
+    int k = from;
+    for (; k + 3 < to; k += 4) {
+      r1 = Math.fma(x[k], y[k], r1);
+      r2 = Math.fma(x[k + 1], y[k + 1], r2);
+      r3 = Math.fma(x[k + 2], y[k + 2], r3);
+      r4 = Math.fma(x[k + 3], y[k + 3], r4);
+    }
+    for (; k < to; ++k) {
+      r1 = Math.fma(x[k], y[k], r1);
+    }
+    return r1 + r2 + r3 + r4;
+  }
+
+  private static void rangeMoments(double[] x, double[] y, int from, int to, double[] moments) {
+    double sx = 0D;
+    double sy = 0D;
+    double sxx = 0D;
+    double syy = 0D;
+    double sxy = 0D;
+    for (int k = from; k < to; ++k) {
+      double kx = x[k];
+      double ky = y[k];
+      sx += kx;
+      sy += ky;
+      sxx = Math.fma(kx, kx, sxx);
+      syy = Math.fma(ky, ky, syy);
+      sxy = Math.fma(kx, ky, sxy);
+    }
+    moments[0] += sx;
+    moments[1] += sy;
+    moments[2] += sxx;
+    moments[3] += syy;
+    moments[4] += sxy;
+  }
+
+
+  /**
+   * Writes the bits of the container onto a buffer of 1024 words, overwriting its contents.
+   *
+   * @param mask  the container to read.
+   * @param words the buffer, must have length 1024.
+   * @return the buffer.
+   */
+  public static long[] toWords(Container mask, long[] words) {
+    assert words.length == 1 << 10;
+    Arrays.fill(words, 0L);
+    new BitmapContainer(words, -1).lazyIOR(mask);
+    return words;
+  }
+
+  /**
+   * Checks whether all the rows of the page are selected by the mask.
+   *
+   * @param words     the mask as 1024 words.
+   * @param pageIndex the index of the page.
+   * @return true if the page is fully selected.
+   */
+  public static boolean isFullPage(long[] words, int pageIndex) {
+    int wordOffset = pageIndex << 4;
+    long all = -1L;
+    for (int i = 0; i < 16; ++i) {
+      all &= words[wordOffset + i];
+    }
+    return all == -1L;
+  }
+
+  /**
+   * Sums the values selected by the mask.
+   *
+   * @param words the mask as 1024 words.
+   * @param x     the values.
+   * @return the sum of the selected values.
+   */
+  public static double sum(long[] words, ChunkedDoubleArray x) {
+    double result = 0D;
+    long pageMask = x.getPageMask();
+    while (pageMask != 0) {
+      int j = numberOfTrailingZeros(pageMask);
+      result += isFullPage(words, j) ? x.getPageSum(j) : KERNELS.sum(words, j, x.getPageNoCopy(j));
+      pageMask &= (pageMask - 1);
+    }
+    return result;
+  }
+
+  /**
+   * Sums the products of the values selected by the mask, over the pages present in both.
+   *
+   * @param words the mask as 1024 words.
+   * @param x     the first values.
+   * @param y     the second values.
+   * @return the sum of the products of the selected values.
+   */
+  public static double sumProduct(long[] words, ChunkedDoubleArray x, ChunkedDoubleArray y) {
+    double result = 0D;
+    long pageMask = x.getPageMask() & y.getPageMask();
+    while (pageMask != 0) {
+      int j = numberOfTrailingZeros(pageMask);
+      result += KERNELS.sumProduct(words, j, x.getPageNoCopy(j), y.getPageNoCopy(j));
+      pageMask &= (pageMask - 1);
+    }
+    return result;
+  }
+
+  /**
+   * Sums the values of the page selected by the 16 words of the mask corresponding to the page.
+   *
+   * @param words     the mask as 1024 words.
+   * @param pageIndex the index of the page.
+   * @param page      the page.
+   * @return the sum of the selected values.
+   */
+  public static double maskedSum(long[] words, int pageIndex, double[] page) {
+    return KERNELS.sum(words, pageIndex, page);
+  }
+
+  /**
+   * Sums the products of the values of the pages selected by the 16 words of the mask corresponding to the page.
+   *
+   * @param words     the mask as 1024 words.
+   * @param pageIndex the index of the pages.
+   * @param x         the first page.
+   * @param y         the second page.
+   * @return the sum of the products of the selected values.
+   */
+  public static double maskedSumProduct(long[] words, int pageIndex, double[] x, double[] y) {
+    return KERNELS.sumProduct(words, pageIndex, x, y);
+  }
 }
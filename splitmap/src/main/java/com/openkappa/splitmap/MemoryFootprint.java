@@ -0,0 +1,86 @@
+package com.openkappa.splitmap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The estimated heap used by the filters and metrics of a {@link QueryContext}. The estimates
+ * assume 16 byte object and array headers, compressed references and 8 byte alignment, and
+ * count structures shared between indices (e.g. containers shared by circuit results) once per
+ * index holding them.
+ *
+ * @param <FilterModel> the filters.
+ * @param <MetricModel> the metrics.
+ */
+public class MemoryFootprint<FilterModel, MetricModel> {
+
+  static final int HEADER = 16;
+  static final int REFERENCE = 4;
+
+  private final Map<FilterModel, Long> filters;
+  private final Map<MetricModel, Long> metrics;
+  private final long universe;
+  private final long total;
+
+  MemoryFootprint(Map<FilterModel, Long> filters, Map<MetricModel, Long> metrics, long universe) {
+    this.filters = filters;
+    this.metrics = metrics;
+    this.universe = universe;
+    long total = universe;
+    for (long size : filters.values()) {
+      total += size;
+    }
+    for (long size : metrics.values()) {
+      total += size;
+    }
+    this.total = total;
+  }
+
+  static long align(long size) {
+    return (size + 7) & -8L;
+  }
+
+  static long arraySize(int length, int elementSize) {
+    return align(HEADER + (long) length * elementSize);
+  }
+
+  public Map<FilterModel, Long> getFilterBytes() {
+    return filters;
+  }
+
+  public Map<MetricModel, Long> getMetricBytes() {
+    return metrics;
+  }
+
+  public long getUniverseBytes() {
+    return universe;
+  }
+
+  public long getTotalBytes() {
+    return total;
+  }
+
+  /**
+   * Names each estimate for export to a metrics registry, e.g. "splitmap.filter.foo.bytes".
+   *
+   * @return the estimates by name.
+   */
+  public Map<String, Long> toMetrics() {
+    Map<String, Long> exported = new LinkedHashMap<>();
+    filters.forEach((filter, size) -> exported.put("splitmap.filter." + filter + ".bytes", size));
+    metrics.forEach((metric, size) -> exported.put("splitmap.metric." + metric + ".bytes", size));
+    exported.put("splitmap.universe.bytes", universe);
+    exported.put("splitmap.total.bytes", total);
+    return exported;
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryFootprint{" +
+            "filters=" + filters +
+            ", metrics=" + metrics +
+            ", universe=" + universe +
+            ", total=" + total +
+            '}';
+  }
+}
@@ -0,0 +1,53 @@
+package com.openkappa.splitmap;
+
+/**
+ * Reductions over a single 1024 element page, restricted to the rows selected by the 16 words of a
+ * 1024 word mask which correspond to the page. Use {@link MaskUtils#kernels()} to get the fastest
+ * implementation available on the running JVM.
+ */
+public interface PageKernels {
+
+  /**
+   * Sums the selected values of the page.
+   *
+   * @param words     the mask as 1024 words.
+   * @param pageIndex the index of the page.
+   * @param page      the page.
+   * @return the sum of the selected values.
+   */
+  double sum(long[] words, int pageIndex, double[] page);
+
+  /**
+   * Sums the products of the selected values of the pages.
+   *
+   * @param words     the mask as 1024 words.
+   * @param pageIndex the index of the pages.
+   * @param x         the first page.
+   * @param y         the second page.
+   * @return the sum of the products of the selected values.
+   */
+  double sumProduct(long[] words, int pageIndex, double[] x, double[] y);
+
+  /**
+   * Adds the sums of x, y, x * x, y * y and x * y over the selected values onto the first five
+   * elements of moments.
+   *
+   * @param words     the mask as 1024 words.
+   * @param pageIndex the index of the pages.
+   * @param x         the first page.
+   * @param y         the second page.
+   * @param moments   the output.
+   */
+  void moments(long[] words, int pageIndex, double[] x, double[] y, double[] moments);
+
+  /**
+   * Adds each selected value of the page onto the element of the target at its position in the
+   * page.
+   *
+   * @param words     the mask as 1024 words.
+   * @param pageIndex the index of the page.
+   * @param page      the page.
+   * @param target    the 1024 element output.
+   */
+  void accumulate(long[] words, int pageIndex, double[] page, double[] target);
+}
@@ -0,0 +1,212 @@
+package com.openkappa.splitmap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.lang.Long.bitCount;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Spills the pages of managed {@link ChunkedDoubleArray}s to a memory mapped file when the pages
+ * held on the heap exceed a budget. Pages are chosen for eviction by the CLOCK policy: every
+ * access to a page sets its reference bit, and the clock hand sweeps the managed pages, clearing
+ * set bits and evicting pages whose bit is already clear. An evicted page is faulted back in from
+ * the mapped file the next time it is accessed, so reductions don't need to know about
+ * residency. Page statistics stay on the heap, so reductions over fully selected pages don't
+ * fault pages in. Pages are written to the file only once, because they are never modified.
+ * Faults read the file holding only the faulting array's monitor, so pages of different arrays
+ * are faulted in concurrently, and the store's monitor is held only for accounting and eviction.
+ */
+public class PageStore implements AutoCloseable {
+
+  private static final int PAGE_BYTES = Double.BYTES << 10;
+  private static final long PAGE_HEAP_BYTES = MemoryFootprint.arraySize(1 << 10, Double.BYTES);
+  private static final int SEGMENT_PAGES = 1 << 10;
+  private static final long SEGMENT_BYTES = (long) SEGMENT_PAGES * PAGE_BYTES;
+
+  private final FileChannel channel;
+  private long budget;
+  // read by faults outside the store's monitor
+  private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+  private final List<ChunkedDoubleArray> arrays = new ArrayList<>();
+  private final Set<ChunkedDoubleArray> managed = Collections.newSetFromMap(new IdentityHashMap<>());
+  private long residentBytes;
+  private long spilledPages;
+  private long faults;
+  private long evictions;
+  private int hand;
+  private int handPage;
+
+  /**
+   * Creates a store spilling to the file, which is deleted when the store is closed.
+   *
+   * @param file   the spill file.
+   * @param budget the bytes of pages which may be held on the heap.
+   */
+  public PageStore(Path file, long budget) {
+    if (budget < 0) {
+      throw new IllegalArgumentException("Budget must not be negative, got " + budget);
+    }
+    this.budget = budget;
+    try {
+      this.channel = FileChannel.open(file, CREATE_NEW, READ, WRITE, DELETE_ON_CLOSE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Manages the pages of the array, which must not be written to afterwards.
+   *
+   * @param array the array.
+   */
+  public synchronized void manage(ChunkedDoubleArray array) {
+    array.attach(this);
+    arrays.add(array);
+    managed.add(array);
+    residentBytes += bitCount(array.getResidentPageMask()) * PAGE_HEAP_BYTES;
+    shrink();
+  }
+
+  /**
+   * Stops managing the array, e.g. when it has been replaced. Its spilled pages are not reclaimed,
+   * and pages faulted back in afterwards are not counted against the budget.
+   *
+   * @param array the array.
+   */
+  public synchronized void release(ChunkedDoubleArray array) {
+    if (managed.remove(array)) {
+      arrays.remove(array);
+      residentBytes -= bitCount(array.getResidentPageMask()) * PAGE_HEAP_BYTES;
+    }
+  }
+
+  /**
+   * Evicts pages until the bytes have been freed or no page can be evicted.
+   *
+   * @param bytes the bytes to free.
+   * @return the bytes freed.
+   */
+  public synchronized long evict(long bytes) {
+    long freed = 0L;
+    // two sweeps clear every reference bit and then evict every page
+    long steps = 2L * arrays.size() * Long.SIZE;
+    while (freed < bytes && steps-- > 0) {
+      if (hand >= arrays.size()) {
+        hand = 0;
+      }
+      ChunkedDoubleArray array = arrays.get(hand);
+      int page = handPage;
+      if (++handPage == Long.SIZE) {
+        handPage = 0;
+        ++hand;
+      }
+      if (array.isResident(page) && !array.clearReference(page)) {
+        array.evict(page);
+        freed += PAGE_HEAP_BYTES;
+        ++evictions;
+      }
+    }
+    residentBytes -= freed;
+    return freed;
+  }
+
+  /**
+   * Lowers the budget, evicting pages if the resident pages exceed it.
+   *
+   * @param budget the bytes of pages which may be held on the heap.
+   */
+  public synchronized void limit(long budget) {
+    this.budget = Math.max(0L, Math.min(this.budget, budget));
+    shrink();
+  }
+
+  public synchronized long getBudget() {
+    return budget;
+  }
+
+  public synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  public synchronized long getSpilledBytes() {
+    return spilledPages * PAGE_BYTES;
+  }
+
+  public synchronized long getFaults() {
+    return faults;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  double[] load(ChunkedDoubleArray array, int index) {
+    double[] page;
+    synchronized (array) {
+      if (array.isResident(index)) {
+        // faulted in by another thread
+        return array.getPageNoCopy(index);
+      }
+      page = new double[1 << 10];
+      buffer(array.getOffset(index)).asDoubleBuffer().get(page);
+      array.restore(index, page);
+    }
+    synchronized (this) {
+      ++faults;
+      // a released array is never visited by the clock, so its pages would never be subtracted
+      if (managed.contains(array)) {
+        residentBytes += PAGE_HEAP_BYTES;
+        shrink();
+      }
+    }
+    return page;
+  }
+
+  long write(double[] page) {
+    long offset = spilledPages * PAGE_BYTES;
+    if (spilledPages % SEGMENT_PAGES == 0) {
+      try {
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, offset, SEGMENT_BYTES));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    buffer(offset).asDoubleBuffer().put(page);
+    ++spilledPages;
+    return offset;
+  }
+
+  private ByteBuffer buffer(long offset) {
+    return segments.get((int) (offset / SEGMENT_BYTES))
+            .duplicate()
+            .position((int) (offset % SEGMENT_BYTES))
+            .order(ByteOrder.nativeOrder());
+  }
+
+  private void shrink() {
+    if (residentBytes > budget) {
+      evict(residentBytes - budget);
+    }
+  }
+}
@@ -17,7 +17,7 @@ public class PrefixIndex<T> {
 
   static {
     PARTITIONS = Runtime.getRuntime().availableProcessors();
-    PARTITION_SIZE = (1 << 10) / PARTITIONS;
+    PARTITION_SIZE = Math.max(1, (1 << 10) / PARTITIONS);
   }
 
   private final long[] keys;
@@ -75,8 +75,11 @@ public class PrefixIndex<T> {
   }
 
   public Stream<PrefixIndex<T>> streamUniformPartitions() {
-    return IntStream.range(0, range / PARTITION_SIZE)
-            .mapToObj(i -> new PrefixIndex<>(keys, values, PARTITION_SIZE * i, PARTITION_SIZE));
+    // the last partition takes any words left over when the partition size doesn't divide the range
+    int partitions = Math.max(1, range / PARTITION_SIZE);
+    return IntStream.range(0, partitions)
+            .mapToObj(i -> new PrefixIndex<>(keys, values, offset + PARTITION_SIZE * i,
+                    i == partitions - 1 ? range - PARTITION_SIZE * i : PARTITION_SIZE));
   }
 
   public void forEach(KeyValueConsumer<T> consumer) {
@@ -224,6 +227,33 @@ public class PrefixIndex<T> {
     return values.readChunk(chunkIndex, ouptut);
   }
 
+  /**
+   * Estimates the heap used by the whole index, shared by all its partitions.
+   *
+   * @param valueSize estimates the size of each value.
+   * @return the estimated size in bytes.
+   */
+  public long sizeInBytes(ToLongFunction<T> valueSize) {
+    long[] size = {indexSizeInBytes()};
+    new PrefixIndex<>(keys, values, 0, 1 << 10).forEach((key, value) -> {
+      if (null != value) {
+        size[0] += valueSize.applyAsLong(value);
+      }
+    });
+    return size[0];
+  }
+
+  /**
+   * Estimates the heap used by the index itself, without its values.
+   *
+   * @return the estimated size in bytes.
+   */
+  long indexSizeInBytes() {
+    return MemoryFootprint.align(MemoryFootprint.HEADER + 2 * MemoryFootprint.REFERENCE + 2 * Integer.BYTES)
+            + MemoryFootprint.arraySize(keys.length, Long.BYTES)
+            + values.sizeInBytes();
+  }
+
   T[] getChunkNoCopy(int chunkIndex) {
     return values.getChunkNoCopy(chunkIndex);
   }
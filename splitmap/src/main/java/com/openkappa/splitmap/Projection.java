@@ -0,0 +1,180 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.Container;
+import org.roaringbitmap.RunContainer;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Exports the values of several metrics at the rows selected by a SplitMap as fixed size columnar
+ * batches. Each partition is exported in parallel into its own batch, which is handed to the
+ * consumer whenever it fills up and reused afterwards, so no list of rows is ever built.
+ */
+public class Projection {
+
+  private static final double[] EMPTY_PAGE = new double[1 << 10];
+
+  private final PrefixIndex<ChunkedDoubleArray>[] metrics;
+  private final int batchSize;
+
+  /**
+   * @param batchSize the maximum number of rows in a batch.
+   * @param metrics   the metrics to export, in the order of the batch's columns.
+   */
+  @SafeVarargs
+  public Projection(int batchSize, PrefixIndex<ChunkedDoubleArray>... metrics) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batch size must be positive, got " + batchSize);
+    }
+    this.batchSize = batchSize;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Exports the selected rows. The consumer is called concurrently, once per full batch and
+   * once for the remainder of each partition, and must not retain the batch after returning.
+   *
+   * @param filter   the selected rows.
+   * @param consumer receives the batches.
+   */
+  public void export(SplitMap filter, Consumer<Batch> consumer) {
+    KeyInvolution involution = filter.getInvolution();
+    filter.stream()
+            .parallel()
+            .forEach(partition -> export(partition, involution, consumer));
+  }
+
+  private void export(PrefixIndex<Container> partition, KeyInvolution involution, Consumer<Batch> consumer) {
+    Batch batch = new Batch(batchSize, metrics.length);
+    ChunkedDoubleArray[] arrays = new ChunkedDoubleArray[metrics.length];
+    int[] lows = new int[1 << 16];
+    partition.forEach((key, container) -> {
+      if (null == container || container.isEmpty()) {
+        return;
+      }
+      for (int c = 0; c < metrics.length; ++c) {
+        arrays[c] = metrics[c].get(key);
+      }
+      int prefix = (involution.invert(key) & 0xFFFF) << 16;
+      if (container instanceof RunContainer) {
+        gatherRuns((RunContainer) container, prefix, arrays, batch, consumer);
+      } else {
+        int count = container.getCardinality();
+        container.fillLeastSignificant16bits(lows, 0, 0);
+        gather(lows, count, prefix, arrays, batch, consumer);
+      }
+    });
+    if (batch.size != 0) {
+      consumer.accept(batch);
+      batch.size = 0;
+    }
+  }
+
+  private void gather(int[] lows,
+                      int count,
+                      int prefix,
+                      ChunkedDoubleArray[] arrays,
+                      Batch batch,
+                      Consumer<Batch> consumer) {
+    int position = 0;
+    while (position < count) {
+      int length = Math.min(count - position, batchSize - batch.size);
+      int[] rows = batch.rows;
+      for (int i = 0; i < length; ++i) {
+        rows[batch.size + i] = prefix | lows[position + i];
+      }
+      for (int c = 0; c < arrays.length; ++c) {
+        double[] column = batch.columns[c];
+        ChunkedDoubleArray x = arrays[c];
+        if (null == x) {
+          Arrays.fill(column, batch.size, batch.size + length, 0D);
+          continue;
+        }
+        // consecutive rows mostly fall in the same page, so only look the page up when it changes
+        int pageIndex = -1;
+        double[] page = EMPTY_PAGE;
+        for (int i = 0; i < length; ++i) {
+          int low = lows[position + i];
+          if (low >>> 10 != pageIndex) {
+            pageIndex = low >>> 10;
+            page = (x.getPageMask() & (1L << pageIndex)) == 0 ? EMPTY_PAGE : x.getPageNoCopy(pageIndex);
+          }
+          column[batch.size + i] = page[low & 0x3FF];
+        }
+      }
+      batch.size += length;
+      position += length;
+      if (batch.size == batchSize) {
+        consumer.accept(batch);
+        batch.size = 0;
+      }
+    }
+  }
+
+  private void gatherRuns(RunContainer container,
+                          int prefix,
+                          ChunkedDoubleArray[] arrays,
+                          Batch batch,
+                          Consumer<Batch> consumer) {
+    for (int r = 0; r < container.numberOfRuns(); ++r) {
+      int start = container.getValue(r) & 0xFFFF;
+      int end = start + (container.getLength(r) & 0xFFFF) + 1;
+      while (start < end) {
+        // copy whole ranges, stopping at page boundaries and when the batch is full
+        int pageIndex = start >>> 10;
+        int length = Math.min(Math.min(end, (pageIndex + 1) << 10) - start, batchSize - batch.size);
+        int[] rows = batch.rows;
+        for (int i = 0; i < length; ++i) {
+          rows[batch.size + i] = prefix | (start + i);
+        }
+        for (int c = 0; c < arrays.length; ++c) {
+          ChunkedDoubleArray x = arrays[c];
+          double[] page = null == x || (x.getPageMask() & (1L << pageIndex)) == 0
+                  ? EMPTY_PAGE : x.getPageNoCopy(pageIndex);
+          System.arraycopy(page, start & 0x3FF, batch.columns[c], batch.size, length);
+        }
+        batch.size += length;
+        start += length;
+        if (batch.size == batchSize) {
+          consumer.accept(batch);
+          batch.size = 0;
+        }
+      }
+    }
+  }
+
+  /**
+   * A batch of rows and the values of each metric at those rows. Only the first
+   * {@link #getSize()} elements of the arrays are valid.
+   */
+  public static final class Batch {
+    private final int[] rows;
+    private final double[][] columns;
+    private int size;
+
+    private Batch(int batchSize, int columnCount) {
+      this.rows = new int[batchSize];
+      this.columns = new double[columnCount][batchSize];
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    /**
+     * @return the original row ids, which are not copied.
+     */
+    public int[] getRows() {
+      return rows;
+    }
+
+    /**
+     * @param column the index of the metric.
+     * @return the values of the metric, which are not copied.
+     */
+    public double[] getColumn(int column) {
+      return columns[column];
+    }
+  }
+}
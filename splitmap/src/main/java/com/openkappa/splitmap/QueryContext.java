@@ -1,16 +1,25 @@
 package com.openkappa.splitmap;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class QueryContext<FilterModel, MetricModel> {
 
   private final Map<FilterModel, SplitMap> filters;
   private final Map<MetricModel, PrefixIndex<ChunkedDoubleArray>> metrics;
+  private final SplitMap universe;
 
   QueryContext(Map<FilterModel, SplitMap> filters,
                Map<MetricModel, PrefixIndex<ChunkedDoubleArray>> metrics) {
+    this(filters, metrics, null);
+  }
+
+  QueryContext(Map<FilterModel, SplitMap> filters,
+               Map<MetricModel, PrefixIndex<ChunkedDoubleArray>> metrics,
+               SplitMap universe) {
     this.filters = filters;
     this.metrics = metrics;
+    this.universe = universe;
   }
 
   public SplitMap getSplitMap(FilterModel filter) {
@@ -21,4 +30,49 @@ public class QueryContext<FilterModel, MetricModel> {
     return metrics.get(metric);
   }
 
+  /**
+   * Gets every row ingested into the context, which negated filters are evaluated against.
+   *
+   * @return the universe, or null if the context was not created with one.
+   */
+  public SplitMap getUniverse() {
+    return universe;
+  }
+
+  /**
+   * Estimates the heap used by each filter and metric, e.g. to check a snapshot against a
+   * memory budget or to export the sizes as metrics.
+   *
+   * @return the memory footprint.
+   */
+  public MemoryFootprint<FilterModel, MetricModel> getMemoryFootprint() {
+    Map<FilterModel, Long> filterBytes = new LinkedHashMap<>();
+    filters.forEach((filter, splitMap) -> filterBytes.put(filter, splitMap.sizeInBytes()));
+    Map<MetricModel, Long> metricBytes = new LinkedHashMap<>();
+    if (null != metrics) {
+      metrics.forEach((metric, index) -> metricBytes.put(metric, index.sizeInBytes(ChunkedDoubleArray::sizeInBytes)));
+    }
+    return new MemoryFootprint<>(filterBytes, metricBytes, null == universe ? 0L : universe.sizeInBytes());
+  }
+
+  public long sizeInBytes() {
+    return getMemoryFootprint().getTotalBytes();
+  }
+
+  public FilterStatistics getStatistics(FilterModel filter) {
+    return filters.get(filter).getStatistics();
+  }
+
+  /**
+   * Gets the statistics of every filter, e.g. to order intersections by selectivity or to decide
+   * whether only the keys all the filters share need to be evaluated.
+   *
+   * @return the statistics of each filter.
+   */
+  public Map<FilterModel, FilterStatistics> getStatistics() {
+    Map<FilterModel, FilterStatistics> catalog = new LinkedHashMap<>();
+    filters.forEach((filter, splitMap) -> catalog.put(filter, splitMap.getStatistics()));
+    return catalog;
+  }
+
 }
@@ -0,0 +1,74 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.Container;
+import org.roaringbitmap.PeekableShortIterator;
+
+import java.util.Arrays;
+
+/**
+ * Enumerates the original row ids selected by a {@link SplitMap} (or one of its partitions) in
+ * ascending unsigned order, undoing the key involution. Rows are written into caller provided
+ * buffers, so there is no allocation per row.
+ */
+public class RowBatchIterator {
+
+  private final long[] keys;
+  private final Container[] containers;
+  private int position = -1;
+  private int prefix;
+  private PeekableShortIterator it;
+
+  RowBatchIterator(PrefixIndex<Container> index, KeyInvolution involution) {
+    int[] count = new int[1];
+    index.forEach((key, container) -> ++count[0]);
+    long[] keys = new long[count[0]];
+    Container[] containers = new Container[count[0]];
+    count[0] = 0;
+    // sort by the original high bits, keeping the stored key alongside to find the container again
+    index.forEach((key, container) ->
+            keys[count[0]++] = (long) (involution.invert(key) & 0xFFFF) << 16 | (key & 0xFFFF));
+    Arrays.sort(keys);
+    for (int i = 0; i < keys.length; ++i) {
+      containers[i] = index.get((short) keys[i]);
+    }
+    this.keys = keys;
+    this.containers = containers;
+    advance();
+  }
+
+  public boolean hasNext() {
+    return null != it;
+  }
+
+  /**
+   * Fills the buffer with the next rows.
+   *
+   * @param buffer the destination.
+   * @return the number of rows written, which is only less than the length of the buffer
+   * once the iterator is exhausted.
+   */
+  public int nextBatch(int[] buffer) {
+    int written = 0;
+    while (null != it && written < buffer.length) {
+      while (written < buffer.length && it.hasNext()) {
+        buffer[written++] = prefix | it.nextAsInt();
+      }
+      if (!it.hasNext()) {
+        advance();
+      }
+    }
+    return written;
+  }
+
+  private void advance() {
+    it = null;
+    while (++position < keys.length) {
+      Container container = containers[position];
+      if (null != container && !container.isEmpty()) {
+        prefix = (int) (keys[position] >>> 16) << 16;
+        it = container.getShortIterator();
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.Container;
+
+import java.util.stream.Stream;
+
+/**
+ * The result of evaluating a circuit over a sample of keys, along with the number of keys
+ * in the population the sample was drawn from and the number of keys sampled. Sampled keys
+ * which evaluated to nothing are included in the sample size.
+ */
+public class SampledSplitMap {
+
+  private final SplitMap splitMap;
+  private final int populationSize;
+  private final int sampleSize;
+
+  SampledSplitMap(SplitMap splitMap, int populationSize, int sampleSize) {
+    this.splitMap = splitMap;
+    this.populationSize = populationSize;
+    this.sampleSize = sampleSize;
+  }
+
+  public SplitMap getSplitMap() {
+    return splitMap;
+  }
+
+  public int getPopulationSize() {
+    return populationSize;
+  }
+
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  public Stream<PrefixIndex<Container>> stream() {
+    return splitMap.stream();
+  }
+}
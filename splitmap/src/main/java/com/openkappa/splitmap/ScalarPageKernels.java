@@ -0,0 +1,163 @@
+package com.openkappa.splitmap;
+
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+import static java.lang.Long.bitCount;
+import static java.lang.Long.numberOfTrailingZeros;
+
+/**
+ * Chooses a loop for each word of the mask by its population: full words are summed without
+ * looking at the mask, dense words select each of the 64 values by masking its bits (so there is
+ * no data dependent branch to mispredict) and sparse words visit only the set bits.
+ */
+final class ScalarPageKernels implements PageKernels {
+
+  static final PageKernels INSTANCE = new ScalarPageKernels();
+
+  /**
+   * Words with at least this many bits set are reduced with the branch-free loop.
+   */
+  static final int DENSE_THRESHOLD = 16;
+
+  @Override
+  public double sum(long[] words, int pageIndex, double[] page) {
+    double result = 0D;
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      int offset = i << 6;
+      int population = bitCount(word);
+      if (population == 64) {
+        double r1 = 0D, r2 = 0D, r3 = 0D, r4 = 0D;
+        for (int k = offset; k < offset + 64; k += 4) {
+          r1 += page[k];
+          r2 += page[k + 1];
+          r3 += page[k + 2];
+          r4 += page[k + 3];
+        }
+        result += r1 + r2 + r3 + r4;
+      } else if (population >= DENSE_THRESHOLD) {
+        double r = 0D;
+        for (int b = 0; b < 64; ++b) {
+          r += select(page[offset + b], word, b);
+        }
+        result += r;
+      } else {
+        while (word != 0) {
+          result += page[offset + numberOfTrailingZeros(word)];
+          word &= (word - 1);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public double sumProduct(long[] words, int pageIndex, double[] x, double[] y) {
+    double result = 0D;
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      int offset = i << 6;
+      int population = bitCount(word);
+      if (population == 64) {
+        double r1 = 0D, r2 = 0D, r3 = 0D, r4 = 0D;
+        for (int k = offset; k < offset + 64; k += 4) {
+          r1 = Math.fma(x[k], y[k], r1);
+          r2 = Math.fma(x[k + 1], y[k + 1], r2);
+          r3 = Math.fma(x[k + 2], y[k + 2], r3);
+          r4 = Math.fma(x[k + 3], y[k + 3], r4);
+        }
+        result += r1 + r2 + r3 + r4;
+      } else if (population >= DENSE_THRESHOLD) {
+        double r = 0D;
+        for (int b = 0; b < 64; ++b) {
+          // both values are masked so an unselected infinity can't turn the product into NaN
+          r = Math.fma(select(x[offset + b], word, b), select(y[offset + b], word, b), r);
+        }
+        result += r;
+      } else {
+        while (word != 0) {
+          int k = offset + numberOfTrailingZeros(word);
+          result = Math.fma(x[k], y[k], result);
+          word &= (word - 1);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void moments(long[] words, int pageIndex, double[] x, double[] y, double[] moments) {
+    double sx = 0D;
+    double sy = 0D;
+    double sxx = 0D;
+    double syy = 0D;
+    double sxy = 0D;
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      int offset = i << 6;
+      if (bitCount(word) >= DENSE_THRESHOLD) {
+        for (int b = 0; b < 64; ++b) {
+          double kx = select(x[offset + b], word, b);
+          double ky = select(y[offset + b], word, b);
+          sx += kx;
+          sy += ky;
+          sxx = Math.fma(kx, kx, sxx);
+          syy = Math.fma(ky, ky, syy);
+          sxy = Math.fma(kx, ky, sxy);
+        }
+      } else {
+        while (word != 0) {
+          int k = offset + numberOfTrailingZeros(word);
+          double kx = x[k];
+          double ky = y[k];
+          sx += kx;
+          sy += ky;
+          sxx = Math.fma(kx, kx, sxx);
+          syy = Math.fma(ky, ky, syy);
+          sxy = Math.fma(kx, ky, sxy);
+          word &= (word - 1);
+        }
+      }
+    }
+    moments[0] += sx;
+    moments[1] += sy;
+    moments[2] += sxx;
+    moments[3] += syy;
+    moments[4] += sxy;
+  }
+
+  @Override
+  public void accumulate(long[] words, int pageIndex, double[] page, double[] target) {
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      int offset = i << 6;
+      int population = bitCount(word);
+      if (population == 64) {
+        for (int k = offset; k < offset + 64; ++k) {
+          target[k] += page[k];
+        }
+      } else if (population >= DENSE_THRESHOLD) {
+        for (int b = 0; b < 64; ++b) {
+          target[offset + b] += select(page[offset + b], word, b);
+        }
+      } else {
+        while (word != 0) {
+          int k = offset + numberOfTrailingZeros(word);
+          target[k] += page[k];
+          word &= (word - 1);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the value if bit b of the word is set, otherwise positive zero.
+   */
+  private static double select(double value, long word, int b) {
+    return longBitsToDouble(doubleToRawLongBits(value) & -((word >>> b) & 1L));
+  }
+}
@@ -1,17 +1,25 @@
 package com.openkappa.splitmap;
 
 import org.roaringbitmap.Container;
+import org.roaringbitmap.ContainerPointer;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.RoaringContainers;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 public class SplitMap {
 
   private final PrefixIndex<Container> index;
   private final KeyInvolution involution;
+  // only maintained when the index is private to this SplitMap, so every change goes through insert
+  private final FilterStatistics.Accumulator statistics;
 
   public SplitMap(PrefixIndex<Container> index, KeyInvolution involution) {
-    this.index = index;
-    this.involution = involution;
+    this(index, involution, null);
   }
 
   public SplitMap(PrefixIndex<Container> index) {
@@ -19,10 +27,89 @@ public class SplitMap {
   }
 
   public SplitMap(KeyInvolution involution) {
-    this(new PrefixIndex<>(), involution);
+    this(new PrefixIndex<>(), involution, new FilterStatistics.Accumulator());
+  }
+
+  private SplitMap(PrefixIndex<Container> index, KeyInvolution involution, FilterStatistics.Accumulator statistics) {
+    this.index = index;
+    this.involution = involution;
+    this.statistics = statistics;
   }
 
-  public void insert(short key, Container region) {
+  /**
+   * Creates a SplitMap holding the same values as the bitmap. The containers are shared rather
+   * than copied, so neither the bitmap nor the SplitMap should be modified afterwards.
+   *
+   * @param bitmap     the bitmap.
+   * @param involution the involution applied to the high 16 bits of each value.
+   * @return a SplitMap sharing the bitmap's containers.
+   */
+  public static SplitMap fromRoaring(RoaringBitmap bitmap, KeyInvolution involution) {
+    // the containers are collected in order of key, then grouped by the chunk of their involuted key
+    List<Container> containers = new ArrayList<>();
+    LongStream.Builder builder = LongStream.builder();
+    ContainerPointer pointer = bitmap.getContainerPointer();
+    for (Container container = pointer.getContainer(); null != container; container = pointer.getContainer()) {
+      builder.add((long) (involution.invert(pointer.key()) & 0xFFFF) << 32 | containers.size());
+      containers.add(container);
+      pointer.advance();
+    }
+    long[] positions = builder.build().parallel().sorted().toArray();
+    PrefixIndex<Container> index = new PrefixIndex<>();
+    Container[] chunk = new Container[Long.SIZE];
+    int i = 0;
+    while (i < positions.length) {
+      int wordIndex = (int) (positions[i] >>> 38);
+      long word = 0L;
+      Arrays.fill(chunk, null);
+      for (; i < positions.length && (int) (positions[i] >>> 38) == wordIndex; ++i) {
+        int bit = (int) (positions[i] >>> 32) & 63;
+        Container container = containers.get((int) positions[i]);
+        if (!container.isEmpty()) {
+          word |= 1L << bit;
+          chunk[bit] = container;
+        }
+      }
+      if (word != 0L) {
+        index.writeChunk(wordIndex, word, chunk);
+      }
+    }
+    return new SplitMap(index, involution);
+  }
+
+  /**
+   * Creates a RoaringBitmap holding the same values as this SplitMap. The containers are shared
+   * rather than copied, so neither the bitmap nor the SplitMap should be modified afterwards.
+   *
+   * @return a bitmap sharing this SplitMap's containers.
+   */
+  public RoaringBitmap toRoaring() {
+    // collect the original high bits of each partition's keys in parallel, then append in order
+    long[] keys = index.streamUniformPartitions()
+            .parallel()
+            .flatMapToLong(partition -> {
+              LongStream.Builder builder = LongStream.builder();
+              partition.forEach((key, container) -> {
+                if (null != container && !container.isEmpty()) {
+                  builder.add((long) (involution.invert(key) & 0xFFFF) << 16 | (key & 0xFFFF));
+                }
+              });
+              return builder.build();
+            })
+            .sorted()
+            .toArray();
+    RoaringBitmap bitmap = new RoaringBitmap();
+    for (long key : keys) {
+      RoaringContainers.append(bitmap, (short) (key >>> 16), index.get((short) key));
+    }
+    return bitmap;
+  }
+
+  public synchronized void insert(short key, Container region) {
+    if (null != statistics) {
+      statistics.remove(index.get(key));
+      statistics.add(region);
+    }
     index.insert(key, region);
   }
 
@@ -31,10 +118,46 @@ public class SplitMap {
     return null != mask && mask.contains((short) value);
   }
 
+  /**
+   * Gets the container stored at the (involuted) key, as presented to reduction procedures.
+   *
+   * @param key the involuted key.
+   * @return the container or null if there is no container at the key.
+   */
+  public Container getContainer(short key) {
+    return index.get(key);
+  }
+
   public long getCardinality() {
     return index.reduceLong(0L, Container::getCardinality, (x, y) -> x + y);
   }
 
+  /**
+   * Gets the statistics of this SplitMap. These are maintained on insertion for SplitMaps which
+   * own their index, such as those written by a {@link SplitMapPageWriter}, and computed from the
+   * containers on each call for SplitMaps created around an existing index, which may be modified
+   * without the SplitMap knowing.
+   *
+   * @return a snapshot of the statistics.
+   */
+  public synchronized FilterStatistics getStatistics() {
+    if (null == statistics) {
+      FilterStatistics.Accumulator accumulator = new FilterStatistics.Accumulator();
+      index.forEach((key, container) -> accumulator.add(container));
+      return accumulator.snapshot();
+    }
+    return statistics.snapshot();
+  }
+
+  /**
+   * Estimates the heap used by the index and its containers.
+   *
+   * @return the estimated size in bytes.
+   */
+  public long sizeInBytes() {
+    return index.sizeInBytes(container -> 2 * MemoryFootprint.HEADER + container.getSizeInBytes());
+  }
+
   public boolean isEmpty() {
     return index.isEmpty();
   }
@@ -43,8 +166,32 @@ public class SplitMap {
     return index.streamUniformPartitions();
   }
 
+  /**
+   * Gets an iterator over the selected rows in ascending order of original row id.
+   *
+   * @return an iterator over the selected rows.
+   */
+  public RowBatchIterator batchIterator() {
+    return new RowBatchIterator(index, involution);
+  }
+
+  /**
+   * Gets an iterator over the selected rows of each partition, for consumption in parallel.
+   * The rows of each partition are in ascending order of original row id, but the partitions
+   * are not ordered with respect to each other unless the involution is the identity.
+   *
+   * @return an iterator per partition.
+   */
+  public Stream<RowBatchIterator> streamBatchIterators() {
+    return index.streamUniformPartitions().map(partition -> new RowBatchIterator(partition, involution));
+  }
+
   PrefixIndex<Container> getIndex() {
     return index;
   }
 
+  KeyInvolution getInvolution() {
+    return involution;
+  }
+
 }
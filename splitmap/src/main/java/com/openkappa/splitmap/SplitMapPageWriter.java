@@ -12,6 +12,9 @@ public class SplitMapPageWriter {
   private final SplitMap splitMap;
   private int currentKey = -1;
   private boolean dirty;
+  private int flushedKey = -1;
+  private long flushedBytes;
+  private long containerBytes;
 
   public SplitMapPageWriter() {
     this(Involutions::reverse);
@@ -30,21 +33,43 @@ public class SplitMapPageWriter {
         throw new IllegalStateException("append only (" + currentKey + " > " + key + ")");
       }
       flush();
+      clear();
       currentKey = key;
     }
     bitmap[value >>> 6] |= (1L << value);
     dirty = true;
   }
 
+  /**
+   * Writes the rows added to the current key so far. The rows are kept until the key changes,
+   * so flushing part way through a key and adding more rows to it replaces the key's container
+   * with one holding all of its rows.
+   */
   public void flush() {
     if (dirty) {
       Container mask = new BitmapContainer(bitmap, -1).repairAfterLazy();
       splitMap.insert(involution.invert((short)(currentKey >>> 16)),
               mask instanceof BitmapContainer ? mask.clone() : mask);
-      clear();
+      if (flushedKey == currentKey) {
+        containerBytes -= flushedBytes;
+      }
+      flushedKey = currentKey;
+      flushedBytes = 2 * MemoryFootprint.HEADER + mask.getSizeInBytes();
+      containerBytes += flushedBytes;
+      dirty = false;
     }
   }
 
+  /**
+   * Estimates the heap used by the rows flushed so far, as {@link SplitMap#sizeInBytes()} would,
+   * without visiting the containers written.
+   *
+   * @return the estimated size in bytes.
+   */
+  long sizeInBytes() {
+    return splitMap.getIndex().indexSizeInBytes() + containerBytes;
+  }
+
   public SplitMap toSplitMap() {
     flush();
     return splitMap;
@@ -0,0 +1,133 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.Container;
+
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * A query registered with a {@link Mapper}, whose result is maintained during ingestion. The
+ * reduced value of each key is cached, and when the mapper flushes a key only that key is
+ * evaluated again, so keeping the result up to date costs time proportional to the new rows.
+ * The result is combined from the cached values of each key, and only when a key has changed
+ * since it was last combined.
+ *
+ * @param <FilterModel> the filters of the mapper.
+ * @param <Model>       the model of the reduction.
+ * @param <Output>      the output columns of the reduction.
+ * @param <Result>      the reduced value of each key.
+ * @param <Aggregate>   the result of the query.
+ */
+public class StandingQuery<FilterModel, Model, Output, Result, Aggregate> implements KeyListener {
+
+  private static final Container EMPTY = new ArrayContainer();
+
+  private final QueryContext<FilterModel, ?> context;
+  private final Function<Slice<FilterModel, Container>, Container> circuit;
+  private final Supplier<ReductionProcedure<Model, Output, Result, Container>> reducer;
+  private final Collector<ReductionContext<Model, Output, Result>, ?, Aggregate> collector;
+  private final FilterModel[] filters;
+  private final PrefixIndex<ReductionContext<Model, Output, Result>> partials = new PrefixIndex<>();
+  private Aggregate result;
+  private boolean stale = true;
+
+  <MetricModel> StandingQuery(QueryContext<FilterModel, MetricModel> context,
+                              Function<Slice<FilterModel, Container>, Container> circuit,
+                              Function<QueryContext<FilterModel, MetricModel>, ReductionProcedure<Model, Output, Result, Container>> reducer,
+                              Collector<ReductionContext<Model, Output, Result>, ?, Aggregate> collector,
+                              FilterModel... filters) {
+    this.context = context;
+    this.circuit = circuit;
+    this.reducer = () -> reducer.apply(context);
+    this.collector = collector;
+    this.filters = filters;
+  }
+
+  /**
+   * Gets the result of the query over every row flushed so far.
+   *
+   * @return the result.
+   */
+  public synchronized Aggregate getResult() {
+    if (stale) {
+      Stream.Builder<ReductionContext<Model, Output, Result>> builder = Stream.builder();
+      partials.forEach((key, partial) -> builder.add(partial));
+      result = builder.build().collect(collector);
+      stale = false;
+    }
+    return result;
+  }
+
+  /**
+   * Evaluates every key any of the filters has, e.g. when registering after ingestion has started.
+   */
+  synchronized void refreshAll() {
+    for (int wordIndex = 0; wordIndex < 1 << 10; ++wordIndex) {
+      long word = 0L;
+      for (FilterModel filter : filters) {
+        word |= context.getSplitMap(filter).getIndex().readKeyWord(wordIndex);
+      }
+      while (word != 0) {
+        refresh((short) (wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word)));
+        word &= (word - 1);
+      }
+    }
+  }
+
+  /**
+   * Evaluates the key again, replacing its cached value.
+   *
+   * @param key the involuted key which has been flushed.
+   */
+  @Override
+  public synchronized void refresh(short key) {
+    Slice<FilterModel, Container> slice = new Slice<>(EMPTY);
+    boolean present = false;
+    for (FilterModel filter : filters) {
+      Container container = context.getSplitMap(filter).getContainer(key);
+      if (null != container) {
+        slice.set(filter, container);
+        present = true;
+      }
+    }
+    if (!present && null == partials.get(key)) {
+      return;
+    }
+    ReductionProcedure<Model, Output, Result, Container> procedure = reducer.get();
+    Container selected = present ? circuit.apply(slice) : null;
+    if (null != selected) {
+      procedure.accept(key, selected);
+    }
+    // only the reduced value is kept, not the procedure and its buffers
+    partials.insert(key, new Partial<>(procedure.getReducedValue()));
+    stale = true;
+  }
+
+  private static class Partial<Model, Output, Result> implements ReductionContext<Model, Output, Result> {
+
+    private final Result value;
+
+    private Partial(Result value) {
+      this.value = value;
+    }
+
+    @Override
+    public <U> U readChunk(int column, short key) {
+      throw new IllegalStateException("Not implemented");
+    }
+
+    @Override
+    public void contribute(Result value, BinaryOperator<Result> op) {
+      throw new IllegalStateException("Not implemented");
+    }
+
+    @Override
+    public Result getReducedValue() {
+      return value;
+    }
+  }
+}
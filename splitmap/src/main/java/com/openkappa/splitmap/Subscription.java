@@ -0,0 +1,172 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.Container;
+
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Pushes the rows newly selected by a circuit to a listener as a {@link Mapper} flushes keys.
+ * The selection at each key is remembered, so each flush only evaluates the flushed key, and the
+ * delta is the difference between the new and remembered selections. Deltas accumulate into a
+ * pending batch on the ingesting thread, and at most one delivery of the pending batch is
+ * scheduled on the executor at a time, so a slow listener receives fewer, larger batches.
+ *
+ * @param <FilterModel> the filters of the mapper.
+ * @param <Aggregate>   the result of the standing query delivered with each batch.
+ */
+public class Subscription<FilterModel, Aggregate> implements KeyListener, AutoCloseable {
+
+  private static final Container EMPTY = new ArrayContainer();
+
+  private final QueryContext<FilterModel, ?> context;
+  private final Function<Slice<FilterModel, Container>, Container> circuit;
+  private final StandingQuery<FilterModel, ?, ?, ?, Aggregate> aggregate;
+  private final KeyInvolution involution;
+  private final Executor executor;
+  private final Consumer<Update<Aggregate>> listener;
+  private final Consumer<Subscription<FilterModel, Aggregate>> onClose;
+  private final FilterModel[] filters;
+  private final PrefixIndex<Container> selected = new PrefixIndex<>();
+  private PrefixIndex<Container> pending = new PrefixIndex<>();
+  private boolean scheduled;
+  private boolean closed;
+
+  Subscription(QueryContext<FilterModel, ?> context,
+               Function<Slice<FilterModel, Container>, Container> circuit,
+               StandingQuery<FilterModel, ?, ?, ?, Aggregate> aggregate,
+               KeyInvolution involution,
+               Executor executor,
+               Consumer<Update<Aggregate>> listener,
+               Consumer<Subscription<FilterModel, Aggregate>> onClose,
+               FilterModel... filters) {
+    this.context = context;
+    this.circuit = circuit;
+    this.aggregate = aggregate;
+    this.involution = involution;
+    this.executor = executor;
+    this.listener = listener;
+    this.onClose = onClose;
+    this.filters = filters;
+  }
+
+  /**
+   * Stops deliveries. A delivery already scheduled may still take place.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      pending = new PrefixIndex<>();
+    }
+    onClose.accept(this);
+  }
+
+  /**
+   * Remembers the selection at every key without delivering it.
+   */
+  synchronized void refreshAll() {
+    for (int wordIndex = 0; wordIndex < 1 << 10; ++wordIndex) {
+      long word = 0L;
+      for (FilterModel filter : filters) {
+        word |= context.getSplitMap(filter).getIndex().readKeyWord(wordIndex);
+      }
+      while (word != 0) {
+        short key = (short) (wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word));
+        Container selection = select(key);
+        if (null != selection) {
+          selected.insert(key, selection);
+        }
+        word &= (word - 1);
+      }
+    }
+  }
+
+  @Override
+  public void refresh(short key) {
+    Container selection = select(key);
+    if (null == selection) {
+      return;
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      Container previous = selected.get(key);
+      selected.insert(key, selection);
+      Container delta = null == previous ? selection : selection.andNot(previous);
+      if (delta.isEmpty()) {
+        return;
+      }
+      Container batched = pending.get(key);
+      pending.insert(key, null == batched ? delta : batched.or(delta));
+      if (!scheduled) {
+        scheduled = true;
+        executor.execute(this::deliver);
+      }
+    }
+  }
+
+  private Container select(short key) {
+    Slice<FilterModel, Container> slice = new Slice<>(EMPTY);
+    boolean present = false;
+    for (FilterModel filter : filters) {
+      Container container = context.getSplitMap(filter).getContainer(key);
+      if (null != container) {
+        slice.set(filter, container);
+        present = true;
+      }
+    }
+    return present ? circuit.apply(slice) : null;
+  }
+
+  private void deliver() {
+    PrefixIndex<Container> batch;
+    synchronized (this) {
+      batch = pending;
+      pending = new PrefixIndex<>();
+      scheduled = false;
+      if (closed || batch.isEmpty()) {
+        return;
+      }
+    }
+    listener.accept(new Update<>(new SplitMap(batch, involution),
+            null == aggregate ? null : aggregate.getResult()));
+  }
+
+  /**
+   * A batch of newly selected rows.
+   *
+   * @param <Aggregate> the result of the standing query delivered with the batch.
+   */
+  public static class Update<Aggregate> {
+
+    private final SplitMap rows;
+    private final Aggregate aggregate;
+
+    Update(SplitMap rows, Aggregate aggregate) {
+      this.rows = rows;
+      this.aggregate = aggregate;
+    }
+
+    /**
+     * Gets the rows selected since the previous batch.
+     *
+     * @return the new rows.
+     */
+    public SplitMap getRows() {
+      return rows;
+    }
+
+    /**
+     * Gets the result of the standing query when the batch was delivered.
+     *
+     * @return the aggregate, or null if the subscription has no standing query.
+     */
+    public Aggregate getAggregate() {
+      return aggregate;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.BitmapContainer;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.PeekableShortIterator;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import static java.lang.Integer.numberOfLeadingZeros;
+
+/**
+ * Circuits selecting rows by how many of the filters they match, e.g. "at least 2 of these 5
+ * conditions", to be passed to {@link Circuits#evaluate}. For each key, the number of containers
+ * holding each row is counted in bit-sliced counters over the 1024 words of the key: plane b
+ * holds bit b of every row's count, so each container is added with a carry chain over a few
+ * words instead of a combinatorial tree of ANDs and ORs. The counts are then compared with the
+ * threshold a plane at a time. Only rows matching at least one of the filters are considered.
+ */
+public final class Threshold {
+
+  private static final ThreadLocal<long[][]> PLANES = ThreadLocal.withInitial(() -> new long[0][]);
+  private static final ThreadLocal<long[]> WORDS = ThreadLocal.withInitial(() -> new long[1 << 10]);
+
+  private Threshold() {
+  }
+
+  /**
+   * Selects the rows matching at least k filters.
+   *
+   * @param k the minimum number of filters a row must match.
+   * @return the circuit.
+   */
+  public static <Filter> Function<Slice<Filter, Container>, Container> atLeast(int k) {
+    checkThreshold(k);
+    return slice -> evaluate(slice, k, size -> (planes, count, i) -> greaterOrEqual(planes, count, i, k));
+  }
+
+  /**
+   * Selects the rows matching exactly k filters.
+   *
+   * @param k the number of filters a row must match.
+   * @return the circuit.
+   */
+  public static <Filter> Function<Slice<Filter, Container>, Container> exactly(int k) {
+    checkThreshold(k);
+    return slice -> evaluate(slice, k, size -> (planes, count, i) -> equal(planes, count, i, k));
+  }
+
+  /**
+   * Selects the rows matching at least one and at most k filters.
+   *
+   * @param k the maximum number of filters a row may match.
+   * @return the circuit.
+   */
+  public static <Filter> Function<Slice<Filter, Container>, Container> atMost(int k) {
+    checkThreshold(k);
+    return slice -> evaluate(slice, 1, size ->
+            (planes, count, i) -> greaterOrEqual(planes, count, i, 1) & ~greaterOrEqual(planes, count, i, k + 1));
+  }
+
+  /**
+   * Selects the rows by the number of filters they match, for any symmetric boolean function,
+   * such as parity or majority. For each key, the predicate is tested once for every count up to
+   * the number of filters present at the key.
+   *
+   * @param counts accepts the numbers of filters a selected row may match.
+   * @return the circuit.
+   */
+  public static <Filter> Function<Slice<Filter, Container>, Container> symmetric(IntPredicate counts) {
+    return slice -> evaluate(slice, 1, size -> {
+      // no row can match more filters than the slice has, so only those counts are tested
+      int[] accepted = IntStream.rangeClosed(1, size).filter(counts).toArray();
+      if (accepted.length == 0) {
+        return null;
+      }
+      return (planes, count, i) -> {
+        long selected = 0L;
+        for (int c : accepted) {
+          selected |= equal(planes, count, i, c);
+        }
+        return selected;
+      };
+    });
+  }
+
+  private static void checkThreshold(int k) {
+    if (k < 1) {
+      throw new IllegalArgumentException("threshold must be at least 1, got " + k);
+    }
+  }
+
+  private static <Filter> Container evaluate(Slice<Filter, Container> slice,
+                                             int minimum,
+                                             IntFunction<Selector> selectors) {
+    int size = 0;
+    for (Container container : slice) {
+      ++size;
+    }
+    if (size < minimum) {
+      return null;
+    }
+    Selector selector = selectors.apply(size);
+    if (null == selector) {
+      return null;
+    }
+    int planeCount = 32 - numberOfLeadingZeros(size);
+    long[][] planes = planes(planeCount);
+    long[] words = WORDS.get();
+    for (Container container : slice) {
+      if (container.getCardinality() < 1 << 10) {
+        PeekableShortIterator it = container.getShortIterator();
+        while (it.hasNext()) {
+          int value = it.next() & 0xFFFF;
+          add(planes, planeCount, value >>> 6, 1L << value);
+        }
+      } else {
+        MaskUtils.toWords(container, words);
+        for (int i = 0; i < words.length; ++i) {
+          if (words[i] != 0) {
+            add(planes, planeCount, i, words[i]);
+          }
+        }
+      }
+    }
+    long[] selected = new long[1 << 10];
+    boolean empty = true;
+    for (int i = 0; i < selected.length; ++i) {
+      selected[i] = selector.select(planes, planeCount, i);
+      empty &= selected[i] == 0;
+    }
+    return empty ? null : new BitmapContainer(selected, -1).repairAfterLazy();
+  }
+
+  private static long[][] planes(int planeCount) {
+    long[][] planes = PLANES.get();
+    if (planes.length < planeCount) {
+      int length = planes.length;
+      planes = Arrays.copyOf(planes, planeCount);
+      for (int b = length; b < planeCount; ++b) {
+        planes[b] = new long[1 << 10];
+      }
+      PLANES.set(planes);
+    }
+    for (int b = 0; b < planeCount; ++b) {
+      Arrays.fill(planes[b], 0L);
+    }
+    return planes;
+  }
+
+  private static void add(long[][] planes, int planeCount, int i, long word) {
+    long carry = word;
+    for (int b = 0; b < planeCount && carry != 0; ++b) {
+      long overflow = planes[b][i] & carry;
+      planes[b][i] ^= carry;
+      carry = overflow;
+    }
+  }
+
+  private static long greaterOrEqual(long[][] planes, int planeCount, int i, int k) {
+    if (k >= 1 << planeCount) {
+      return 0L;
+    }
+    // compare from the most significant plane, keeping the rows known to be greater and those equal so far
+    long greater = 0L;
+    long equal = -1L;
+    for (int b = planeCount - 1; b >= 0; --b) {
+      long plane = planes[b][i];
+      if ((k & (1 << b)) != 0) {
+        equal &= plane;
+      } else {
+        greater |= equal & plane;
+        equal &= ~plane;
+      }
+    }
+    return greater | equal;
+  }
+
+  private static long equal(long[][] planes, int planeCount, int i, int k) {
+    if (k >= 1 << planeCount) {
+      return 0L;
+    }
+    long equal = -1L;
+    for (int b = 0; b < planeCount; ++b) {
+      long plane = planes[b][i];
+      equal &= (k & (1 << b)) != 0 ? plane : ~plane;
+    }
+    return equal;
+  }
+
+  private interface Selector {
+    long select(long[][] planes, int planeCount, int i);
+  }
+}
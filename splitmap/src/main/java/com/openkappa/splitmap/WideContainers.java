@@ -0,0 +1,193 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.BitmapContainer;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.PeekableShortIterator;
+import org.roaringbitmap.RunContainer;
+
+import java.util.Arrays;
+
+/**
+ * Unions and intersections of many containers stored at the same key. Each operation looks at
+ * the mix of containers before choosing how to combine them, rather than folding them together
+ * pairwise, which allocates an intermediate container per input.
+ */
+final class WideContainers {
+
+  private static final int MAX_ARRAY_SIZE = 4096;
+  private static final int FULL = 1 << 16;
+
+  private WideContainers() {
+  }
+
+  /**
+   * Computes the union of the containers. Arrays which would fit in an array together are merged
+   * with a priority queue, run containers are merged run by run, and any other mix is accumulated
+   * into a bitmap lazily so the cardinality is only computed once.
+   *
+   * @param containers the containers, which are not modified.
+   * @param count      the number of containers.
+   * @return the union, which may be one of the inputs.
+   */
+  static Container or(Container[] containers, int count) {
+    if (count == 1) {
+      return containers[0];
+    }
+    int arrays = 0;
+    int runs = 0;
+    int arrayCardinality = 0;
+    for (int i = 0; i < count; ++i) {
+      Container container = containers[i];
+      if (container instanceof ArrayContainer) {
+        ++arrays;
+        arrayCardinality += container.getCardinality();
+      } else if (container instanceof RunContainer) {
+        if (container.getCardinality() == FULL) {
+          return container;
+        }
+        ++runs;
+      }
+    }
+    if (arrays == count && arrayCardinality <= MAX_ARRAY_SIZE) {
+      return mergeArrays(containers, count, arrayCardinality);
+    }
+    if (runs == count) {
+      return mergeRuns(containers, count);
+    }
+    Container union = new BitmapContainer(new long[1 << 10], -1);
+    for (int i = 0; i < count; ++i) {
+      union = union.lazyIOR(containers[i]);
+    }
+    return union.repairAfterLazy();
+  }
+
+  /**
+   * Computes the intersection of the containers, starting from the smallest and stopping as soon
+   * as the intersection is empty. Full containers are skipped.
+   *
+   * @param containers the containers, which are not modified.
+   * @param count      the number of containers.
+   * @return the intersection, which may be one of the inputs, or null if it is empty.
+   */
+  static Container and(Container[] containers, int count) {
+    // order by cardinality, breaking ties by position
+    long[] order = new long[count];
+    for (int i = 0; i < count; ++i) {
+      order[i] = (long) containers[i].getCardinality() << 32 | i;
+    }
+    Arrays.sort(order);
+    Container intersection = containers[(int) order[0]];
+    if (intersection.isEmpty()) {
+      return null;
+    }
+    boolean copied = false;
+    for (int i = 1; i < count && (order[i] >>> 32) != FULL; ++i) {
+      Container next = containers[(int) order[i]];
+      if (copied) {
+        intersection = intersection.iand(next);
+      } else {
+        intersection = intersection.and(next);
+        copied = true;
+      }
+      if (intersection.isEmpty()) {
+        return null;
+      }
+    }
+    return intersection;
+  }
+
+  private static Container mergeArrays(Container[] containers, int count, int cardinality) {
+    // the heap holds the next value of each iterator in the high bits and the iterator in the low bits
+    PeekableShortIterator[] iterators = new PeekableShortIterator[count];
+    long[] heap = new long[count];
+    int size = 0;
+    for (int i = 0; i < count; ++i) {
+      PeekableShortIterator it = containers[i].getShortIterator();
+      if (it.hasNext()) {
+        iterators[i] = it;
+        heap[size++] = (long) (it.next() & 0xFFFF) << 32 | i;
+      }
+    }
+    for (int i = (size >>> 1) - 1; i >= 0; --i) {
+      siftDown(heap, i, size);
+    }
+    short[] content = new short[cardinality];
+    int written = 0;
+    int previous = -1;
+    while (size > 0) {
+      long top = heap[0];
+      int value = (int) (top >>> 32);
+      if (value != previous) {
+        content[written++] = (short) value;
+        previous = value;
+      }
+      PeekableShortIterator it = iterators[(int) top];
+      if (it.hasNext()) {
+        heap[0] = (long) (it.next() & 0xFFFF) << 32 | (int) top;
+      } else {
+        heap[0] = heap[--size];
+      }
+      siftDown(heap, 0, size);
+    }
+    return new ArrayContainer(written, content);
+  }
+
+  private static void siftDown(long[] heap, int i, int size) {
+    long item = heap[i];
+    int child;
+    while ((child = 2 * i + 1) < size) {
+      if (child + 1 < size && heap[child + 1] < heap[child]) {
+        ++child;
+      }
+      if (item <= heap[child]) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = item;
+  }
+
+  private static Container mergeRuns(Container[] containers, int count) {
+    int total = 0;
+    for (int i = 0; i < count; ++i) {
+      total += ((RunContainer) containers[i]).numberOfRuns();
+    }
+    // each run is encoded as its start and inclusive end, so sorting orders runs by start
+    long[] runs = new long[total];
+    int r = 0;
+    for (int i = 0; i < count; ++i) {
+      RunContainer container = (RunContainer) containers[i];
+      for (int j = 0; j < container.numberOfRuns(); ++j) {
+        int start = container.getValue(j) & 0xFFFF;
+        runs[r++] = (long) start << 32 | (start + (container.getLength(j) & 0xFFFF));
+      }
+    }
+    if (total == 0) {
+      return containers[0];
+    }
+    Arrays.sort(runs);
+    short[] valuesLength = new short[2 * total];
+    int merged = 0;
+    int start = (int) (runs[0] >>> 32);
+    int end = (int) runs[0];
+    for (int i = 1; i < total; ++i) {
+      int nextStart = (int) (runs[i] >>> 32);
+      int nextEnd = (int) runs[i];
+      if (nextStart <= end + 1) {
+        end = Math.max(end, nextEnd);
+      } else {
+        valuesLength[2 * merged] = (short) start;
+        valuesLength[2 * merged + 1] = (short) (end - start);
+        ++merged;
+        start = nextStart;
+        end = nextEnd;
+      }
+    }
+    valuesLength[2 * merged] = (short) start;
+    valuesLength[2 * merged + 1] = (short) (end - start);
+    ++merged;
+    return new RunContainer(valuesLength, merged).runOptimize();
+  }
+}
@@ -0,0 +1,163 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
+import org.roaringbitmap.Container;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+/**
+ * Estimates totals from a reduction over a sample of keys (see {@link Circuits#evaluateSample}).
+ * Each key is treated as a cluster: the per key totals are scaled up by the ratio of the population
+ * size to the sample size, and the variance of the per key totals gives the confidence bounds.
+ */
+public enum Approximate {
+  SUM,
+  SUM_SQUARES;
+
+  public static final int PARAMETER_COUNT = values().length;
+
+  /**
+   * Wraps a reduction producing a double so that the contribution of each key is recorded.
+   *
+   * @param procedure the reduction to estimate, e.g. Sum or SumProduct.
+   * @return a reducer which can be collected with {@link #estimate(SampledSplitMap, double)}
+   */
+  public static <Model>
+  ReductionProcedure<Model, Approximate, double[], Container> reducer(ReductionProcedure<Model, ?, Double, Container> procedure) {
+    ReductionContext<Model, Approximate, double[]> ctx = new DoubleArrayReductionContext<>(PARAMETER_COUNT, Approximate::ordinal);
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      double before = procedure.getReducedDouble();
+      procedure.accept(key, mask);
+      double contribution = procedure.getReducedDouble() - before;
+      ctx.contributeDouble(SUM, contribution, Reduction::add);
+      ctx.contributeDouble(SUM_SQUARES, contribution * contribution, Reduction::add);
+    });
+  }
+
+  /**
+   * Estimates the number of rows selected.
+   *
+   * @return a reducer which can be collected with {@link #estimate(SampledSplitMap, double)}
+   */
+  public static <Model>
+  ReductionProcedure<Model, Approximate, double[], Container> count() {
+    ReductionContext<Model, Approximate, double[]> ctx = new DoubleArrayReductionContext<>(PARAMETER_COUNT, Approximate::ordinal);
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      double cardinality = mask.getCardinality();
+      ctx.contributeDouble(SUM, cardinality, Reduction::add);
+      ctx.contributeDouble(SUM_SQUARES, cardinality * cardinality, Reduction::add);
+    });
+  }
+
+  /**
+   * Scales the sampled reduction up to the population.
+   *
+   * @param sample the sample the reduction was evaluated over.
+   * @param z      the number of standard errors either side of the estimate to report, e.g. 1.96 for 95% confidence.
+   * @return the estimate.
+   */
+  public static <Model>
+  Collector<ReductionContext<Model, Approximate, double[]>, double[], Estimate> estimate(SampledSplitMap sample, double z) {
+    return new EstimatingCollector<>(sample.getPopulationSize(), sample.getSampleSize(), z);
+  }
+
+  public static class Estimate {
+    private final double value;
+    private final double standardError;
+    private final double z;
+
+    Estimate(double value, double standardError, double z) {
+      this.value = value;
+      this.standardError = standardError;
+      this.z = z;
+    }
+
+    public double getValue() {
+      return value;
+    }
+
+    public double getStandardError() {
+      return standardError;
+    }
+
+    public double getLowerBound() {
+      return value - z * standardError;
+    }
+
+    public double getUpperBound() {
+      return value + z * standardError;
+    }
+
+    @Override
+    public String toString() {
+      return value + " ± " + (z * standardError);
+    }
+  }
+
+  private static class EstimatingCollector<Model>
+          implements Collector<ReductionContext<Model, Approximate, double[]>, double[], Estimate> {
+
+    private static final Set<Characteristics> CHARACTERISTICS = Set.of(UNORDERED);
+
+    private final int populationSize;
+    private final int sampleSize;
+    private final double z;
+
+    private EstimatingCollector(int populationSize, int sampleSize, double z) {
+      this.populationSize = populationSize;
+      this.sampleSize = sampleSize;
+      this.z = z;
+    }
+
+    @Override
+    public Supplier<double[]> supplier() {
+      return () -> new double[PARAMETER_COUNT];
+    }
+
+    @Override
+    public BiConsumer<double[], ReductionContext<Model, Approximate, double[]>> accumulator() {
+      return (l, r) -> Reduction.sumRightIntoLeft(l, r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<double[]> combiner() {
+      return Reduction::sum;
+    }
+
+    @Override
+    public Function<double[], Estimate> finisher() {
+      return factors -> {
+        if (sampleSize == 0) {
+          return new Estimate(populationSize == 0 ? 0D : Double.NaN, Double.POSITIVE_INFINITY, z);
+        }
+        double n = sampleSize;
+        double N = populationSize;
+        double sum = factors[SUM.ordinal()];
+        double sumSquares = factors[SUM_SQUARES.ordinal()];
+        double total = N * sum / n;
+        if (sampleSize == populationSize) {
+          return new Estimate(total, 0D, z);
+        }
+        if (sampleSize == 1) {
+          return new Estimate(total, Double.POSITIVE_INFINITY, z);
+        }
+        double variance = Math.max(0D, (sumSquares - sum * sum / n) / (n - 1));
+        double standardError = N * Math.sqrt((1 - n / N) * variance / n);
+        return new Estimate(total, standardError, z);
+      };
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import org.roaringbitmap.Container;
+
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * Finds the largest selected value and its original row id, skipping pages whose bounds show they can't contain it.
+ */
+public enum ArgMax {
+  ;
+
+  public static <Model>
+  ReductionProcedure<Model, ArgMax, Extremum, Container> reducer(PrefixIndex<ChunkedDoubleArray> input) {
+    return reducer(input, Involutions::reverse);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, ArgMax, Extremum, Container> reducer(PrefixIndex<ChunkedDoubleArray> input,
+                                                                 KeyInvolution involution) {
+    return Extremum.reducer(input, involution, 1D);
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, ArgMax, Extremum>, Extremum, Extremum> collector() {
+    return Extremum.collector(1D, Function.identity());
+  }
+}
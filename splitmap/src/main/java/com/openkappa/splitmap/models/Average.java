@@ -2,7 +2,8 @@ package com.openkappa.splitmap.models;
 
 import com.openkappa.splitmap.*;
 import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
-import org.roaringbitmap.*;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.RunContainer;
 
 import java.util.Set;
 import java.util.function.BiConsumer;
@@ -11,8 +12,6 @@ import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collector;
 
-import static java.lang.Long.lowestOneBit;
-import static java.lang.Long.numberOfTrailingZeros;
 import static java.util.stream.Collector.Characteristics.UNORDERED;
 
 public enum Average {
@@ -25,39 +24,19 @@ public enum Average {
   public static <Model>
   ReductionProcedure<Model, Average, double[], Container> reducer(PrefixIndex<ChunkedDoubleArray> input) {
     ReductionContext<Model, Average, double[]> ctx = new DoubleArrayReductionContext<>(PARAMETER_COUNT, Average::ordinal, input);
+    long[] words = new long[1 << 10];
     return ReductionProcedure.mixin(ctx, (key, mask) -> {
       ChunkedDoubleArray x = ctx.readChunk(0, key);
       double sum = mask instanceof RunContainer
               ? rleSum((RunContainer) mask, x)
-              : mask instanceof ArrayContainer
-              ? sum((ArrayContainer) mask, x)
-              : pagedSum((BitmapContainer) mask, x);
+              : mask.getCardinality() < MaskUtils.SPARSE_THRESHOLD
+              ? MaskUtils.sparseSum(mask, x)
+              : MaskUtils.sum(MaskUtils.toWords(mask, words), x);
       ctx.contributeDouble(SUM, sum, Reduction::add);
       ctx.contributeDouble(COUNT, mask.getCardinality(), Reduction::add);
     });
   }
 
-  private static double sum(ArrayContainer mask, ChunkedDoubleArray x) {
-    double result = 0D;
-    long pageMask = x.getPageMask();
-    PeekableShortIterator it = mask.getShortIterator();
-    while (pageMask != 0L) {
-      int j = numberOfTrailingZeros(pageMask);
-      double[] page = x.getPageNoCopy(j);
-      int rangeIndex = j * 1024;
-      int next;
-      while (it.hasNext() && (next = it.nextAsInt()) < rangeIndex + 1024) {
-        result += page[next - rangeIndex];
-      }
-      pageMask ^= lowestOneBit(pageMask);
-    }
-    return result;
-  }
-
-  private static double pagedSum(BitmapContainer mask, ChunkedDoubleArray x) {
-    return MaskUtils.pagedSum(mask, x);
-  }
-
   private static double rleSum(RunContainer mask, ChunkedDoubleArray x) {
     return MaskUtils.sum(mask, x);
   }
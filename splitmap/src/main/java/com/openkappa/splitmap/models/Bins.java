@@ -0,0 +1,154 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.ChunkedDoubleArray;
+import com.openkappa.splitmap.PrefixIndex;
+
+import java.util.Arrays;
+
+import static java.lang.Long.numberOfTrailingZeros;
+
+/**
+ * The bins of a {@link Histogram}. Bin i covers [edge i, edge i + 1), except that the last bin
+ * also includes its upper edge. Values outside the edges are counted as underflow or overflow, and
+ * so is NaN, which is counted as overflow.
+ */
+public abstract class Bins {
+
+  private final double[] edges;
+
+  private Bins(double[] edges) {
+    this.edges = edges;
+  }
+
+  /**
+   * Creates bins of equal width, which are assigned arithmetically.
+   *
+   * @param min   the lower edge of the first bin.
+   * @param max   the upper edge of the last bin.
+   * @param count the number of bins.
+   * @return the bins.
+   */
+  public static Bins uniform(double min, double max, int count) {
+    if (count <= 0 || !(min < max) || Double.isInfinite(max - min)) {
+      throw new IllegalArgumentException("Invalid bins: " + count + " over [" + min + ", " + max + "]");
+    }
+    return new Uniform(min, max, count);
+  }
+
+  /**
+   * Creates bins with arbitrary edges, which are assigned by binary search.
+   *
+   * @param edges the strictly increasing edges, one more than the number of bins.
+   * @return the bins.
+   */
+  public static Bins of(double... edges) {
+    if (edges.length < 2) {
+      throw new IllegalArgumentException("At least two edges are required");
+    }
+    for (int i = 1; i < edges.length; ++i) {
+      if (!(edges[i - 1] < edges[i])) {
+        throw new IllegalArgumentException("Edges must be strictly increasing: " + Arrays.toString(edges));
+      }
+    }
+    return new Edges(edges.clone());
+  }
+
+  /**
+   * Creates uniform bins spanning the range of the values, which is found from the page statistics
+   * without reading any values. The range covers every value other than NaN, whether selected or
+   * not.
+   *
+   * @param input the values.
+   * @param count the number of bins.
+   * @return the bins.
+   */
+  public static Bins adaptive(PrefixIndex<ChunkedDoubleArray> input, int count) {
+    double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+    input.forEach((key, x) -> {
+      long pageMask = x.getPageMask();
+      while (pageMask != 0) {
+        int j = numberOfTrailingZeros(pageMask);
+        range[0] = Math.min(range[0], x.getPageMin(j));
+        range[1] = Math.max(range[1], x.getPageMax(j));
+        pageMask &= (pageMask - 1);
+      }
+    });
+    if (range[0] > range[1]) {
+      return uniform(0D, 1D, count);
+    }
+    return uniform(range[0], range[0] == range[1] ? range[0] + 1D : range[1], count);
+  }
+
+  public int getCount() {
+    return edges.length - 1;
+  }
+
+  public double[] getEdges() {
+    return edges.clone();
+  }
+
+  /**
+   * Writes the slot of each value of the page: 0 for underflow, 1 + i for bin i and
+   * {@link #getCount()} + 1 for overflow, including NaN.
+   */
+  abstract void slots(double[] page, int[] slots);
+
+  private static final class Uniform extends Bins {
+
+    private final double min;
+    private final double max;
+    private final double scale;
+    private final int count;
+
+    private Uniform(double min, double max, int count) {
+      super(edges(min, max, count));
+      this.min = min;
+      this.max = max;
+      this.scale = count / (max - min);
+      this.count = count;
+    }
+
+    private static double[] edges(double min, double max, int count) {
+      double[] edges = new double[count + 1];
+      for (int i = 0; i < count; ++i) {
+        edges[i] = min + i * (max - min) / count;
+      }
+      edges[count] = max;
+      return edges;
+    }
+
+    @Override
+    void slots(double[] page, int[] slots) {
+      // no data dependent branches, so this compiles to conversions and min/max instructions
+      for (int k = 0; k < page.length; ++k) {
+        double value = page[k];
+        // NaN would be converted to bin 0, so it is sent to overflow as it is by binary search
+        int bin = value == max ? count - 1 : value != value ? count : (int) Math.floor((value - min) * scale);
+        slots[k] = Math.max(-1, Math.min(count, bin)) + 1;
+      }
+    }
+  }
+
+  private static final class Edges extends Bins {
+
+    private final double[] edges;
+
+    private Edges(double[] edges) {
+      super(edges);
+      this.edges = edges;
+    }
+
+    @Override
+    void slots(double[] page, int[] slots) {
+      int last = edges.length - 1;
+      for (int k = 0; k < page.length; ++k) {
+        double value = page[k];
+        int position = Arrays.binarySearch(edges, value);
+        // an exact match on an edge opens the bin above it, except for the last edge
+        int bin = position >= 0 ? Math.min(position, last - 1) : -position - 2;
+        // NaN sorts above every edge, so it is found past the last edge
+        slots[k] = !(value <= edges[last]) ? last + 1 : bin + 1;
+      }
+    }
+  }
+}
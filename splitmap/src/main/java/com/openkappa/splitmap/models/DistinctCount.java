@@ -0,0 +1,104 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.ObjectReductionContext;
+import org.roaringbitmap.Container;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+public enum DistinctCount {
+  ;
+
+  public static final int DEFAULT_PRECISION = 14;
+
+  public static <Model>
+  ReductionProcedure<Model, DistinctCount, HyperLogLog, Container> reducer(PrefixIndex<ChunkedDoubleArray> input) {
+    return reducer(input, DEFAULT_PRECISION);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, DistinctCount, HyperLogLog, Container> reducer(PrefixIndex<ChunkedDoubleArray> input,
+                                                                           int precision) {
+    ReductionContext<Model, DistinctCount, HyperLogLog> ctx = new ObjectReductionContext<>(new HyperLogLog(precision), input);
+    long[] words = new long[1 << 10];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      ChunkedDoubleArray x = ctx.readChunk(0, key);
+      HyperLogLog registers = ctx.getReducedValue();
+      if (mask.getCardinality() < MaskUtils.SPARSE_THRESHOLD) {
+        MaskUtils.sparseForEach(mask, x, registers::add);
+        return;
+      }
+      MaskUtils.toWords(mask, words);
+      long pageMask = x.getPageMask();
+      while (pageMask != 0) {
+        int j = numberOfTrailingZeros(pageMask);
+        double[] page = x.getPageNoCopy(j);
+        int wordOffset = j << 4;
+        for (int i = 0; i < 16; ++i) {
+          long word = words[wordOffset + i];
+          int offset = i << 6;
+          while (word != 0) {
+            registers.add(page[offset + numberOfTrailingZeros(word)]);
+            word &= (word - 1);
+          }
+        }
+        pageMask &= (pageMask - 1);
+      }
+    });
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, DistinctCount, HyperLogLog>, HyperLogLog, Long> collector() {
+    return collector(DEFAULT_PRECISION);
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, DistinctCount, HyperLogLog>, HyperLogLog, Long> collector(int precision) {
+    return new RegisterMergingCollector<>(precision);
+  }
+
+  private static class RegisterMergingCollector<Model>
+          implements Collector<ReductionContext<Model, DistinctCount, HyperLogLog>, HyperLogLog, Long> {
+
+    private static final Set<Characteristics> CHARACTERISTICS = Set.of(UNORDERED);
+
+    private final int precision;
+
+    private RegisterMergingCollector(int precision) {
+      this.precision = precision;
+    }
+
+    @Override
+    public Supplier<HyperLogLog> supplier() {
+      return () -> new HyperLogLog(precision);
+    }
+
+    @Override
+    public BiConsumer<HyperLogLog, ReductionContext<Model, DistinctCount, HyperLogLog>> accumulator() {
+      return (l, r) -> l.merge(r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<HyperLogLog> combiner() {
+      return HyperLogLog::merge;
+    }
+
+    @Override
+    public Function<HyperLogLog, Long> finisher() {
+      return HyperLogLog::cardinality;
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+}
@@ -0,0 +1,719 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
+import org.roaringbitmap.Container;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collector;
+
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.lang.invoke.MethodType.methodType;
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+/**
+ * An aggregate defined by an arithmetic expression over the metrics of a {@link QueryContext}, e.g.
+ * <pre>
+ *   sum(price * qty - fee)
+ *   sum(price * qty) / sum(qty)
+ *   avg(qty) * count()
+ * </pre>
+ * Metrics may only appear inside sum(...) and avg(...), and count() is the number of rows selected.
+ * Each aggregated expression is compiled into a chain of method handle combinators computing a
+ * row, wrapped in a loop over the rows of a page, so a page costs one invocation. Once the handle
+ * is hot it is compiled with the whole expression inlined into the loop, rather than making a
+ * virtual call per operator. Pages with many selected rows are evaluated over every row and
+ * masked without branching, the others only at the selected rows.
+ * A metric missing from a selected row reads as zero, whether or not other metrics are present,
+ * so e.g. sum(1 - price) always equals count() - sum(price). Rows without any metric aren't
+ * evaluated: each contributes the value of the aggregated expression over zeros.
+ */
+public class Expression {
+
+  public enum Aggregate {
+    SUM,
+    AVG,
+    COUNT
+  }
+
+  private static final double[] EMPTY_PAGE = new double[1 << 10];
+  /**
+   * Pages with at least this many selected rows are evaluated at every row.
+   */
+  private static final int DENSE_PAGE = 1 << 8;
+  private static final MethodHandle COLUMN;
+  private static final MethodHandle ADD;
+  private static final MethodHandle SUBTRACT;
+  private static final MethodHandle MULTIPLY;
+  private static final MethodHandle DIVIDE;
+  private static final MethodHandle NEGATE;
+  private static final MethodHandle ADD_SELECTED;
+
+  static {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+    try {
+      COLUMN = lookup.findStatic(Expression.class, "column",
+              methodType(double.class, double[][].class, int.class, int.class));
+      ADD = lookup.findStatic(Expression.class, "add", methodType(double.class, double.class, double.class));
+      SUBTRACT = lookup.findStatic(Expression.class, "subtract", methodType(double.class, double.class, double.class));
+      MULTIPLY = lookup.findStatic(Expression.class, "multiply", methodType(double.class, double.class, double.class));
+      DIVIDE = lookup.findStatic(Expression.class, "divide", methodType(double.class, double.class, double.class));
+      NEGATE = lookup.findStatic(Expression.class, "negate", methodType(double.class, double.class));
+      ADD_SELECTED = lookup.findStatic(Expression.class, "addSelected",
+              methodType(double.class, double.class, double.class, int.class, long[].class, int.class));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+  private static final Set<Collector.Characteristics> CHARACTERISTICS = Set.of(UNORDERED);
+
+  private final String source;
+  private final PrefixIndex<ChunkedDoubleArray>[] columns;
+  private final Node[] sums;
+  private final MethodHandle[] dense;
+  private final MethodHandle[] sparse;
+  private final ToDoubleFunction<double[]> result;
+
+  private Expression(String source,
+                     PrefixIndex<ChunkedDoubleArray>[] columns,
+                     Node[] sums,
+                     ToDoubleFunction<double[]> result) {
+    this.source = source;
+    this.columns = columns;
+    this.sums = sums;
+    // handles are immutable, so are shared by every reducer
+    MethodHandle[] rows = Arrays.stream(sums).map(Node::row).toArray(MethodHandle[]::new);
+    this.dense = Arrays.stream(rows).map(Expression::denseLoop).toArray(MethodHandle[]::new);
+    this.sparse = Arrays.stream(rows).map(Expression::sparseLoop).toArray(MethodHandle[]::new);
+    this.result = result;
+  }
+
+  /**
+   * Parses the expression and resolves its metrics.
+   *
+   * @param source  the expression.
+   * @param context the query context the metrics are resolved from.
+   * @param metrics maps the names in the expression to the context's metrics, e.g. PriceQty::valueOf
+   * @return the compiled expression.
+   * @throws IllegalArgumentException if the expression is malformed or names an unknown metric.
+   */
+  public static <MetricModel> Expression compile(String source,
+                                                 QueryContext<?, MetricModel> context,
+                                                 Function<String, MetricModel> metrics) {
+    Node root = new Parser(source).parse();
+    List<PrefixIndex<ChunkedDoubleArray>> columns = new ArrayList<>();
+    List<Node> sums = new ArrayList<>();
+    ToDoubleFunction<double[]> result = new Compiler<>(source, context, metrics, columns, sums).aggregate(root);
+    return new Expression(source, columns.toArray(PrefixIndex[]::new), sums.toArray(Node[]::new), result);
+  }
+
+  public <Model>
+  ReductionProcedure<Model, Aggregate, double[], Container> reducer() {
+    ReductionContext<Model, Aggregate, double[]> ctx
+            = new DoubleArrayReductionContext<>(1 + sums.length, Aggregate::ordinal, columns);
+    int columnCount = columns.length;
+    int sumCount = sums.length;
+    ChunkedDoubleArray[] arrays = new ChunkedDoubleArray[columnCount];
+    double[][] pages = new double[columnCount][];
+    long[] words = new long[1 << 10];
+    int[] positions = new int[DENSE_PAGE];
+    // the expressions are element-wise, so over zeros they produce the same value in every row
+    double[] onMissing = new double[sumCount];
+    Arrays.fill(pages, EMPTY_PAGE);
+    for (int s = 0; s < sumCount; ++s) {
+      positions[0] = 0;
+      onMissing[s] = sumSparse(sparse[s], pages, positions, 1);
+    }
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      long pageMask = 0L;
+      for (int c = 0; c < columnCount; ++c) {
+        arrays[c] = ctx.readChunk(c, key);
+        pageMask |= null == arrays[c] ? 0L : arrays[c].getPageMask();
+      }
+      int cardinality = mask.getCardinality();
+      int missing = cardinality;
+      if (pageMask != 0) {
+        MaskUtils.toWords(mask, words);
+      }
+      while (pageMask != 0) {
+        int j = numberOfTrailingZeros(pageMask);
+        int selected = selectedRows(words, j);
+        if (selected != 0) {
+          missing -= selected;
+          for (int c = 0; c < columnCount; ++c) {
+            pages[c] = null == arrays[c] || (arrays[c].getPageMask() & (1L << j)) == 0
+                    ? EMPTY_PAGE : arrays[c].getPageNoCopy(j);
+          }
+          if (selected >= DENSE_PAGE) {
+            for (int s = 0; s < sumCount; ++s) {
+              ctx.contributeDouble(1 + s, sumDense(dense[s], pages, words, j << 4), Reduction::add);
+            }
+          } else {
+            gather(words, j, positions);
+            for (int s = 0; s < sumCount; ++s) {
+              ctx.contributeDouble(1 + s, sumSparse(sparse[s], pages, positions, selected), Reduction::add);
+            }
+          }
+        }
+        pageMask &= (pageMask - 1);
+      }
+      if (missing != 0) {
+        for (int s = 0; s < sumCount; ++s) {
+          if (onMissing[s] != 0D) {
+            ctx.contributeDouble(1 + s, onMissing[s] * missing, Reduction::add);
+          }
+        }
+      }
+      ctx.contributeDouble(0, cardinality, Reduction::add);
+    });
+  }
+
+  public <Model>
+  Collector<ReductionContext<Model, Aggregate, double[]>, double[], Double> collector() {
+    return new ExpressionCollector<>();
+  }
+
+  @Override
+  public String toString() {
+    return source;
+  }
+
+  private static int selectedRows(long[] words, int pageIndex) {
+    int wordOffset = pageIndex << 4;
+    int count = 0;
+    for (int i = 0; i < 16; ++i) {
+      count += Long.bitCount(words[wordOffset + i]);
+    }
+    return count;
+  }
+
+  private static void gather(long[] words, int pageIndex, int[] positions) {
+    int wordOffset = pageIndex << 4;
+    int count = 0;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      while (word != 0) {
+        positions[count++] = (i << 6) + numberOfTrailingZeros(word);
+        word &= (word - 1);
+      }
+    }
+  }
+
+  private class ExpressionCollector<Model>
+          implements Collector<ReductionContext<Model, Aggregate, double[]>, double[], Double> {
+
+    @Override
+    public Supplier<double[]> supplier() {
+      return () -> new double[1 + sums.length];
+    }
+
+    @Override
+    public BiConsumer<double[], ReductionContext<Model, Aggregate, double[]>> accumulator() {
+      return (l, r) -> Reduction.sumRightIntoLeft(l, r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<double[]> combiner() {
+      return Reduction::sum;
+    }
+
+    @Override
+    public Function<double[], Double> finisher() {
+      return result::applyAsDouble;
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+
+  /**
+   * Resolves metrics to columns, allocates a slot for each distinct aggregated expression and
+   * compiles the rest of the expression to a function of the reduced slots, where slot 0 holds
+   * the count.
+   */
+  private static class Compiler<MetricModel> {
+    private final String source;
+    private final QueryContext<?, MetricModel> context;
+    private final Function<String, MetricModel> metrics;
+    private final List<PrefixIndex<ChunkedDoubleArray>> columns;
+    private final List<Node> sums;
+    private final List<String> sumKeys = new ArrayList<>();
+
+    private Compiler(String source,
+                     QueryContext<?, MetricModel> context,
+                     Function<String, MetricModel> metrics,
+                     List<PrefixIndex<ChunkedDoubleArray>> columns,
+                     List<Node> sums) {
+      this.source = source;
+      this.context = context;
+      this.metrics = metrics;
+      this.columns = columns;
+      this.sums = sums;
+    }
+
+    ToDoubleFunction<double[]> aggregate(Node node) {
+      if (node instanceof Constant) {
+        double value = ((Constant) node).value;
+        return factors -> value;
+      }
+      if (node instanceof Metric) {
+        throw new IllegalArgumentException("Metric " + ((Metric) node).name
+                + " must be aggregated with sum(...) or avg(...) in " + source);
+      }
+      if (node instanceof Negate) {
+        ToDoubleFunction<double[]> operand = aggregate(((Negate) node).operand);
+        return factors -> -operand.applyAsDouble(factors);
+      }
+      if (node instanceof Binary) {
+        Binary binary = (Binary) node;
+        ToDoubleFunction<double[]> left = aggregate(binary.left);
+        ToDoubleFunction<double[]> right = aggregate(binary.right);
+        switch (binary.operator) {
+          case '+':
+            return factors -> left.applyAsDouble(factors) + right.applyAsDouble(factors);
+          case '-':
+            return factors -> left.applyAsDouble(factors) - right.applyAsDouble(factors);
+          case '*':
+            return factors -> left.applyAsDouble(factors) * right.applyAsDouble(factors);
+          default:
+            return factors -> left.applyAsDouble(factors) / right.applyAsDouble(factors);
+        }
+      }
+      Call call = (Call) node;
+      if (call.aggregate == Aggregate.COUNT) {
+        return factors -> factors[0];
+      }
+      Node argument = resolve(call.argument);
+      ToDoubleFunction<double[]> sum;
+      if (argument instanceof Constant) {
+        // the sum of a constant doesn't depend on any metric
+        double value = ((Constant) argument).value;
+        sum = factors -> value * factors[0];
+      } else {
+        int slot = 1 + slot(argument);
+        sum = factors -> factors[slot];
+      }
+      return call.aggregate == Aggregate.AVG
+              ? factors -> sum.applyAsDouble(factors) / factors[0]
+              : sum;
+    }
+
+    private int slot(Node argument) {
+      String key = argument.toString();
+      int slot = sumKeys.indexOf(key);
+      if (slot < 0) {
+        slot = sums.size();
+        sumKeys.add(key);
+        sums.add(argument);
+      }
+      return slot;
+    }
+
+    /**
+     * Binds metrics to columns and folds constant subexpressions.
+     */
+    private Node resolve(Node node) {
+      if (node instanceof Constant) {
+        return node;
+      }
+      if (node instanceof Metric) {
+        Metric metric = (Metric) node;
+        MetricModel model;
+        try {
+          model = metrics.apply(metric.name);
+        } catch (IllegalArgumentException e) {
+          model = null;
+        }
+        PrefixIndex<ChunkedDoubleArray> column = null == model ? null : context.getMetric(model);
+        if (null == column) {
+          throw new IllegalArgumentException("Unknown metric " + metric.name + " in " + source);
+        }
+        int index = columns.indexOf(column);
+        if (index < 0) {
+          index = columns.size();
+          columns.add(column);
+        }
+        return new Metric(metric.name, index);
+      }
+      if (node instanceof Negate) {
+        Node operand = resolve(((Negate) node).operand);
+        return operand instanceof Constant ? new Constant(-((Constant) operand).value) : new Negate(operand);
+      }
+      if (node instanceof Binary) {
+        Binary binary = (Binary) node;
+        Node left = resolve(binary.left);
+        Node right = resolve(binary.right);
+        if (left instanceof Constant && right instanceof Constant) {
+          return new Constant(Binary.apply(binary.operator, ((Constant) left).value, ((Constant) right).value));
+        }
+        return new Binary(binary.operator, left, right);
+      }
+      throw new IllegalArgumentException("Aggregates can't be nested in " + source);
+    }
+  }
+
+  private static abstract class Node {
+    /**
+     * @return the value of the node at a row: (double[][] pages, int k) -> double.
+     */
+    MethodHandle row() {
+      throw new IllegalStateException(this + " can't be evaluated per row");
+    }
+  }
+
+  private static final class Constant extends Node {
+    private final double value;
+
+    private Constant(double value) {
+      this.value = value;
+    }
+
+    @Override
+    MethodHandle row() {
+      return MethodHandles.dropArguments(MethodHandles.constant(double.class, value), 0, double[][].class, int.class);
+    }
+
+    @Override
+    public String toString() {
+      return Double.toString(value);
+    }
+  }
+
+  private static final class Metric extends Node {
+    private final String name;
+    private final int column;
+
+    private Metric(String name, int column) {
+      this.name = name;
+      this.column = column;
+    }
+
+    @Override
+    MethodHandle row() {
+      return MethodHandles.insertArguments(COLUMN, 2, column);
+    }
+
+    @Override
+    public String toString() {
+      return "$" + column;
+    }
+  }
+
+  private static final class Negate extends Node {
+    private final Node operand;
+
+    private Negate(Node operand) {
+      this.operand = operand;
+    }
+
+    @Override
+    MethodHandle row() {
+      return MethodHandles.filterReturnValue(operand.row(), NEGATE);
+    }
+
+    @Override
+    public String toString() {
+      return "(-" + operand + ")";
+    }
+  }
+
+  private static final class Binary extends Node {
+    private final char operator;
+    private final Node left;
+    private final Node right;
+
+    private Binary(char operator, Node left, Node right) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+    static double apply(char operator, double left, double right) {
+      switch (operator) {
+        case '+':
+          return left + right;
+        case '-':
+          return left - right;
+        case '*':
+          return left * right;
+        default:
+          return left / right;
+      }
+    }
+
+    @Override
+    MethodHandle row() {
+      MethodHandle operation;
+      switch (operator) {
+        case '+':
+          operation = ADD;
+          break;
+        case '-':
+          operation = SUBTRACT;
+          break;
+        case '*':
+          operation = MULTIPLY;
+          break;
+        default:
+          operation = DIVIDE;
+      }
+      // both operands take the same pages and row
+      MethodHandle operands = MethodHandles.collectArguments(
+              MethodHandles.collectArguments(operation, 1, right.row()), 0, left.row());
+      return MethodHandles.permuteArguments(operands, methodType(double.class, double[][].class, int.class), 0, 1, 0, 1);
+    }
+
+    @Override
+    public String toString() {
+      return "(" + left + operator + right + ")";
+    }
+  }
+
+  private static final class Call extends Node {
+    private final Aggregate aggregate;
+    private final Node argument;
+
+    private Call(Aggregate aggregate, Node argument) {
+      this.aggregate = aggregate;
+      this.argument = argument;
+    }
+
+    @Override
+    public String toString() {
+      return aggregate.name().toLowerCase() + "(" + (null == argument ? "" : argument) + ")";
+    }
+  }
+
+  private static double column(double[][] pages, int k, int column) {
+    return pages[column][k];
+  }
+
+  private static double add(double x, double y) {
+    return x + y;
+  }
+
+  private static double subtract(double x, double y) {
+    return x - y;
+  }
+
+  private static double multiply(double x, double y) {
+    return x * y;
+  }
+
+  private static double divide(double x, double y) {
+    return x / y;
+  }
+
+  private static double negate(double x) {
+    return -x;
+  }
+
+  /**
+   * @return the accumulator plus the value if row k is selected by the words of its page.
+   */
+  private static double addSelected(double accumulator, double value, int k, long[] words, int wordOffset) {
+    // the value is masked rather than branched on, so rows outside the mask can't contribute NaN
+    long selected = -((words[wordOffset + (k >>> 6)] >>> k) & 1L);
+    return accumulator + longBitsToDouble(doubleToRawLongBits(value) & selected);
+  }
+
+  /**
+   * Loops the row handle over every row of a page, adding up the rows selected by the words of
+   * the page: (double[][] pages, long[] words, int wordOffset) -> double.
+   */
+  private static MethodHandle denseLoop(MethodHandle row) {
+    MethodHandle body = MethodHandles.permuteArguments(MethodHandles.collectArguments(ADD_SELECTED, 1, row),
+            methodType(double.class, double.class, int.class, double[][].class, long[].class, int.class),
+            0, 2, 1, 1, 3, 4);
+    MethodHandle iterations = MethodHandles.dropArguments(MethodHandles.constant(int.class, 1 << 10),
+            0, double[][].class, long[].class, int.class);
+    return MethodHandles.countedLoop(iterations, null, body);
+  }
+
+  /**
+   * Loops the row handle over the positions of the selected rows of a page, adding them up:
+   * (double[][] pages, int[] positions, int count) -> double.
+   */
+  private static MethodHandle sparseLoop(MethodHandle row) {
+    MethodHandle rowAt = MethodHandles.collectArguments(row, 1, MethodHandles.arrayElementGetter(int[].class));
+    MethodHandle body = MethodHandles.permuteArguments(MethodHandles.collectArguments(ADD, 1, rowAt),
+            methodType(double.class, double.class, int.class, double[][].class, int[].class, int.class),
+            0, 2, 3, 1);
+    MethodHandle iterations = MethodHandles.dropArguments(MethodHandles.identity(int.class),
+            0, double[][].class, int[].class);
+    return MethodHandles.countedLoop(iterations, null, body);
+  }
+
+  private static double sumDense(MethodHandle loop, double[][] pages, long[] words, int wordOffset) {
+    try {
+      return (double) loop.invokeExact(pages, words, wordOffset);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+
+  private static double sumSparse(MethodHandle loop, double[][] pages, int[] positions, int count) {
+    try {
+      return (double) loop.invokeExact(pages, positions, count);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new IllegalStateException(t);
+    }
+  }
+
+  /**
+   * expression := term (('+' | '-') term)*
+   * term       := factor (('*' | '/') factor)*
+   * factor     := number | name | name '(' expression? ')' | '(' expression ')' | '-' factor
+   * number     := digits ('.' digits?)? (('e' | 'E') ('+' | '-')? digits)? | '.' digits
+   */
+  private static class Parser {
+    private final String source;
+    private int position;
+
+    private Parser(String source) {
+      this.source = source;
+    }
+
+    Node parse() {
+      Node node = expression();
+      skipWhitespace();
+      if (position < source.length()) {
+        throw unexpected();
+      }
+      return node;
+    }
+
+    private Node expression() {
+      Node node = term();
+      char c;
+      while ((c = peek()) == '+' || c == '-') {
+        ++position;
+        node = new Binary(c, node, term());
+      }
+      return node;
+    }
+
+    private Node term() {
+      Node node = factor();
+      char c;
+      while ((c = peek()) == '*' || c == '/') {
+        ++position;
+        node = new Binary(c, node, factor());
+      }
+      return node;
+    }
+
+    private Node factor() {
+      char c = peek();
+      if (c == '-') {
+        ++position;
+        return new Negate(factor());
+      }
+      if (c == '(') {
+        ++position;
+        Node node = expression();
+        expect(')');
+        return node;
+      }
+      if (Character.isDigit(c) || c == '.') {
+        int start = position;
+        skipDigits();
+        if (position < source.length() && source.charAt(position) == '.') {
+          ++position;
+          skipDigits();
+        }
+        if (position < source.length() && (source.charAt(position) == 'e' || source.charAt(position) == 'E')) {
+          ++position;
+          if (position < source.length() && (source.charAt(position) == '+' || source.charAt(position) == '-')) {
+            ++position;
+          }
+          if (position == source.length() || !Character.isDigit(source.charAt(position))) {
+            throw unexpected();
+          }
+          skipDigits();
+        }
+        // a name can't start in the middle of a number, e.g. 2price
+        if (position < source.length()
+                && (Character.isJavaIdentifierPart(source.charAt(position)) || source.charAt(position) == '.')) {
+          throw unexpected();
+        }
+        try {
+          return new Constant(Double.parseDouble(source.substring(start, position)));
+        } catch (NumberFormatException e) {
+          position = start;
+          throw unexpected();
+        }
+      }
+      if (Character.isJavaIdentifierStart(c)) {
+        int start = position;
+        while (position < source.length() && Character.isJavaIdentifierPart(source.charAt(position))) {
+          ++position;
+        }
+        String name = source.substring(start, position);
+        if (peek() != '(') {
+          return new Metric(name, -1);
+        }
+        Aggregate aggregate;
+        try {
+          aggregate = Aggregate.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+          position = start;
+          throw new IllegalArgumentException("Unknown function " + name + " at position " + start + " in " + source);
+        }
+        ++position;
+        Node argument = null;
+        if (aggregate != Aggregate.COUNT) {
+          argument = expression();
+        }
+        expect(')');
+        return new Call(aggregate, argument);
+      }
+      throw unexpected();
+    }
+
+    private void expect(char c) {
+      if (peek() != c) {
+        throw unexpected();
+      }
+      ++position;
+    }
+
+    private char peek() {
+      skipWhitespace();
+      return position < source.length() ? source.charAt(position) : '\0';
+    }
+
+    private void skipDigits() {
+      while (position < source.length() && Character.isDigit(source.charAt(position))) {
+        ++position;
+      }
+    }
+
+    private void skipWhitespace() {
+      while (position < source.length() && Character.isWhitespace(source.charAt(position))) {
+        ++position;
+      }
+    }
+
+    private IllegalArgumentException unexpected() {
+      return new IllegalArgumentException(position < source.length()
+              ? "Unexpected '" + source.charAt(position) + "' at position " + position + " in " + source
+              : "Unexpected end of " + source);
+    }
+  }
+}
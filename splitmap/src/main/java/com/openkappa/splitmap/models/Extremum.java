@@ -0,0 +1,146 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.ObjectReductionContext;
+import org.roaringbitmap.Container;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+/**
+ * The smallest or largest selected value and the original (un-involuted) row it was found at.
+ * Ties are broken in favour of the lowest row, and NaN is never selected.
+ */
+public class Extremum {
+
+  private static final Set<Collector.Characteristics> CHARACTERISTICS = Set.of(UNORDERED);
+
+  // +1 for maxima, -1 for minima, so that larger signed values are always better
+  private final double sign;
+  private double signedValue;
+  private int row;
+  private boolean present;
+
+  Extremum(double sign) {
+    this.sign = sign;
+  }
+
+  public boolean isPresent() {
+    return present;
+  }
+
+  /**
+   * @return the extreme value, or NaN if nothing was selected.
+   */
+  public double getValue() {
+    return present ? sign * signedValue : Double.NaN;
+  }
+
+  /**
+   * @return the original row id of the extreme value, or -1 if nothing was selected.
+   */
+  public int getRow() {
+    return present ? row : -1;
+  }
+
+  @Override
+  public String toString() {
+    return present ? getValue() + "@" + row : "empty";
+  }
+
+  private boolean canBeImprovedUpon(double signedBound) {
+    return !present || signedBound >= signedValue;
+  }
+
+  private void offer(double signedValue, int row) {
+    if (signedValue != signedValue) {
+      return;
+    }
+    if (!present
+            || signedValue > this.signedValue
+            || (signedValue == this.signedValue && Integer.compareUnsigned(row, this.row) < 0)) {
+      this.signedValue = signedValue;
+      this.row = row;
+      this.present = true;
+    }
+  }
+
+  private Extremum merge(Extremum other) {
+    if (other.present) {
+      offer(other.signedValue, other.row);
+    }
+    return this;
+  }
+
+  static <Model, Output>
+  ReductionProcedure<Model, Output, Extremum, Container> reducer(PrefixIndex<ChunkedDoubleArray> input,
+                                                                 KeyInvolution involution,
+                                                                 double sign) {
+    ReductionContext<Model, Output, Extremum> ctx = new ObjectReductionContext<>(new Extremum(sign), input);
+    long[] words = new long[1 << 10];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      ChunkedDoubleArray x = ctx.readChunk(0, key);
+      Extremum best = ctx.getReducedValue();
+      int prefix = (involution.invert(key) & 0xFFFF) << 16;
+      MaskUtils.toWords(mask, words);
+      long pageMask = x.getPageMask();
+      while (pageMask != 0) {
+        int j = numberOfTrailingZeros(pageMask);
+        // skip pages which can't contain anything better than what has been found already, the
+        // bounds leave NaN out, which is never offered
+        if (best.canBeImprovedUpon(sign > 0 ? x.getPageMax(j) : -x.getPageMin(j))) {
+          double[] page = x.getPageNoCopy(j);
+          int wordOffset = j << 4;
+          for (int i = 0; i < 16; ++i) {
+            long word = words[wordOffset + i];
+            int offset = i << 6;
+            while (word != 0) {
+              int k = offset + numberOfTrailingZeros(word);
+              best.offer(sign * page[k], prefix | (j << 10) | k);
+              word &= (word - 1);
+            }
+          }
+        }
+        pageMask &= (pageMask - 1);
+      }
+    });
+  }
+
+  static <Model, Output, Result>
+  Collector<ReductionContext<Model, Output, Extremum>, Extremum, Result> collector(double sign,
+                                                                                   Function<Extremum, Result> finisher) {
+    return new Collector<>() {
+      @Override
+      public Supplier<Extremum> supplier() {
+        return () -> new Extremum(sign);
+      }
+
+      @Override
+      public BiConsumer<Extremum, ReductionContext<Model, Output, Extremum>> accumulator() {
+        return (l, r) -> l.merge(r.getReducedValue());
+      }
+
+      @Override
+      public BinaryOperator<Extremum> combiner() {
+        return Extremum::merge;
+      }
+
+      @Override
+      public Function<Extremum, Result> finisher() {
+        return finisher;
+      }
+
+      @Override
+      public Set<Characteristics> characteristics() {
+        return CHARACTERISTICS;
+      }
+    };
+  }
+}
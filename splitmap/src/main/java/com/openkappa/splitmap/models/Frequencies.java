@@ -0,0 +1,91 @@
+package com.openkappa.splitmap.models;
+
+import java.util.Arrays;
+
+/**
+ * The counts, and optionally the sums, of the values falling in each of a set of {@link Bins}.
+ */
+public class Frequencies {
+
+  private final Bins bins;
+  private final long[] counts;
+  private final double[] sums;
+
+  Frequencies(Bins bins, boolean withSums) {
+    this.bins = bins;
+    this.counts = new long[bins.getCount() + 2];
+    this.sums = withSums ? new double[bins.getCount() + 2] : null;
+  }
+
+  public Bins getBins() {
+    return bins;
+  }
+
+  /**
+   * @param bin the index of the bin.
+   * @return the number of values in the bin.
+   */
+  public long getCount(int bin) {
+    return counts[checkBin(bin) + 1];
+  }
+
+  /**
+   * @param bin the index of the bin.
+   * @return the sum of the values in the bin, or NaN if sums were not accumulated.
+   */
+  public double getSum(int bin) {
+    return null == sums ? Double.NaN : sums[checkBin(bin) + 1];
+  }
+
+  public long[] getCounts() {
+    return Arrays.copyOfRange(counts, 1, counts.length - 1);
+  }
+
+  public long getUnderflow() {
+    return counts[0];
+  }
+
+  public long getOverflow() {
+    return counts[counts.length - 1];
+  }
+
+  public long getTotalCount() {
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    return total;
+  }
+
+  long[] counts() {
+    return counts;
+  }
+
+  double[] sums() {
+    return sums;
+  }
+
+  Frequencies merge(Frequencies other) {
+    for (int i = 0; i < counts.length; ++i) {
+      counts[i] += other.counts[i];
+    }
+    if (null != sums && null != other.sums) {
+      for (int i = 0; i < sums.length; ++i) {
+        sums[i] += other.sums[i];
+      }
+    }
+    return this;
+  }
+
+  private int checkBin(int bin) {
+    if (bin < 0 || bin >= bins.getCount()) {
+      throw new IndexOutOfBoundsException("bin " + bin + " out of range [0, " + bins.getCount() + ")");
+    }
+    return bin;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(bins.getEdges()) + " " + Arrays.toString(counts);
+  }
+}
@@ -0,0 +1,154 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.RunContainer;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+/**
+ * Computes an aggregate for each of a family of groups (e.g. one SplitMap per instrument)
+ * in a single pass over the keys. At each key the filter is intersected with each group first,
+ * so only the groups with selected rows are reduced. The reduced vector holds the aggregated
+ * values of each group followed by the count of each group.
+ */
+public enum GroupBy {
+  SUM,
+  AVERAGE,
+  SUM_PRODUCT;
+
+  public static <Model>
+  ReductionProcedure<Model, GroupBy, double[], Container> sum(PrefixIndex<ChunkedDoubleArray> input,
+                                                              SplitMap... groups) {
+    ReductionContext<Model, GroupBy, double[]> ctx
+            = new DoubleArrayReductionContext<>(2 * groups.length, GroupBy::ordinal, input);
+    long[] words = new long[1 << 10];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      ChunkedDoubleArray x = ctx.readChunk(0, key);
+      for (int g = 0; g < groups.length; ++g) {
+        Container grouped = intersect(key, mask, groups, g, ctx);
+        if (null != grouped) {
+          double sum = grouped instanceof RunContainer
+                  ? MaskUtils.sum((RunContainer) grouped, x)
+                  : grouped.getCardinality() < MaskUtils.SPARSE_THRESHOLD
+                  ? MaskUtils.sparseSum(grouped, x)
+                  : MaskUtils.sum(MaskUtils.toWords(grouped, words), x);
+          ctx.contributeDouble(g, sum, Reduction::add);
+        }
+      }
+    });
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, GroupBy, double[], Container> sumProduct(PrefixIndex<ChunkedDoubleArray> x1,
+                                                                     PrefixIndex<ChunkedDoubleArray> y1,
+                                                                     SplitMap... groups) {
+    ReductionContext<Model, GroupBy, double[]> ctx
+            = new DoubleArrayReductionContext<>(2 * groups.length, GroupBy::ordinal, x1, y1);
+    long[] words = new long[1 << 10];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      ChunkedDoubleArray x = ctx.readChunk(0, key);
+      ChunkedDoubleArray y = ctx.readChunk(1, key);
+      for (int g = 0; g < groups.length; ++g) {
+        Container grouped = intersect(key, mask, groups, g, ctx);
+        if (null != grouped) {
+          double sumProduct = grouped instanceof RunContainer
+                  ? MaskUtils.sumProduct((RunContainer) grouped, x, y)
+                  : grouped.getCardinality() < MaskUtils.SPARSE_THRESHOLD
+                  ? MaskUtils.sparseSumProduct(grouped, x, y)
+                  : MaskUtils.sumProduct(MaskUtils.toWords(grouped, words), x, y);
+          ctx.contributeDouble(g, sumProduct, Reduction::add);
+        }
+      }
+    });
+  }
+
+  /**
+   * Intersects the filter with the group at the key and contributes the count of the group.
+   *
+   * @return the rows of the group selected at the key, or null if there are none.
+   */
+  private static Container intersect(short key,
+                                     Container mask,
+                                     SplitMap[] groups,
+                                     int g,
+                                     ReductionContext<?, GroupBy, double[]> ctx) {
+    Container group = groups[g].getContainer(key);
+    if (null == group || !mask.intersects(group)) {
+      return null;
+    }
+    Container grouped = mask.and(group);
+    ctx.contributeDouble(groups.length + g, grouped.getCardinality(), Reduction::add);
+    return grouped;
+  }
+
+  /**
+   * Collects the reduced values of the groups. The sum reducer's sums are divided by the counts
+   * for {@link #AVERAGE}.
+   *
+   * @param aggregate  the aggregate the reducer computed, or AVERAGE for the sum reducer.
+   * @param groupCount the number of groups.
+   * @return the value of the aggregate for each group.
+   */
+  public static <Model>
+  Collector<ReductionContext<Model, GroupBy, double[]>, double[], double[]> collector(GroupBy aggregate,
+                                                                                     int groupCount) {
+    return new GroupingCollector<>(aggregate, groupCount);
+  }
+
+  private static class GroupingCollector<Model>
+          implements Collector<ReductionContext<Model, GroupBy, double[]>, double[], double[]> {
+
+    private static final Set<Characteristics> CHARACTERISTICS = Set.of(UNORDERED);
+
+    private final GroupBy aggregate;
+    private final int groupCount;
+
+    private GroupingCollector(GroupBy aggregate, int groupCount) {
+      this.aggregate = aggregate;
+      this.groupCount = groupCount;
+    }
+
+    @Override
+    public Supplier<double[]> supplier() {
+      return () -> new double[2 * groupCount];
+    }
+
+    @Override
+    public BiConsumer<double[], ReductionContext<Model, GroupBy, double[]>> accumulator() {
+      return (l, r) -> Reduction.sumRightIntoLeft(l, r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<double[]> combiner() {
+      return Reduction::sum;
+    }
+
+    @Override
+    public Function<double[], double[]> finisher() {
+      return factors -> {
+        double[] result = Arrays.copyOf(factors, groupCount);
+        if (aggregate == AVERAGE) {
+          for (int g = 0; g < groupCount; ++g) {
+            result[g] /= factors[groupCount + g];
+          }
+        }
+        return result;
+      };
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.ObjectReductionContext;
+import org.roaringbitmap.Container;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.util.stream.Collector.Characteristics.IDENTITY_FINISH;
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+/**
+ * Counts the selected values falling in each bin, and optionally sums them. The bin of every value
+ * of a page is computed in one loop before the selected values are scattered into the bins.
+ */
+public enum Histogram {
+  ;
+
+  public static <Model>
+  ReductionProcedure<Model, Histogram, Frequencies, Container> reducer(PrefixIndex<ChunkedDoubleArray> input,
+                                                                      Bins bins) {
+    return reducer(input, bins, false);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, Histogram, Frequencies, Container> reducer(PrefixIndex<ChunkedDoubleArray> input,
+                                                                      Bins bins,
+                                                                      boolean withSums) {
+    ReductionContext<Model, Histogram, Frequencies> ctx
+            = new ObjectReductionContext<>(new Frequencies(bins, withSums), input);
+    long[] words = new long[1 << 10];
+    int[] slots = new int[1 << 10];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      ChunkedDoubleArray x = ctx.readChunk(0, key);
+      Frequencies frequencies = ctx.getReducedValue();
+      long[] counts = frequencies.counts();
+      double[] sums = frequencies.sums();
+      MaskUtils.toWords(mask, words);
+      long pageMask = x.getPageMask();
+      while (pageMask != 0) {
+        int j = numberOfTrailingZeros(pageMask);
+        int wordOffset = j << 4;
+        long selected = 0L;
+        for (int i = 0; i < 16; ++i) {
+          selected |= words[wordOffset + i];
+        }
+        if (selected == 0L) {
+          pageMask &= (pageMask - 1);
+          continue;
+        }
+        double[] page = x.getPageNoCopy(j);
+        bins.slots(page, slots);
+        for (int i = 0; i < 16; ++i) {
+          long word = words[wordOffset + i];
+          int offset = i << 6;
+          if (null == sums) {
+            while (word != 0) {
+              ++counts[slots[offset + numberOfTrailingZeros(word)]];
+              word &= (word - 1);
+            }
+          } else {
+            while (word != 0) {
+              int k = offset + numberOfTrailingZeros(word);
+              ++counts[slots[k]];
+              sums[slots[k]] += page[k];
+              word &= (word - 1);
+            }
+          }
+        }
+        pageMask &= (pageMask - 1);
+      }
+    });
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, Histogram, Frequencies>, Frequencies, Frequencies> collector(Bins bins) {
+    return collector(bins, false);
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, Histogram, Frequencies>, Frequencies, Frequencies> collector(Bins bins,
+                                                                                                boolean withSums) {
+    return new FrequencyMergingCollector<>(bins, withSums);
+  }
+
+  private static class FrequencyMergingCollector<Model>
+          implements Collector<ReductionContext<Model, Histogram, Frequencies>, Frequencies, Frequencies> {
+
+    private static final Set<Characteristics> CHARACTERISTICS = Set.of(UNORDERED, IDENTITY_FINISH);
+
+    private final Bins bins;
+    private final boolean withSums;
+
+    private FrequencyMergingCollector(Bins bins, boolean withSums) {
+      this.bins = bins;
+      this.withSums = withSums;
+    }
+
+    @Override
+    public Supplier<Frequencies> supplier() {
+      return () -> new Frequencies(bins, withSums);
+    }
+
+    @Override
+    public BiConsumer<Frequencies, ReductionContext<Model, Histogram, Frequencies>> accumulator() {
+      return (l, r) -> l.merge(r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<Frequencies> combiner() {
+      return Frequencies::merge;
+    }
+
+    @Override
+    public Function<Frequencies, Frequencies> finisher() {
+      return Function.identity();
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.openkappa.splitmap.models;
+
+/**
+ * A mergeable HyperLogLog sketch over 64 bit hashes with 2^precision single byte registers.
+ * The relative standard error of the estimate is roughly 1.04 / sqrt(2^precision).
+ */
+public class HyperLogLog {
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException("precision must be in [4, 18], got " + precision);
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /**
+   * Adds a value, treating -0.0 as 0.0 and all NaNs as the same value.
+   *
+   * @param value the value.
+   */
+  public void add(double value) {
+    addHash(hash(Double.doubleToLongBits(value == 0D ? 0D : value)));
+  }
+
+  public void add(long value) {
+    addHash(hash(value));
+  }
+
+  void addHash(long hash) {
+    int index = (int) (hash >>> (Long.SIZE - precision));
+    // the sentinel bit bounds the rank when the remaining bits are all zero
+    int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+    if (rank > registers[index]) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  /**
+   * Merges the other sketch into this sketch. The other sketch is not modified.
+   *
+   * @param other the sketch to merge, must have the same precision.
+   * @return this sketch.
+   */
+  public HyperLogLog merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Can't merge precision " + other.precision + " into " + precision);
+    }
+    for (int i = 0; i < registers.length; ++i) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+    return this;
+  }
+
+  public long cardinality() {
+    int m = registers.length;
+    double sum = 0D;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += Double.longBitsToDouble((1023L - register) << 52); // 2^-register
+      zeros += register == 0 ? 1 : 0;
+    }
+    double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros != 0) {
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  private static double alpha(int m) {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+
+  private static long hash(long value) {
+    // murmur3 finaliser
+    long h = value;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,29 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import org.roaringbitmap.Container;
+
+import java.util.stream.Collector;
+
+/**
+ * Finds the largest selected value, skipping pages whose bounds show they can't contain it.
+ */
+public enum Max {
+  ;
+
+  public static <Model>
+  ReductionProcedure<Model, Max, Extremum, Container> reducer(PrefixIndex<ChunkedDoubleArray> input) {
+    return reducer(input, Involutions::reverse);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, Max, Extremum, Container> reducer(PrefixIndex<ChunkedDoubleArray> input,
+                                                              KeyInvolution involution) {
+    return Extremum.reducer(input, involution, 1D);
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, Max, Extremum>, Extremum, Double> collector() {
+    return Extremum.collector(1D, Extremum::getValue);
+  }
+}
@@ -0,0 +1,301 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.PeekableShortIterator;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+/**
+ * Computes several aggregates over the same filter in a single pass. Every aggregate is
+ * derived from a shared set of moments (the count, the sum of each registered column and the
+ * sum of products of each pair of columns required), which are accumulated page by page with the
+ * shared page kernels, so each container is read once regardless of the number of aggregates.
+ *
+ * @param <Key> the type of the names the aggregates are registered under.
+ */
+public class MultiAggregate<Key> {
+
+  public enum Kind {
+    SUM,
+    AVERAGE,
+    SUM_PRODUCT,
+    PMCC
+  }
+
+  private static final Set<Collector.Characteristics> CHARACTERISTICS = Set.of(UNORDERED);
+
+  private final List<Key> keys;
+  private final List<Kind> kinds;
+  private final int[][] moments;
+  private final PrefixIndex<ChunkedDoubleArray>[] columns;
+  private final int[] left;
+  private final int[] right;
+  private final int size;
+
+  private MultiAggregate(List<Key> keys,
+                         List<Kind> kinds,
+                         int[][] moments,
+                         PrefixIndex<ChunkedDoubleArray>[] columns,
+                         int[] left,
+                         int[] right) {
+    this.keys = keys;
+    this.kinds = kinds;
+    this.moments = moments;
+    this.columns = columns;
+    this.left = left;
+    this.right = right;
+    this.size = 1 + columns.length + left.length;
+  }
+
+  public static <Key> Builder<Key> builder() {
+    return new Builder<>();
+  }
+
+  public <Model>
+  ReductionProcedure<Model, Kind, double[], Container> reducer() {
+    ReductionContext<Model, Kind, double[]> ctx = new DoubleArrayReductionContext<>(size, Kind::ordinal, columns);
+    int columnCount = columns.length;
+    int productCount = left.length;
+    long[] words = new long[1 << 10];
+    ChunkedDoubleArray[] arrays = new ChunkedDoubleArray[columnCount];
+    double[][] pages = new double[columnCount][];
+    PageKernels kernels = MaskUtils.kernels();
+    double[] sums = new double[columnCount];
+    double[] products = new double[productCount];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      long pageMask = 0L;
+      for (int c = 0; c < columnCount; ++c) {
+        arrays[c] = ctx.readChunk(c, key);
+        pageMask |= arrays[c].getPageMask();
+      }
+      Arrays.fill(sums, 0D);
+      Arrays.fill(products, 0D);
+      if (mask.getCardinality() < MaskUtils.SPARSE_THRESHOLD) {
+        // visit each selected row, loading the pages of the columns when the row moves to another page
+        PeekableShortIterator it = mask.getShortIterator();
+        int current = -1;
+        while (it.hasNext()) {
+          int next = it.nextAsInt();
+          int j = next >>> 10;
+          if (j != current) {
+            if ((pageMask & (1L << j)) == 0) {
+              continue;
+            }
+            for (int c = 0; c < columnCount; ++c) {
+              pages[c] = arrays[c].getPageNoCopy(j);
+            }
+            current = j;
+          }
+          int k = next & 0x3FF;
+          for (int c = 0; c < columnCount; ++c) {
+            if (null != pages[c]) {
+              sums[c] += pages[c][k];
+            }
+          }
+          for (int p = 0; p < productCount; ++p) {
+            double[] x = pages[left[p]];
+            double[] y = pages[right[p]];
+            if (null != x && null != y) {
+              products[p] = Math.fma(x[k], y[k], products[p]);
+            }
+          }
+        }
+      } else {
+        MaskUtils.toWords(mask, words);
+        while (pageMask != 0) {
+          int j = numberOfTrailingZeros(pageMask);
+          for (int c = 0; c < columnCount; ++c) {
+            pages[c] = (arrays[c].getPageMask() & (1L << j)) == 0 ? null : arrays[c].getPageNoCopy(j);
+            if (null != pages[c]) {
+              sums[c] += kernels.sum(words, j, pages[c]);
+            }
+          }
+          for (int p = 0; p < productCount; ++p) {
+            double[] x = pages[left[p]];
+            double[] y = pages[right[p]];
+            if (null != x && null != y) {
+              products[p] += kernels.sumProduct(words, j, x, y);
+            }
+          }
+          pageMask &= (pageMask - 1);
+        }
+      }
+      ctx.contributeDouble(0, mask.getCardinality(), Reduction::add);
+      for (int c = 0; c < columnCount; ++c) {
+        ctx.contributeDouble(1 + c, sums[c], Reduction::add);
+      }
+      for (int p = 0; p < productCount; ++p) {
+        ctx.contributeDouble(1 + columnCount + p, products[p], Reduction::add);
+      }
+    });
+  }
+
+  public <Model>
+  Collector<ReductionContext<Model, Kind, double[]>, double[], Map<Key, Double>> collector() {
+    return new MultiAggregateCollector<>();
+  }
+
+  private double evaluate(int aggregate, double[] factors) {
+    int[] m = moments[aggregate];
+    double n = factors[0];
+    switch (kinds.get(aggregate)) {
+      case SUM:
+      case SUM_PRODUCT:
+        return factors[m[0]];
+      case AVERAGE:
+        return factors[m[0]] / n;
+      case PMCC:
+        double sx = factors[m[0]];
+        double sy = factors[m[1]];
+        double sxx = factors[m[2]];
+        double syy = factors[m[3]];
+        double sxy = factors[m[4]];
+        return (n * sxy - sx * sy) / (Math.sqrt((n * syy - sy * sy) * (n * sxx - sx * sx)));
+      default:
+        throw new IllegalStateException("Unknown aggregate " + kinds.get(aggregate));
+    }
+  }
+
+  private class MultiAggregateCollector<Model>
+          implements Collector<ReductionContext<Model, Kind, double[]>, double[], Map<Key, Double>> {
+
+    @Override
+    public Supplier<double[]> supplier() {
+      return () -> new double[size];
+    }
+
+    @Override
+    public BiConsumer<double[], ReductionContext<Model, Kind, double[]>> accumulator() {
+      return (l, r) -> Reduction.sumRightIntoLeft(l, r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<double[]> combiner() {
+      return Reduction::sum;
+    }
+
+    @Override
+    public Function<double[], Map<Key, Double>> finisher() {
+      return factors -> {
+        Map<Key, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); ++i) {
+          result.put(keys.get(i), evaluate(i, factors));
+        }
+        return result;
+      };
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+
+  public static class Builder<Key> {
+    private final List<Key> keys = new ArrayList<>();
+    private final List<Kind> kinds = new ArrayList<>();
+    private final List<List<PrefixIndex<ChunkedDoubleArray>>> inputs = new ArrayList<>();
+
+    public Builder<Key> withSum(Key key, PrefixIndex<ChunkedDoubleArray> x) {
+      return with(key, Kind.SUM, List.of(x));
+    }
+
+    public Builder<Key> withAverage(Key key, PrefixIndex<ChunkedDoubleArray> x) {
+      return with(key, Kind.AVERAGE, List.of(x));
+    }
+
+    public Builder<Key> withSumProduct(Key key, PrefixIndex<ChunkedDoubleArray> x, PrefixIndex<ChunkedDoubleArray> y) {
+      return with(key, Kind.SUM_PRODUCT, List.of(x, y));
+    }
+
+    public Builder<Key> withPMCC(Key key, PrefixIndex<ChunkedDoubleArray> x, PrefixIndex<ChunkedDoubleArray> y) {
+      return with(key, Kind.PMCC, List.of(x, y));
+    }
+
+    private Builder<Key> with(Key key, Kind kind, List<PrefixIndex<ChunkedDoubleArray>> columns) {
+      if (keys.contains(key)) {
+        throw new IllegalStateException("Aggregate " + key + " already registered");
+      }
+      keys.add(key);
+      kinds.add(kind);
+      inputs.add(columns);
+      return this;
+    }
+
+    public MultiAggregate<Key> build() {
+      if (keys.isEmpty()) {
+        throw new IllegalStateException("Must register at least one aggregate");
+      }
+      List<PrefixIndex<ChunkedDoubleArray>> columns = new ArrayList<>();
+      for (List<PrefixIndex<ChunkedDoubleArray>> input : inputs) {
+        for (PrefixIndex<ChunkedDoubleArray> column : input) {
+          if (indexOf(columns, column) < 0) {
+            columns.add(column);
+          }
+        }
+      }
+      // pairs of columns whose products need to be accumulated, encoded as left * columnCount + right
+      List<Integer> products = new ArrayList<>();
+      int[][] moments = new int[keys.size()][];
+      for (int i = 0; i < keys.size(); ++i) {
+        List<PrefixIndex<ChunkedDoubleArray>> input = inputs.get(i);
+        int x = indexOf(columns, input.get(0));
+        switch (kinds.get(i)) {
+          case SUM:
+          case AVERAGE:
+            moments[i] = new int[]{1 + x};
+            break;
+          case SUM_PRODUCT:
+            moments[i] = new int[]{product(products, columns.size(), x, indexOf(columns, input.get(1)))};
+            break;
+          case PMCC:
+            int y = indexOf(columns, input.get(1));
+            moments[i] = new int[]{1 + x, 1 + y,
+                    product(products, columns.size(), x, x),
+                    product(products, columns.size(), y, y),
+                    product(products, columns.size(), x, y)};
+            break;
+          default:
+            throw new IllegalStateException("Unknown aggregate " + kinds.get(i));
+        }
+      }
+      int[] left = new int[products.size()];
+      int[] right = new int[products.size()];
+      for (int p = 0; p < products.size(); ++p) {
+        left[p] = products.get(p) / columns.size();
+        right[p] = products.get(p) % columns.size();
+      }
+      return new MultiAggregate<>(List.copyOf(keys), List.copyOf(kinds), moments,
+              columns.toArray(PrefixIndex[]::new), left, right);
+    }
+
+    private static int product(List<Integer> products, int columnCount, int x, int y) {
+      int pair = Math.min(x, y) * columnCount + Math.max(x, y);
+      int position = products.indexOf(pair);
+      if (position < 0) {
+        position = products.size();
+        products.add(pair);
+      }
+      return 1 + columnCount + position;
+    }
+
+    private static int indexOf(List<PrefixIndex<ChunkedDoubleArray>> columns, PrefixIndex<ChunkedDoubleArray> column) {
+      for (int i = 0; i < columns.size(); ++i) {
+        if (columns.get(i) == column) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+}
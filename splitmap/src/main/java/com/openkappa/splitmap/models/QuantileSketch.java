@@ -0,0 +1,241 @@
+package com.openkappa.splitmap.models;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A mergeable KLL quantile sketch. Items are added to a hierarchy of compactors, where each item at
+ * level h stands for 2^h input items. When the sketch is full, the lowest level over its capacity is
+ * sorted and every other item (starting at a random offset) is promoted to the next level. The sketch
+ * holds O(k) items regardless of the number of items seen, and the rank error is O(1/k).
+ */
+public class QuantileSketch {
+
+  private static final double DECAY = 2D / 3D;
+
+  private final int k;
+  private double[][] levels = new double[1][];
+  private int[] sizes = new int[1];
+  private int height = 1;
+  private int size;
+  private int capacity;
+  private long count;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public QuantileSketch(int k) {
+    if (k < 8) {
+      throw new IllegalArgumentException("k must be at least 8, got " + k);
+    }
+    this.k = k;
+    this.levels[0] = new double[k];
+    this.capacity = capacity(0);
+  }
+
+  public void update(double value) {
+    append(0, value);
+    ++count;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    if (size >= capacity) {
+      compress();
+    }
+  }
+
+  /**
+   * Merges the other sketch into this sketch. The other sketch is not modified.
+   *
+   * @param other the sketch to merge
+   * @return this sketch.
+   */
+  public QuantileSketch merge(QuantileSketch other) {
+    while (height < other.height) {
+      grow();
+    }
+    for (int h = 0; h < other.height; ++h) {
+      for (int i = 0; i < other.sizes[h]; ++i) {
+        append(h, other.levels[h][i]);
+      }
+    }
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    while (size >= capacity) {
+      compress();
+    }
+    return this;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  /**
+   * Estimates the value at the given rank.
+   *
+   * @param q the normalised rank, in [0, 1].
+   * @return the estimated quantile, or NaN if the sketch is empty.
+   */
+  public double quantile(double q) {
+    return quantiles(q)[0];
+  }
+
+  /**
+   * Estimates the values at the given ranks, sorting the retained items only once.
+   *
+   * @param qs the normalised ranks, in [0, 1].
+   * @return the estimated quantiles, NaN if the sketch is empty.
+   */
+  public double[] quantiles(double... qs) {
+    double[] result = new double[qs.length];
+    if (count == 0) {
+      Arrays.fill(result, Double.NaN);
+      return result;
+    }
+    double[] items = new double[size];
+    long[] weights = new long[size];
+    sorted(items, weights);
+    long totalWeight = 0;
+    for (long weight : weights) {
+      totalWeight += weight;
+    }
+    for (int i = 0; i < qs.length; ++i) {
+      double q = qs[i];
+      if (q < 0D || q > 1D) {
+        throw new IllegalArgumentException("quantile must be in [0, 1], got " + q);
+      }
+      if (q == 0D) {
+        result[i] = min;
+      } else if (q == 1D) {
+        result[i] = max;
+      } else {
+        double target = q * totalWeight;
+        long cumulative = 0;
+        int j = 0;
+        while (j < items.length - 1 && (cumulative += weights[j]) < target) {
+          ++j;
+        }
+        result[i] = items[j];
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Estimates the fraction of items less than or equal to the value.
+   *
+   * @param value the value.
+   * @return the estimated normalised rank.
+   */
+  public double rank(double value) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    long below = 0;
+    long total = 0;
+    for (int h = 0; h < height; ++h) {
+      long weight = 1L << h;
+      for (int i = 0; i < sizes[h]; ++i) {
+        if (levels[h][i] <= value) {
+          below += weight;
+        }
+      }
+      total += weight * sizes[h];
+    }
+    return (double) below / total;
+  }
+
+  private void sorted(double[] items, long[] weights) {
+    // each level is sorted and then merged into the items sorted so far
+    double[] buffer = new double[items.length];
+    long[] weightBuffer = new long[weights.length];
+    int merged = 0;
+    for (int h = 0; h < height; ++h) {
+      double[] level = levels[h];
+      int length = sizes[h];
+      Arrays.sort(level, 0, length);
+      long weight = 1L << h;
+      int i = 0;
+      int j = 0;
+      int k = 0;
+      while (i < merged && j < length) {
+        if (items[i] <= level[j]) {
+          buffer[k] = items[i];
+          weightBuffer[k++] = weights[i++];
+        } else {
+          buffer[k] = level[j++];
+          weightBuffer[k++] = weight;
+        }
+      }
+      while (i < merged) {
+        buffer[k] = items[i];
+        weightBuffer[k++] = weights[i++];
+      }
+      while (j < length) {
+        buffer[k] = level[j++];
+        weightBuffer[k++] = weight;
+      }
+      merged = k;
+      System.arraycopy(buffer, 0, items, 0, merged);
+      System.arraycopy(weightBuffer, 0, weights, 0, merged);
+    }
+  }
+
+  private void append(int level, double value) {
+    if (sizes[level] == levels[level].length) {
+      levels[level] = Arrays.copyOf(levels[level], Math.max(2, levels[level].length * 2));
+    }
+    levels[level][sizes[level]++] = value;
+    ++size;
+  }
+
+  private void compress() {
+    for (int h = 0; h < height; ++h) {
+      if (sizes[h] >= capacity(h)) {
+        if (h + 1 >= height) {
+          grow();
+        }
+        compact(h);
+        return;
+      }
+    }
+  }
+
+  private void compact(int level) {
+    double[] items = levels[level];
+    int length = sizes[level];
+    Arrays.sort(items, 0, length);
+    // an odd item out stays at this level
+    int pairs = length >>> 1;
+    int offset = ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
+    int start = length - 2 * pairs;
+    for (int i = 0; i < pairs; ++i) {
+      append(level + 1, items[start + 2 * i + offset]);
+    }
+    sizes[level] = start;
+    size -= 2 * pairs;
+  }
+
+  private void grow() {
+    levels = Arrays.copyOf(levels, height + 1);
+    sizes = Arrays.copyOf(sizes, height + 1);
+    levels[height] = new double[2];
+    ++height;
+    capacity = 0;
+    for (int h = 0; h < height; ++h) {
+      capacity += capacity(h);
+    }
+  }
+
+  private int capacity(int level) {
+    return Math.max(2, (int) Math.ceil(k * Math.pow(DECAY, height - 1 - level)));
+  }
+}
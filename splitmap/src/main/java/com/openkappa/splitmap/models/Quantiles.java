@@ -0,0 +1,104 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.ObjectReductionContext;
+import org.roaringbitmap.Container;
+
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.util.stream.Collector.Characteristics.IDENTITY_FINISH;
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+public enum Quantiles {
+  ;
+
+  public static final int DEFAULT_K = 200;
+
+  public static <Model>
+  ReductionProcedure<Model, Quantiles, QuantileSketch, Container> reducer(PrefixIndex<ChunkedDoubleArray> input) {
+    return reducer(input, DEFAULT_K);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, Quantiles, QuantileSketch, Container> reducer(PrefixIndex<ChunkedDoubleArray> input, int k) {
+    ReductionContext<Model, Quantiles, QuantileSketch> ctx = new ObjectReductionContext<>(new QuantileSketch(k), input);
+    long[] words = new long[1 << 10];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      ChunkedDoubleArray x = ctx.readChunk(0, key);
+      QuantileSketch sketch = ctx.getReducedValue();
+      if (mask.getCardinality() < MaskUtils.SPARSE_THRESHOLD) {
+        MaskUtils.sparseForEach(mask, x, sketch::update);
+        return;
+      }
+      MaskUtils.toWords(mask, words);
+      long pageMask = x.getPageMask();
+      while (pageMask != 0) {
+        int j = numberOfTrailingZeros(pageMask);
+        double[] page = x.getPageNoCopy(j);
+        int wordOffset = j << 4;
+        for (int i = 0; i < 16; ++i) {
+          long word = words[wordOffset + i];
+          int offset = i << 6;
+          while (word != 0) {
+            sketch.update(page[offset + numberOfTrailingZeros(word)]);
+            word &= (word - 1);
+          }
+        }
+        pageMask &= (pageMask - 1);
+      }
+    });
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, Quantiles, QuantileSketch>, QuantileSketch, QuantileSketch> collector() {
+    return collector(DEFAULT_K);
+  }
+
+  public static <Model>
+  Collector<ReductionContext<Model, Quantiles, QuantileSketch>, QuantileSketch, QuantileSketch> collector(int k) {
+    return new SketchMergingCollector<>(k);
+  }
+
+  private static class SketchMergingCollector<Model>
+          implements Collector<ReductionContext<Model, Quantiles, QuantileSketch>, QuantileSketch, QuantileSketch> {
+
+    private static final Set<Characteristics> CHARACTERISTICS = Set.of(UNORDERED, IDENTITY_FINISH);
+
+    private final int k;
+
+    private SketchMergingCollector(int k) {
+      this.k = k;
+    }
+
+    @Override
+    public Supplier<QuantileSketch> supplier() {
+      return () -> new QuantileSketch(k);
+    }
+
+    @Override
+    public BiConsumer<QuantileSketch, ReductionContext<Model, Quantiles, QuantileSketch>> accumulator() {
+      return (l, r) -> l.merge(r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<QuantileSketch> combiner() {
+      return QuantileSketch::merge;
+    }
+
+    @Override
+    public Function<QuantileSketch, QuantileSketch> finisher() {
+      return Function.identity();
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package com.openkappa.splitmap.models;
+
+import com.openkappa.splitmap.*;
+import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
+import org.roaringbitmap.Container;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import static java.lang.Long.bitCount;
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.util.stream.Collector.Characteristics.UNORDERED;
+
+/**
+ * Aggregates the selected rows into buckets of consecutive original row ids (e.g. time buckets when
+ * rows are assigned in time order) in a single pass. Each key is mapped back through the involution
+ * to the rows it holds, so a page which falls within a single bucket is reduced by the page kernels
+ * and only pages straddling a bucket boundary are visited row by row. The reduced vector holds the
+ * sum of each bucket followed by the count of each bucket; rows beyond the last bucket are ignored.
+ */
+public enum Rollup {
+  SUM,
+  COUNT,
+  AVERAGE;
+
+  public static <Model>
+  ReductionProcedure<Model, Rollup, double[], Container> sum(PrefixIndex<ChunkedDoubleArray> input,
+                                                             int bucketSize,
+                                                             int bucketCount) {
+    return sum(input, bucketSize, bucketCount, Involutions::reverse);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, Rollup, double[], Container> sum(PrefixIndex<ChunkedDoubleArray> input,
+                                                             int bucketSize,
+                                                             int bucketCount,
+                                                             KeyInvolution involution) {
+    return reducer(input, bucketSize, bucketCount, involution);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, Rollup, double[], Container> count(int bucketSize, int bucketCount) {
+    return count(bucketSize, bucketCount, Involutions::reverse);
+  }
+
+  public static <Model>
+  ReductionProcedure<Model, Rollup, double[], Container> count(int bucketSize,
+                                                               int bucketCount,
+                                                               KeyInvolution involution) {
+    return reducer(null, bucketSize, bucketCount, involution);
+  }
+
+  private static <Model>
+  ReductionProcedure<Model, Rollup, double[], Container> reducer(PrefixIndex<ChunkedDoubleArray> input,
+                                                                 int bucketSize,
+                                                                 int bucketCount,
+                                                                 KeyInvolution involution) {
+    if (bucketSize <= 0 || bucketCount <= 0) {
+      throw new IllegalArgumentException("bucket size and count must be positive, got "
+              + bucketSize + " and " + bucketCount);
+    }
+    ReductionContext<Model, Rollup, double[]> ctx = null == input
+            ? new DoubleArrayReductionContext<>(2 * bucketCount, Rollup::ordinal)
+            : new DoubleArrayReductionContext<>(2 * bucketCount, Rollup::ordinal, input);
+    PageKernels kernels = MaskUtils.kernels();
+    long limit = (long) bucketSize * bucketCount;
+    long[] words = new long[1 << 10];
+    return ReductionProcedure.mixin(ctx, (key, mask) -> {
+      ChunkedDoubleArray x = null == input ? null : ctx.readChunk(0, key);
+      long pageMask = null == x ? 0L : x.getPageMask();
+      long prefix = (long) (involution.invert(key) & 0xFFFF) << 16;
+      MaskUtils.toWords(mask, words);
+      for (int j = 0; j < 64; ++j) {
+        long first = prefix + (j << 10);
+        if (first >= limit) {
+          break;
+        }
+        int wordOffset = j << 4;
+        double[] page = (pageMask & (1L << j)) == 0 ? null : x.getPageNoCopy(j);
+        int bucket = (int) (first / bucketSize);
+        if (bucket == (first + 1023) / bucketSize) {
+          int count = 0;
+          for (int i = 0; i < 16; ++i) {
+            count += bitCount(words[wordOffset + i]);
+          }
+          if (count != 0) {
+            ctx.contributeDouble(bucketCount + bucket, count, Reduction::add);
+            if (null != page) {
+              double sum = count == 1024 ? x.getPageSum(j) : kernels.sum(words, j, page);
+              ctx.contributeDouble(bucket, sum, Reduction::add);
+            }
+          }
+        } else {
+          // the page straddles at least one boundary, so walk the rows and move the boundary along
+          long boundary = (long) (bucket + 1) * bucketSize;
+          double sum = 0D;
+          int count = 0;
+          for (int i = 0; i < 16; ++i) {
+            long word = words[wordOffset + i];
+            int offset = i << 6;
+            while (word != 0) {
+              int k = offset + numberOfTrailingZeros(word);
+              long row = first + k;
+              if (row >= boundary) {
+                flush(ctx, bucketCount, bucket, sum, count);
+                if (row >= limit) {
+                  return;
+                }
+                bucket = (int) (row / bucketSize);
+                boundary = (long) (bucket + 1) * bucketSize;
+                sum = 0D;
+                count = 0;
+              }
+              if (null != page) {
+                sum += page[k];
+              }
+              ++count;
+              word &= (word - 1);
+            }
+          }
+          flush(ctx, bucketCount, bucket, sum, count);
+        }
+      }
+    });
+  }
+
+  private static void flush(ReductionContext<?, Rollup, double[]> ctx,
+                            int bucketCount,
+                            int bucket,
+                            double sum,
+                            int count) {
+    if (count != 0) {
+      ctx.contributeDouble(bucket, sum, Reduction::add);
+      ctx.contributeDouble(bucketCount + bucket, count, Reduction::add);
+    }
+  }
+
+  /**
+   * Collects the reduced values of the buckets. The sum reducer's sums are divided by the counts
+   * for {@link #AVERAGE}.
+   *
+   * @param aggregate   the aggregate the reducer computed, or AVERAGE for the sum reducer.
+   * @param bucketCount the number of buckets.
+   * @return the value of the aggregate for each bucket.
+   */
+  public static <Model>
+  Collector<ReductionContext<Model, Rollup, double[]>, double[], double[]> collector(Rollup aggregate,
+                                                                                    int bucketCount) {
+    return new RollupCollector<>(aggregate, bucketCount);
+  }
+
+  private static class RollupCollector<Model>
+          implements Collector<ReductionContext<Model, Rollup, double[]>, double[], double[]> {
+
+    private static final Set<Characteristics> CHARACTERISTICS = Set.of(UNORDERED);
+
+    private final Rollup aggregate;
+    private final int bucketCount;
+
+    private RollupCollector(Rollup aggregate, int bucketCount) {
+      this.aggregate = aggregate;
+      this.bucketCount = bucketCount;
+    }
+
+    @Override
+    public Supplier<double[]> supplier() {
+      return () -> new double[2 * bucketCount];
+    }
+
+    @Override
+    public BiConsumer<double[], ReductionContext<Model, Rollup, double[]>> accumulator() {
+      return (l, r) -> Reduction.sumRightIntoLeft(l, r.getReducedValue());
+    }
+
+    @Override
+    public BinaryOperator<double[]> combiner() {
+      return Reduction::sum;
+    }
+
+    @Override
+    public Function<double[], double[]> finisher() {
+      return factors -> {
+        switch (aggregate) {
+          case COUNT:
+            return Arrays.copyOfRange(factors, bucketCount, 2 * bucketCount);
+          case AVERAGE:
+            double[] result = Arrays.copyOf(factors, bucketCount);
+            for (int b = 0; b < bucketCount; ++b) {
+              result[b] /= factors[bucketCount + b];
+            }
+            return result;
+          default:
+            return Arrays.copyOf(factors, bucketCount);
+        }
+      };
+    }
+
+    @Override
+    public Set<Characteristics> characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+}
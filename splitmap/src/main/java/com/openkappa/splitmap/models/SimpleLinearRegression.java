@@ -3,9 +3,9 @@ package com.openkappa.splitmap.models;
 import com.openkappa.splitmap.*;
 import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
 import org.roaringbitmap.Container;
-import org.roaringbitmap.PeekableShortIterator;
 import org.roaringbitmap.RunContainer;
 
+import java.util.Arrays;
 import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.BinaryOperator;
@@ -33,14 +33,18 @@ public enum SimpleLinearRegression {
                                                                                  PrefixIndex<ChunkedDoubleArray> x2) {
     ReductionContext<Model, SimpleLinearRegression, double[]> ctx
             = new DoubleArrayReductionContext<>(PARAMETER_COUNT, SimpleLinearRegression::ordinal, x1, x2);
+    long[] words = new long[1 << 10];
+    double[] moments = new double[PARAMETER_COUNT];
     return ReductionProcedure.mixin(ctx,
             (key, mask) -> {
               ChunkedDoubleArray x = ctx.readChunk(0, key);
               ChunkedDoubleArray y = ctx.readChunk(1, key);
               if (mask instanceof RunContainer) {
-                computeRLE((RunContainer) mask, x, y, ctx);
+                computeRLE((RunContainer) mask, x, y, moments, ctx);
+              } else if (mask.getCardinality() < MaskUtils.SPARSE_THRESHOLD) {
+                computeSparse(mask, x, y, moments, ctx);
               } else {
-                compute(mask, x, y, ctx);
+                compute(mask, MaskUtils.toWords(mask, words), x, y, moments, ctx);
               }
             }
     );
@@ -48,38 +52,51 @@ public enum SimpleLinearRegression {
 
 
   private static void compute(Container mask,
+                              long[] words,
                               ChunkedDoubleArray x,
                               ChunkedDoubleArray y,
+                              double[] moments,
                               ReductionContext<?, SimpleLinearRegression, double[]> ctx) {
-    PeekableShortIterator it = mask.getShortIterator();
+    PageKernels kernels = MaskUtils.kernels();
+    Arrays.fill(moments, 0D);
     long pageMask = x.getPageMask() & y.getPageMask();
-    double sx = 0D;
-    double sy = 0D;
-    double sxx = 0D;
-    double syy = 0D;
-    double sxy = 0D;
     while (pageMask != 0L) {
       int j = numberOfTrailingZeros(pageMask);
       double[] xPage = x.getPageNoCopy(j);
       double[] yPage = y.getPageNoCopy(j);
-      int rangeIndex = (j * 1024);
-      int next;
-      while (it.hasNext() && (next = it.nextAsInt()) < rangeIndex + 1024) {
-        double kx = xPage[next - rangeIndex];
-        double ky = yPage[next - rangeIndex];
-        sx += kx;
-        sy += ky;
-        sxx = Math.fma(kx, kx, sxx);
-        syy = Math.fma(ky, ky, syy);
-        sxy = Math.fma(kx, ky, sxy);
+      if (MaskUtils.isFullPage(words, j)) {
+        // only the cross term isn't known ahead of time for a full page
+        moments[SX.ordinal()] += x.getPageSum(j);
+        moments[SY.ordinal()] += y.getPageSum(j);
+        moments[SXX.ordinal()] += x.getPageSumOfSquares(j);
+        moments[SYY.ordinal()] += y.getPageSumOfSquares(j);
+        moments[SXY.ordinal()] += kernels.sumProduct(words, j, xPage, yPage);
+      } else {
+        kernels.moments(words, j, xPage, yPage, moments);
       }
       pageMask ^= lowestOneBit(pageMask);
     }
-    ctx.contributeDouble(SX, sx, Reduction::add);
-    ctx.contributeDouble(SY, sy, Reduction::add);
-    ctx.contributeDouble(SXX, sxx, Reduction::add);
-    ctx.contributeDouble(SYY, syy, Reduction::add);
-    ctx.contributeDouble(SXY, sxy, Reduction::add);
+    ctx.contributeDouble(SX, moments[SX.ordinal()], Reduction::add);
+    ctx.contributeDouble(SY, moments[SY.ordinal()], Reduction::add);
+    ctx.contributeDouble(SXX, moments[SXX.ordinal()], Reduction::add);
+    ctx.contributeDouble(SYY, moments[SYY.ordinal()], Reduction::add);
+    ctx.contributeDouble(SXY, moments[SXY.ordinal()], Reduction::add);
+    ctx.contributeDouble(N, mask.getCardinality(), Reduction::add);
+  }
+
+
+  private static void computeSparse(Container mask,
+                                    ChunkedDoubleArray x,
+                                    ChunkedDoubleArray y,
+                                    double[] moments,
+                                    ReductionContext<?, SimpleLinearRegression, double[]> ctx) {
+    Arrays.fill(moments, 0D);
+    MaskUtils.sparseMoments(mask, x, y, moments);
+    ctx.contributeDouble(SX, moments[SX.ordinal()], Reduction::add);
+    ctx.contributeDouble(SY, moments[SY.ordinal()], Reduction::add);
+    ctx.contributeDouble(SXX, moments[SXX.ordinal()], Reduction::add);
+    ctx.contributeDouble(SYY, moments[SYY.ordinal()], Reduction::add);
+    ctx.contributeDouble(SXY, moments[SXY.ordinal()], Reduction::add);
     ctx.contributeDouble(N, mask.getCardinality(), Reduction::add);
   }
 
@@ -87,30 +104,15 @@ public enum SimpleLinearRegression {
   private static void computeRLE(RunContainer mask,
                                  ChunkedDoubleArray x,
                                  ChunkedDoubleArray y,
+                                 double[] moments,
                                  ReductionContext<?, SimpleLinearRegression, double[]> ctx) {
-    double sx = 0D;
-    double sy = 0D;
-    double sxx = 0D;
-    double syy = 0D;
-    double sxy = 0D;
-    for (int i = 0; i < mask.numberOfRuns(); ++i) {
-      int start = mask.getValue(i) & 0xFFFF;
-      int end = start + mask.getLength(i) & 0xFFFF;
-      for (int j = start; j < end; ++j) {
-        double kx = x.get(j);
-        double ky = y.get(j);
-        sx += kx;
-        sy += ky;
-        sxx = Math.fma(kx, kx, sxx);
-        syy = Math.fma(ky, ky, syy);
-        sxy = Math.fma(kx, ky, sxy);
-      }
-    }
-    ctx.contributeDouble(SX, sx, Reduction::add);
-    ctx.contributeDouble(SY, sy, Reduction::add);
-    ctx.contributeDouble(SXX, sxx, Reduction::add);
-    ctx.contributeDouble(SYY, syy, Reduction::add);
-    ctx.contributeDouble(SXY, sxy, Reduction::add);
+    Arrays.fill(moments, 0D);
+    MaskUtils.moments(mask, x, y, moments);
+    ctx.contributeDouble(SX, moments[SX.ordinal()], Reduction::add);
+    ctx.contributeDouble(SY, moments[SY.ordinal()], Reduction::add);
+    ctx.contributeDouble(SXX, moments[SXX.ordinal()], Reduction::add);
+    ctx.contributeDouble(SYY, moments[SYY.ordinal()], Reduction::add);
+    ctx.contributeDouble(SXY, moments[SXY.ordinal()], Reduction::add);
     ctx.contributeDouble(N, mask.getCardinality(), Reduction::add);
   }
 
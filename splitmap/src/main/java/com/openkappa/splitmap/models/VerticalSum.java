@@ -3,7 +3,6 @@ package com.openkappa.splitmap.models;
 import com.openkappa.splitmap.*;
 import com.openkappa.splitmap.reduction.DoubleArrayReductionContext;
 import org.roaringbitmap.Container;
-import org.roaringbitmap.PeekableShortIterator;
 
 import java.util.Set;
 import java.util.function.BiConsumer;
@@ -15,6 +14,11 @@ import java.util.stream.Collector;
 import static java.lang.Long.numberOfTrailingZeros;
 import static java.util.stream.Collector.Characteristics.UNORDERED;
 
+/**
+ * Sums the values selected at each position within a page into one of 1024 lanes, so lane k
+ * holds the sum of the selected values at rows congruent to k modulo 1024. The lanes are added
+ * up by the horizontal sum.
+ */
 public enum VerticalSum {
   ;
   private static final HorizontalSumCollector SUM = new HorizontalSumCollector();
@@ -22,23 +26,24 @@ public enum VerticalSum {
   public static <Model>
   ReductionProcedure<Model, VerticalSum, double[], Container> reducer(PrefixIndex<ChunkedDoubleArray> input) {
     ReductionContext<Model, VerticalSum, double[]> ctx = new DoubleArrayReductionContext<>(1024, VerticalSum::ordinal, input);
+    double[] lanes = ctx.getReducedValue();
+    long[] words = new long[1 << 10];
+    PageKernels kernels = MaskUtils.kernels();
     return ReductionProcedure.mixin(ctx, (key, mask) -> {
       ChunkedDoubleArray x = ctx.readChunk(0, key);
+      if (null == x) {
+        return;
+      }
+      MaskUtils.toWords(mask, words);
       long pageMask = x.getPageMask();
-      PeekableShortIterator it = mask.getShortIterator();
       while (pageMask != 0) {
-        int pageIndex = numberOfTrailingZeros(pageMask);
-        int offset = 1024 * pageIndex;
-        double[] page = x.getPageNoCopy(pageIndex);
-        if (mask.contains(offset, offset + 1024)) {
+        int j = numberOfTrailingZeros(pageMask);
+        double[] page = x.getPageNoCopy(j);
+        if (MaskUtils.isFullPage(words, j)) {
           ctx.contribute(page, Reduction::sumRightIntoLeft);
-        } else { // slow path
-          int next;
-          double sum = 0D;
-          while (it.hasNext() && (next = it.nextAsInt()) < offset + 1024) {
-            sum += page[next - offset];
-          }
-          ctx.contributeDouble(0, sum, Reduction::add);
+        } else {
+          // each selected value goes in the lane of its position in the page
+          kernels.accumulate(words, j, page, lanes);
         }
         pageMask &= (pageMask - 1);
       }
@@ -0,0 +1,33 @@
+package com.openkappa.splitmap.reduction;
+
+import com.openkappa.splitmap.PrefixIndex;
+import com.openkappa.splitmap.ReductionContext;
+
+import java.util.function.BinaryOperator;
+
+public class ObjectReductionContext<I, O, V> implements ReductionContext<I, O, V> {
+
+  private final PrefixIndex[] inputs;
+
+  private V output;
+
+  public ObjectReductionContext(V initial, PrefixIndex... inputs) {
+    this.inputs = inputs;
+    this.output = initial;
+  }
+
+  @Override
+  public <U> U readChunk(int column, short key) {
+    return (U) inputs[column].get(key);
+  }
+
+  @Override
+  public void contribute(V value, BinaryOperator<V> op) {
+    output = op.apply(output, value);
+  }
+
+  @Override
+  public V getReducedValue() {
+    return output;
+  }
+}
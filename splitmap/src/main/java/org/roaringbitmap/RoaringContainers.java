@@ -0,0 +1,24 @@
+package org.roaringbitmap;
+
+/**
+ * Appends containers to a RoaringBitmap without copying them, so SplitMaps can be converted to
+ * RoaringBitmaps cheaply. RoaringBitmap has no public way to do this, so this class lives in its
+ * package and relies on RoaringArray's protected append, which must be checked whenever the
+ * RoaringBitmap version changes. Reading containers goes through the public ContainerPointer.
+ */
+public final class RoaringContainers {
+
+  private RoaringContainers() {
+  }
+
+  /**
+   * Appends the container to the bitmap, which must not contain the key or any greater key.
+   *
+   * @param bitmap    the bitmap.
+   * @param key       the high 16 bits of the values of the container.
+   * @param container the container, which is not copied.
+   */
+  public static void append(RoaringBitmap bitmap, short key, Container container) {
+    bitmap.highLowContainer.append(key, container);
+  }
+}
@@ -0,0 +1,113 @@
+package com.openkappa.splitmap;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Converts each mask word into a vector mask per group of lanes and performs masked
+ * lane-wise adds and FMAs. Only loaded when jdk.incubator.vector is available.
+ */
+final class VectorPageKernels implements PageKernels {
+
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+  private static final int LANES = SPECIES.length();
+
+  @Override
+  public double sum(long[] words, int pageIndex, double[] page) {
+    DoubleVector sum = DoubleVector.zero(SPECIES);
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      int offset = i << 6;
+      if (word == -1L) {
+        for (int j = 0; j < Long.SIZE; j += LANES) {
+          sum = sum.add(DoubleVector.fromArray(SPECIES, page, offset + j));
+        }
+      } else if (word != 0) {
+        for (int j = 0; j < Long.SIZE; j += LANES) {
+          VectorMask<Double> mask = VectorMask.fromLong(SPECIES, word >>> j);
+          sum = sum.add(DoubleVector.fromArray(SPECIES, page, offset + j), mask);
+        }
+      }
+    }
+    return sum.reduceLanes(VectorOperators.ADD);
+  }
+
+  @Override
+  public double sumProduct(long[] words, int pageIndex, double[] x, double[] y) {
+    DoubleVector sum = DoubleVector.zero(SPECIES);
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      int offset = i << 6;
+      if (word == -1L) {
+        for (int j = 0; j < Long.SIZE; j += LANES) {
+          DoubleVector vx = DoubleVector.fromArray(SPECIES, x, offset + j);
+          DoubleVector vy = DoubleVector.fromArray(SPECIES, y, offset + j);
+          sum = vx.fma(vy, sum);
+        }
+      } else if (word != 0) {
+        for (int j = 0; j < Long.SIZE; j += LANES) {
+          // unselected lanes load as zero, so contribute nothing to the products
+          VectorMask<Double> mask = VectorMask.fromLong(SPECIES, word >>> j);
+          DoubleVector vx = DoubleVector.fromArray(SPECIES, x, offset + j, mask);
+          DoubleVector vy = DoubleVector.fromArray(SPECIES, y, offset + j, mask);
+          sum = vx.fma(vy, sum);
+        }
+      }
+    }
+    return sum.reduceLanes(VectorOperators.ADD);
+  }
+
+  @Override
+  public void moments(long[] words, int pageIndex, double[] x, double[] y, double[] moments) {
+    DoubleVector sx = DoubleVector.zero(SPECIES);
+    DoubleVector sy = DoubleVector.zero(SPECIES);
+    DoubleVector sxx = DoubleVector.zero(SPECIES);
+    DoubleVector syy = DoubleVector.zero(SPECIES);
+    DoubleVector sxy = DoubleVector.zero(SPECIES);
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      if (word == 0) {
+        continue;
+      }
+      int offset = i << 6;
+      for (int j = 0; j < Long.SIZE; j += LANES) {
+        VectorMask<Double> mask = VectorMask.fromLong(SPECIES, word >>> j);
+        DoubleVector vx = DoubleVector.fromArray(SPECIES, x, offset + j, mask);
+        DoubleVector vy = DoubleVector.fromArray(SPECIES, y, offset + j, mask);
+        sx = sx.add(vx);
+        sy = sy.add(vy);
+        sxx = vx.fma(vx, sxx);
+        syy = vy.fma(vy, syy);
+        sxy = vx.fma(vy, sxy);
+      }
+    }
+    moments[0] += sx.reduceLanes(VectorOperators.ADD);
+    moments[1] += sy.reduceLanes(VectorOperators.ADD);
+    moments[2] += sxx.reduceLanes(VectorOperators.ADD);
+    moments[3] += syy.reduceLanes(VectorOperators.ADD);
+    moments[4] += sxy.reduceLanes(VectorOperators.ADD);
+  }
+
+  @Override
+  public void accumulate(long[] words, int pageIndex, double[] page, double[] target) {
+    int wordOffset = pageIndex << 4;
+    for (int i = 0; i < 16; ++i) {
+      long word = words[wordOffset + i];
+      if (word == 0) {
+        continue;
+      }
+      int offset = i << 6;
+      for (int j = 0; j < Long.SIZE; j += LANES) {
+        VectorMask<Double> mask = VectorMask.fromLong(SPECIES, word >>> j);
+        DoubleVector.fromArray(SPECIES, target, offset + j)
+                .add(DoubleVector.fromArray(SPECIES, page, offset + j), mask)
+                .intoArray(target, offset + j);
+      }
+    }
+  }
+}
@@ -2,6 +2,8 @@ package com.openkappa.splitmap;
 
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+
 import static org.testng.Assert.*;
 
 public class ChunkedDoubleArrayTest {
@@ -63,4 +65,54 @@ public class ChunkedDoubleArrayTest {
     assertEquals(result, Math.PI + 20.9 + 19.5 + 100, 1E-9);
   }
 
-}
\ No newline at end of file
+
+  @Test
+  public void pageStatisticsShouldBeComputedOnWriteAndTransfer() {
+    double[] page = new double[1 << 10];
+    page[10] = 3;
+    page[100] = -2;
+    ChunkedDoubleArray array = new ChunkedDoubleArray();
+    array.write(1, page);
+    double[] transferred = new double[1 << 10];
+    transferred[1000] = 5;
+    array.transfer(2, transferred);
+    assertEquals(array.getPageSum(1), 1D);
+    assertEquals(array.getPageSumOfSquares(1), 13D);
+    assertEquals(array.getPageMin(1), -2D);
+    assertEquals(array.getPageMax(1), 3D);
+    assertEquals(array.getPageCount(1), 1024);
+    assertEquals(array.getPageSum(2), 5D);
+    assertEquals(array.getPageMin(2), 0D);
+    assertEquals(array.getPageMax(2), 5D);
+    assertEquals(array.getPageCount(3), 0);
+    assertEquals(array.getPageMax(3), Double.NEGATIVE_INFINITY);
+  }
+
+  @Test
+  public void pageBoundsShouldLeaveNaNOut() {
+    double[] page = new double[1 << 10];
+    page[0] = Double.NaN;
+    page[1] = -7;
+    page[2] = 11;
+    page[1023] = Double.NaN;
+    ChunkedDoubleArray array = new ChunkedDoubleArray();
+    array.write(1, page);
+    double[] nans = new double[1 << 10];
+    Arrays.fill(nans, Double.NaN);
+    array.write(2, nans);
+    array.write(3, new double[1 << 10]);
+    assertTrue(array.containsNaN(1));
+    assertEquals(array.getPageMin(1), -7D);
+    assertEquals(array.getPageMax(1), 11D);
+    assertTrue(Double.isNaN(array.getPageSum(1)));
+    assertTrue(array.containsNaN(2));
+    assertEquals(array.getPageMin(2), Double.POSITIVE_INFINITY);
+    assertEquals(array.getPageMax(2), Double.NEGATIVE_INFINITY);
+    assertFalse(array.containsNaN(3));
+    assertFalse(array.containsNaN(4));
+    // rewriting the page clears the flag
+    array.write(1, new double[1 << 10]);
+    assertFalse(array.containsNaN(1));
+  }
+
+}
@@ -1,9 +1,21 @@
 package com.openkappa.splitmap;
 
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
 import org.testng.annotations.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
 import static java.util.Map.entry;
 import static java.util.Map.ofEntries;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 public class CircuitsTest {
@@ -62,4 +74,145 @@ public class CircuitsTest {
     assertTrue(result.contains(1 << 17 | 2));
   }
 
+
+  @Test
+  public void testAndNotVisitsOnlyIncludedKeys() {
+    SplitMapPageWriter w1 = new SplitMapPageWriter();
+    w1.add(0);
+    w1.add(1);
+    w1.add(1 << 16 | 1);
+    w1.add(1 << 17 | 1);
+
+    SplitMapPageWriter w2 = new SplitMapPageWriter();
+    w2.add(0);
+    w2.add(1 << 17 | 1);
+    w2.add(1 << 18);
+    QueryContext<Integer, ?> context = contextOf(w1, w2);
+
+    SplitMap result = Circuits.andNot(context, 0, 1);
+    assertEquals(result.getCardinality(), 2);
+    assertTrue(result.contains(1));
+    assertTrue(result.contains(1 << 16 | 1));
+    assertFalse(result.contains(0));
+    assertFalse(result.contains(1 << 17 | 1));
+
+    int[] evaluated = new int[1];
+    SplitMap within = Circuits.evaluateWithin(context, 0, slice -> {
+      ++evaluated[0];
+      Container difference = slice.get(0).andNot(slice.get(1));
+      return difference.isEmpty() ? null : difference;
+    }, 1);
+    assertEquals(evaluated[0], 3);
+    assertEquals(within.getCardinality(), 2);
+    assertTrue(within.contains(1));
+    assertTrue(within.contains(1 << 16 | 1));
+  }
+
+  @Test
+  public void testNotUsesTheRowsIngested() {
+    Mapper<Integer, String, Identity> mapper = Mapper.<Integer, String, Identity>builder()
+            .withFilter("even", x -> (x & 1) == 0)
+            .withFilter("small", x -> x < 1000)
+            .withMetricModel(Identity.class).build();
+    IntStream.range(0, 200_000).boxed().forEach(mapper::consume);
+    QueryContext<String, Identity> context = mapper.snapshot();
+    assertEquals(context.getUniverse().getCardinality(), 200_000);
+
+    SplitMap odd = Circuits.not(context, "even");
+    assertEquals(odd.getCardinality(), 100_000);
+    assertTrue(odd.contains(1));
+    assertTrue(odd.contains(199_999));
+    assertFalse(odd.contains(0));
+    assertFalse(odd.contains(200_001));
+
+    SplitMap large = Circuits.not(context, "small");
+    assertEquals(large.getCardinality(), 199_000);
+    assertFalse(large.contains(999));
+    assertTrue(large.contains(1000));
+  }
+
+  @Test
+  public void testManyFiltersShouldMatchSequentialUnion() {
+    Map<Integer, SplitMap> filters = new HashMap<>();
+    RoaringBitmap union = new RoaringBitmap();
+    for (int f = 0; f < 100; ++f) {
+      SplitMapPageWriter writer = new SplitMapPageWriter();
+      for (int i = f; i < 1 << 26; i += 100_003 + f) {
+        writer.add(i);
+        union.add(i);
+      }
+      filters.put(f, writer.toSplitMap());
+    }
+    QueryContext<Integer, ?> context = new QueryContext<>(filters, null);
+    Integer[] names = filters.keySet().toArray(Integer[]::new);
+    SplitMap result = Circuits.evaluate(context, slice -> {
+      Container or = new ArrayContainer();
+      for (Container container : slice) {
+        or = or.ior(container);
+      }
+      return or;
+    }, names);
+    assertEquals(result.getCardinality(), union.getLongCardinality());
+    assertEquals(result.toRoaring(), union);
+  }
+
+  @Test
+  public void wideOrAndAndShouldMatchRoaringBitmap() {
+    for (String mix : new String[]{"array", "run", "bitmap", "mixed"}) {
+      Map<Integer, SplitMap> filters = new HashMap<>();
+      RoaringBitmap[] bitmaps = new RoaringBitmap[200];
+      for (int f = 0; f < bitmaps.length; ++f) {
+        RoaringBitmap bitmap = new RoaringBitmap();
+        for (int key = 0; key < 8; ++key) {
+          int offset = key << 16;
+          String kind = mix.equals("mixed") ? new String[]{"array", "run", "bitmap"}[(f + key) % 3] : mix;
+          switch (kind) {
+            case "array":
+              for (int i = 0; i < 10; ++i) {
+                bitmap.add(offset + ThreadLocalRandom.current().nextInt(1 << 16));
+              }
+              bitmap.add(offset + 7);
+              break;
+            case "run":
+              int start = ThreadLocalRandom.current().nextInt(1 << 15);
+              bitmap.add((long) offset + start, (long) offset + start + ThreadLocalRandom.current().nextInt(1, 1 << 14));
+              bitmap.add((long) offset, (long) offset + 100);
+              break;
+            default:
+              for (int i = 0; i < 10_000; ++i) {
+                bitmap.add(offset + ThreadLocalRandom.current().nextInt(1 << 16));
+              }
+              bitmap.add(offset + 7);
+          }
+        }
+        if (f % 50 == 49) {
+          bitmap.add(9 << 16);
+        }
+        bitmap.runOptimize();
+        bitmaps[f] = bitmap;
+        filters.put(f, SplitMap.fromRoaring(bitmap, Involutions::reverse));
+      }
+      QueryContext<Integer, ?> context = new QueryContext<>(filters, null);
+      Integer[] names = filters.keySet().toArray(Integer[]::new);
+      assertEquals(Circuits.or(context, names).toRoaring(), FastAggregation.or(bitmaps), mix);
+      SplitMap and = Circuits.and(context, names);
+      assertEquals(and.toRoaring(), FastAggregation.and(bitmaps), mix);
+      assertEquals(and.getCardinality(), mix.equals("run") ? 800 : 8, mix);
+    }
+  }
+
+  enum Identity implements Metric<Integer> {
+    VALUE(Integer::doubleValue);
+    private final ToDoubleFunction<Integer> extractor;
+
+    Identity(ToDoubleFunction<Integer> extractor) {
+      this.extractor = extractor;
+    }
+
+    @Override
+    public ToDoubleFunction<Integer> extractor() {
+      return extractor;
+    }
+  }
+
 }
\ No newline at end of file
@@ -4,15 +4,24 @@ import com.openkappa.splitmap.models.Average;
 import com.openkappa.splitmap.models.Sum;
 import com.openkappa.splitmap.models.SumProduct;
 import com.openkappa.splitmap.models.VerticalSum;
+import org.roaringbitmap.RoaringBitmap;
 import org.testng.annotations.Test;
 
 import java.time.LocalDate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.openkappa.splitmap.MappingTest.MyMetrics.PRICE;
 import static com.openkappa.splitmap.MappingTest.MyMetrics.QUANTITY;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
 
 public class MappingTest {
 
@@ -63,6 +72,127 @@ public class MappingTest {
             .sum();
   }
 
+  @Test
+  public void standingQueriesShouldMatchFullEvaluation() {
+    Mapper<MyDomainObject, String, MyMetrics> mapper = Mapper.<MyDomainObject, String, MyMetrics>builder()
+            .withFilter("bar", x -> x.getName().equals("bar"))
+            .withFilter("expensive", x -> x.getPrice() > 5E5)
+            .withMetricModel(MyMetrics.class).build();
+    StandingQuery<String, ?, Average, double[], Double> avgPrice = mapper.register(
+            slice -> slice.get("bar").andNot(slice.get("expensive")),
+            ctx -> Average.reducer(ctx.getMetric(PRICE)),
+            Average.collector(),
+            "bar", "expensive");
+    StandingQuery<String, ?, SumProduct, Double, Double> revenue = null;
+    for (int batch = 0; batch < 5; ++batch) {
+      IntStream.range(0, 70_000)
+              .mapToObj(i -> randomDomainObject())
+              .forEach(mapper::consume);
+      if (batch == 1) {
+        revenue = mapper.register(
+                slice -> slice.get("expensive"),
+                ctx -> SumProduct.reducer(ctx.getMetric(PRICE), ctx.getMetric(QUANTITY)),
+                Collectors.summingDouble(ReductionContext::getReducedValue),
+                "expensive");
+      }
+      QueryContext<String, MyMetrics> df = mapper.snapshot();
+      double expectedAvgPrice = Circuits.evaluate(df, slice -> slice.get("bar").andNot(slice.get("expensive")), "bar", "expensive")
+              .stream()
+              .map(partition -> partition.reduce(Average.<MyMetrics>reducer(df.getMetric(PRICE))))
+              .collect(Average.collector());
+      // the expensive rows are excluded, so the filters must both match some rows
+      assertTrue(expectedAvgPrice > 0 && expectedAvgPrice <= 5E5);
+      assertEquals(avgPrice.getResult(), expectedAvgPrice, 1E-6 * expectedAvgPrice);
+      if (null != revenue) {
+        double expectedRevenue = df.getSplitMap("expensive")
+                .stream()
+                .mapToDouble(partition -> partition.reduceDouble(SumProduct.<MyMetrics>reducer(df.getMetric(PRICE), df.getMetric(QUANTITY))))
+                .sum();
+        assertTrue(expectedRevenue > 0);
+        assertEquals(revenue.getResult(), expectedRevenue, 1E-9 * expectedRevenue);
+      }
+    }
+  }
+
+  @Test
+  public void standingQueriesShouldSeeTheRowsConsumed() {
+    Mapper<MyDomainObject, String, MyMetrics> mapper = Mapper.<MyDomainObject, String, MyMetrics>builder()
+            .withFilter("expensive", x -> x.getPrice() > 5E5)
+            .withMetricModel(MyMetrics.class).build();
+    IntStream.range(0, 70_000)
+            .mapToObj(i -> randomDomainObject())
+            .forEach(mapper::consume);
+    AtomicReference<QueryContext<String, MyMetrics>> live = new AtomicReference<>();
+    mapper.register(slice -> slice.get("expensive"),
+            ctx -> {
+              live.set(ctx);
+              return Sum.reducer(ctx.getMetric(PRICE));
+            },
+            Collectors.toList(),
+            "expensive");
+    IntStream.range(0, 100_000)
+            .mapToObj(i -> randomDomainObject())
+            .forEach(mapper::consume);
+    QueryContext<String, MyMetrics> df = mapper.snapshot();
+    long expensive = df.getSplitMap("expensive").getCardinality();
+    assertEquals(live.get().getUniverse().getCardinality(), 170_000);
+    assertEquals(Circuits.not(live.get(), "expensive").getCardinality(), 170_000 - expensive);
+  }
+
+  @Test
+  public void subscriptionsShouldDeliverOnlyNewRows() throws InterruptedException {
+    Mapper<MyDomainObject, String, MyMetrics> mapper = Mapper.<MyDomainObject, String, MyMetrics>builder()
+            .withFilter("foo", x -> x.getName().equals("foo"))
+            .withFilter("expensive", x -> x.getPrice() > 5E5)
+            .withMetricModel(MyMetrics.class).build();
+    IntStream.range(0, 10_000)
+            .mapToObj(i -> randomDomainObject())
+            .forEach(mapper::consume);
+    RoaringBitmap before = mapper.snapshot().getSplitMap("expensive").toRoaring().clone();
+
+    StandingQuery<String, ?, Average, double[], Double> avgPrice = mapper.register(
+            slice -> slice.get("foo").and(slice.get("expensive")),
+            ctx -> Average.reducer(ctx.getMetric(PRICE)),
+            Average.collector(),
+            "foo", "expensive");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    RoaringBitmap delivered = new RoaringBitmap();
+    double[] lastAverage = new double[1];
+    // assertion errors thrown on the executor would be swallowed, so they are rethrown here
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Subscription<String, Double> subscription = mapper.subscribe(
+            slice -> slice.get("foo").and(slice.get("expensive")),
+            avgPrice,
+            executor,
+            update -> {
+              try {
+                RoaringBitmap rows = update.getRows().toRoaring();
+                assertFalse(RoaringBitmap.intersects(rows, delivered));
+                delivered.or(rows);
+                lastAverage[0] = update.getAggregate();
+              } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+              }
+            },
+            "foo", "expensive");
+
+    IntStream.range(0, 200_000)
+            .mapToObj(i -> randomDomainObject())
+            .forEach(mapper::consume);
+    QueryContext<String, MyMetrics> df = mapper.snapshot();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    subscription.close();
+    if (null != failure.get()) {
+      throw new AssertionError("Delivery failed", failure.get());
+    }
+
+    RoaringBitmap expected = RoaringBitmap.andNot(
+            RoaringBitmap.and(df.getSplitMap("foo").toRoaring(), df.getSplitMap("expensive").toRoaring()),
+            before);
+    assertEquals(delivered, expected);
+    assertEquals(lastAverage[0], avgPrice.getResult());
+  }
 
   enum MyMetrics implements Metric<MyDomainObject> {
     PRICE(MyDomainObject::getPrice),
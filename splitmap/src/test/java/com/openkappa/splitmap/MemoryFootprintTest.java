@@ -0,0 +1,102 @@
+package com.openkappa.splitmap;
+
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+
+public class MemoryFootprintTest {
+
+  @Test
+  public void pagesShouldBeCountedOnceWritten() {
+    ChunkedDoubleArray array = new ChunkedDoubleArray();
+    long empty = array.sizeInBytes();
+    array.write(0, new double[1 << 10]);
+    array.write(63, new double[1 << 10]);
+    assertEquals(array.sizeInBytes() - empty, 2 * (16 + 8 * 1024));
+  }
+
+  @Test
+  public void chunksShouldBeCountedOnceAllocated() {
+    PrefixIndex<String> index = new PrefixIndex<>();
+    long empty = index.sizeInBytes(value -> 0L);
+    // the key words and the chunk table are allocated up front
+    assertTrue(empty > 8 * 1024 + 4 * 1024);
+    index.insert((short) 0, "foo");
+    index.insert((short) 1, "bar");
+    index.insert((short) -1, "baz");
+    assertEquals(index.sizeInBytes(value -> 0L) - empty, 2 * (16 + 4 * 64));
+    assertEquals(index.sizeInBytes(value -> 100L) - empty, 2 * (16 + 4 * 64) + 300);
+  }
+
+  @Test
+  public void writersShouldKeepTheSizeOfWhatTheyFlush() {
+    SplitMapPageWriter filter = new SplitMapPageWriter();
+    DoubleArrayPageWriter metric = new DoubleArrayPageWriter(Involutions::reverse);
+    for (int i = 0; i < 3 << 16; i += 3) {
+      filter.add(i);
+      metric.add(i, i);
+      if (i == 100_000) {
+        // replaces the key written so far
+        filter.flush();
+        metric.flush();
+      }
+    }
+    SplitMap splitMap = filter.toSplitMap();
+    assertEquals(filter.sizeInBytes(), splitMap.sizeInBytes());
+    PrefixIndex<ChunkedDoubleArray> index = metric.toIndex();
+    assertEquals(metric.sizeInBytesWithoutPages() + metric.getPageBytes(),
+            index.sizeInBytes(ChunkedDoubleArray::sizeInBytes));
+  }
+
+  @Test
+  public void snapshotsShouldReportFootprintsAndRespectTheBudget() {
+    Mapper<Integer, String, Identity> mapper = Mapper.<Integer, String, Identity>builder()
+            .withFilter("even", x -> (x & 1) == 0)
+            .withFilter("small", x -> x < 1000)
+            .withMetricModel(Identity.class)
+            .withMemoryBudget(4_000_000)
+            .build();
+    IntStream.range(0, 1 << 17).boxed().forEach(mapper::consume);
+    QueryContext<String, Identity> context = mapper.snapshot();
+    MemoryFootprint<String, Identity> footprint = context.getMemoryFootprint();
+    // two bitmap containers against an array container
+    assertTrue(footprint.getFilterBytes().get("even") > footprint.getFilterBytes().get("small"));
+    // two keys of 64 pages
+    assertTrue(footprint.getMetricBytes().get(Identity.VALUE) > 2 * 64 * 8 * 1024);
+    assertEquals(footprint.getTotalBytes(), context.sizeInBytes());
+    Map<String, Long> metrics = footprint.toMetrics();
+    assertEquals(metrics.get("splitmap.total.bytes").longValue(), footprint.getTotalBytes());
+    assertEquals(metrics.get("splitmap.filter.even.bytes"), footprint.getFilterBytes().get("even"));
+
+    assertThrows(IllegalStateException.class,
+            () -> IntStream.range(1 << 17, 1 << 20).boxed().forEach(mapper::consume));
+    // the rows of the rejected key are not consumed, and the mapper stays within its budget
+    QueryContext<String, Identity> rejected = mapper.snapshot();
+    assertTrue(rejected.sizeInBytes() - rejected.getMemoryFootprint().getUniverseBytes() <= 4_000_000);
+    int rows = (int) rejected.getUniverse().getCardinality();
+    assertEquals(rows & 0xFFFF, 0);
+    assertTrue(rows < 1 << 20);
+    assertThrows(IllegalStateException.class, () -> mapper.consume(rows));
+    assertEquals(mapper.snapshot().getUniverse().getCardinality(), rows);
+  }
+
+  enum Identity implements Metric<Integer> {
+    VALUE(Integer::doubleValue);
+    private final ToDoubleFunction<Integer> extractor;
+
+    Identity(ToDoubleFunction<Integer> extractor) {
+      this.extractor = extractor;
+    }
+
+    @Override
+    public ToDoubleFunction<Integer> extractor() {
+      return extractor;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.Container;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.testng.Assert.assertEquals;
+
+public class PageKernelsTest {
+
+  @DataProvider
+  public Object[][] kernels() {
+    return new Object[][]{
+            {ScalarPageKernels.INSTANCE},
+            {MaskUtils.kernels()}
+    };
+  }
+
+  @Test(dataProvider = "kernels")
+  public void kernelsShouldAgreeWithBruteForce(PageKernels kernels) {
+    SplittableRandom random = new SplittableRandom(42);
+    // integral values keep the sums exact regardless of the order of accumulation
+    double[] x = new double[1 << 10];
+    double[] y = new double[1 << 10];
+    for (int i = 0; i < x.length; ++i) {
+      x[i] = random.nextInt(100);
+      y[i] = random.nextInt(100) - 50;
+    }
+    long[] words = new long[1 << 10];
+    for (long pattern : new long[]{0L, -1L, 1L, Long.MIN_VALUE, 0x5555555555555555L, 0x0101010101010101L}) {
+      for (int pageIndex : new int[]{0, 7, 63}) {
+        for (int i = 0; i < 16; ++i) {
+          words[(pageIndex << 4) + i] = pattern == 1L ? random.nextLong() : pattern;
+        }
+        double sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+        double[] lanes = new double[1 << 10];
+        Arrays.fill(lanes, 1);
+        double[] expectedLanes = lanes.clone();
+        for (int k = 0; k < 1024; ++k) {
+          if ((words[(pageIndex << 4) + (k >>> 6)] & (1L << k)) != 0) {
+            expectedLanes[k] += x[k];
+            sx += x[k];
+            sy += y[k];
+            sxx += x[k] * x[k];
+            syy += y[k] * y[k];
+            sxy += x[k] * y[k];
+          }
+        }
+        assertEquals(kernels.sum(words, pageIndex, x), sx);
+        assertEquals(kernels.sumProduct(words, pageIndex, x, y), sxy);
+        double[] moments = new double[]{1, 1, 1, 1, 1};
+        kernels.moments(words, pageIndex, x, y, moments);
+        assertEquals(moments, new double[]{1 + sx, 1 + sy, 1 + sxx, 1 + syy, 1 + sxy});
+        kernels.accumulate(words, pageIndex, x, lanes);
+        assertEquals(lanes, expectedLanes);
+      }
+    }
+  }
+
+  @Test(dataProvider = "kernels")
+  public void unselectedValuesShouldNotContribute(PageKernels kernels) {
+    double[] x = new double[1 << 10];
+    double[] y = new double[1 << 10];
+    Arrays.fill(x, Double.POSITIVE_INFINITY);
+    Arrays.fill(y, Double.NaN);
+    long[] words = new long[1 << 10];
+    for (int i = 0; i < 16; ++i) {
+      // dense enough for the branch-free loop
+      words[i] = 0x5555555555555555L;
+    }
+    for (int k = 0; k < 1024; k += 2) {
+      x[k] = 1;
+      y[k] = 2;
+    }
+    assertEquals(kernels.sum(words, 0, x), 512D);
+    assertEquals(kernels.sumProduct(words, 0, x, y), 1024D);
+    double[] moments = new double[5];
+    kernels.moments(words, 0, x, y, moments);
+    assertEquals(moments, new double[]{512, 1024, 512, 2048, 1024});
+    double[] lanes = new double[1 << 10];
+    kernels.accumulate(words, 0, x, lanes);
+    for (int k = 0; k < 1024; ++k) {
+      assertEquals(lanes[k], k % 2 == 0 ? 1D : 0D);
+    }
+  }
+
+  @Test
+  public void sparseMasksShouldAgreeWithTheMaskedKernels() {
+    SplittableRandom random = new SplittableRandom(42);
+    ChunkedDoubleArray x = new ChunkedDoubleArray();
+    ChunkedDoubleArray y = new ChunkedDoubleArray();
+    for (int j = 0; j < 64; j += 2) {
+      double[] page = new double[1 << 10];
+      for (int k = 0; k < page.length; ++k) {
+        page[k] = random.nextInt(100);
+      }
+      x.write(j, page);
+      // y is missing every fourth page
+      if (j % 4 != 0) {
+        y.write(j, page);
+      }
+    }
+    Container mask = new ArrayContainer();
+    while (mask.getCardinality() < MaskUtils.SPARSE_THRESHOLD - 1) {
+      mask = mask.add((short) random.nextInt(1 << 16));
+    }
+    long[] words = MaskUtils.toWords(mask, new long[1 << 10]);
+    assertEquals(MaskUtils.sparseSum(mask, x), MaskUtils.sum(words, x));
+    assertEquals(MaskUtils.pagedSum(mask.toBitmapContainer(), x), MaskUtils.sum(words, x));
+    double sumProduct = 0D;
+    for (int j = 0; j < 64; ++j) {
+      if (((x.getPageMask() & y.getPageMask()) & (1L << j)) != 0) {
+        sumProduct += MaskUtils.maskedSumProduct(words, j, x.getPageNoCopy(j), y.getPageNoCopy(j));
+      }
+    }
+    assertEquals(MaskUtils.sparseSumProduct(mask, x, y), sumProduct);
+  }
+
+  @Test
+  public void vectorKernelsShouldBeSelectedWhenAvailable() {
+    boolean available = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !"scalar".equals(System.getProperty("splitmap.kernels"));
+    assertEquals(MaskUtils.kernels().getClass().getSimpleName(),
+            available ? "VectorPageKernels" : "ScalarPageKernels");
+  }
+}
@@ -0,0 +1,146 @@
+package com.openkappa.splitmap;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class PageStoreTest {
+
+  private static final long PAGE = 16 + 8 * 1024;
+
+  @Test
+  public void evictedPagesShouldBeFaultedIn() throws IOException {
+    try (PageStore store = new PageStore(spillFile(), 4 * PAGE)) {
+      ChunkedDoubleArray array = new ChunkedDoubleArray();
+      for (int i = 0; i < 64; ++i) {
+        double[] page = new double[1 << 10];
+        for (int j = 0; j < page.length; ++j) {
+          page[j] = i * 1024 + j;
+        }
+        array.write(i, page);
+      }
+      double expected = array.reduce(0D, Double::sum);
+      store.manage(array);
+      assertEquals(Long.bitCount(array.getResidentPageMask()), 4);
+      assertEquals(array.getPageMask(), -1L);
+      assertEquals(store.getResidentBytes(), 4 * PAGE);
+      assertEquals(store.getSpilledBytes(), 60 * 8 * 1024);
+      assertEquals(array.get(12345), 12345D);
+      assertEquals(array.reduce(0D, Double::sum), expected);
+      assertTrue(store.getFaults() >= 60);
+      assertTrue(Long.bitCount(array.getResidentPageMask()) <= 4);
+      // pages reloaded from the file are not written again
+      assertEquals(store.getSpilledBytes(), 64 * 8 * 1024);
+    }
+  }
+
+  @Test
+  public void recentlyUsedPagesShouldStayResident() throws IOException {
+    try (PageStore store = new PageStore(spillFile(), Long.MAX_VALUE)) {
+      ChunkedDoubleArray array = new ChunkedDoubleArray();
+      for (int i = 0; i < 8; ++i) {
+        array.write(i, new double[1 << 10]);
+      }
+      store.manage(array);
+      array.getPageNoCopy(3);
+      assertEquals(store.evict(7 * PAGE), 7 * PAGE);
+      assertEquals(array.getResidentPageMask(), 1L << 3);
+      assertEquals(store.getEvictions(), 7);
+    }
+  }
+
+  @Test
+  public void releasedArraysShouldNotBeCounted() throws IOException {
+    try (PageStore store = new PageStore(spillFile(), Long.MAX_VALUE)) {
+      ChunkedDoubleArray array = new ChunkedDoubleArray();
+      for (int i = 0; i < 8; ++i) {
+        array.write(i, new double[1 << 10]);
+      }
+      store.manage(array);
+      store.evict(8 * PAGE);
+      assertEquals(store.getResidentBytes(), 0L);
+      store.release(array);
+      assertEquals(array.reduce(0D, Double::sum), 0D);
+      assertEquals(store.getFaults(), 8);
+      assertEquals(store.getResidentBytes(), 0L);
+    }
+  }
+
+  @Test
+  public void pagesOfDifferentArraysShouldBeFaultedInConcurrently() throws IOException {
+    try (PageStore store = new PageStore(spillFile(), 16 * PAGE)) {
+      List<ChunkedDoubleArray> arrays = new ArrayList<>();
+      for (int a = 0; a < 16; ++a) {
+        ChunkedDoubleArray array = new ChunkedDoubleArray();
+        for (int i = 0; i < 64; ++i) {
+          double[] page = new double[1 << 10];
+          Arrays.fill(page, a);
+          array.write(i, page);
+        }
+        store.manage(array);
+        arrays.add(array);
+      }
+      for (int round = 0; round < 4; ++round) {
+        double sum = arrays.parallelStream().mapToDouble(array -> array.reduce(0D, Double::sum)).sum();
+        assertEquals(sum, 120D * 64 * 1024);
+      }
+      assertTrue(store.getFaults() > 0);
+      assertTrue(store.getResidentBytes() <= 16 * PAGE);
+      long resident = arrays.stream().mapToLong(array -> Long.bitCount(array.getResidentPageMask())).sum();
+      assertEquals(store.getResidentBytes(), resident * PAGE);
+    }
+  }
+
+  @Test
+  public void snapshotsShouldSpillToRespectTheBudget() throws IOException {
+    try (PageStore store = new PageStore(spillFile(), Long.MAX_VALUE)) {
+      Mapper<Integer, String, Identity> mapper = Mapper.<Integer, String, Identity>builder()
+              .withFilter("even", x -> (x & 1) == 0)
+              .withMetricModel(Identity.class)
+              .withMemoryBudget(1_000_000)
+              .withPageStore(store)
+              .build();
+      IntStream.range(0, 1 << 18).boxed().forEach(mapper::consume);
+      QueryContext<String, Identity> context = mapper.snapshot();
+      assertTrue(context.sizeInBytes() - context.getMemoryFootprint().getUniverseBytes() <= 1_000_000);
+      assertTrue(store.getSpilledBytes() > 0);
+      double sum = context.getMetric(Identity.VALUE)
+              .reduceDouble(0D, page -> page.reduce(0D, Double::sum), Double::sum);
+      assertEquals(sum, ((double) (1 << 18) - 1) * (1 << 18) / 2);
+      // faulting every page in evicts others, so the snapshot stays within the budget
+      assertTrue(store.getFaults() > 0);
+      assertTrue(store.getBudget() < 1_000_000);
+      assertTrue(context.sizeInBytes() - context.getMemoryFootprint().getUniverseBytes() <= 1_000_000);
+    }
+  }
+
+  private static Path spillFile() throws IOException {
+    Path file = Files.createTempFile("splitmap", ".spill");
+    Files.delete(file);
+    return file;
+  }
+
+  enum Identity implements Metric<Integer> {
+    VALUE(Integer::doubleValue);
+    private final ToDoubleFunction<Integer> extractor;
+
+    Identity(ToDoubleFunction<Integer> extractor) {
+      this.extractor = extractor;
+    }
+
+    @Override
+    public ToDoubleFunction<Integer> extractor() {
+      return extractor;
+    }
+  }
+}
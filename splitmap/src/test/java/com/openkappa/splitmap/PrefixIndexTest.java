@@ -40,4 +40,21 @@ public class PrefixIndexTest {
     assertEquals(wordCount, 9);
   }
 
+
+  @Test
+  public void partitionsShouldCoverEveryWord() {
+    PrefixIndex<String> index = new PrefixIndex<>();
+    index.insert((short) 0, "first");
+    index.insert((short) -1, "last");
+    int[] next = new int[1];
+    long count = index.streamUniformPartitions()
+            .peek(partition -> {
+              assertEquals(partition.getMinChunkIndex(), next[0]);
+              next[0] = partition.getMaxChunkIndex();
+            })
+            .mapToLong(partition -> partition.reduceLong(0L, value -> 1L, Long::sum))
+            .sum();
+    assertEquals(next[0], 1 << 10);
+    assertEquals(count, 2L);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.RoaringBitmap;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ProjectionTest {
+
+  @Test
+  public void exportShouldGatherEveryRowFromEveryContainerType() {
+    int rowCount = 1 << 19;
+    DoubleArrayPageWriter writer1 = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer2 = new DoubleArrayPageWriter(Involutions::reverse);
+    for (int i = 0; i < rowCount; ++i) {
+      writer1.add(i, 2D * i);
+      // the second metric is missing for the last key
+      if (i < rowCount - (1 << 16)) {
+        writer2.add(i, -i);
+      }
+    }
+    // sparse rows for array containers, dense rows for bitmap containers and ranges for run containers
+    RoaringBitmap rows = new RoaringBitmap();
+    for (int i = 0; i < 1 << 16; i += 97) {
+      rows.add(i);
+    }
+    for (int i = 1 << 16; i < 1 << 17; ++i) {
+      if (i % 3 != 0) {
+        rows.add(i);
+      }
+    }
+    rows.add(3L << 16, 5L << 16);
+    rows.add((6L << 16) + 1000, (8L << 16) - 7);
+    rows.runOptimize();
+    SplitMap filter = SplitMap.fromRoaring(rows, Involutions::reverse);
+
+    Projection projection = new Projection(1000, writer1.toIndex(), writer2.toIndex());
+    AtomicInteger count = new AtomicInteger();
+    ConcurrentLinkedQueue<Integer> sizes = new ConcurrentLinkedQueue<>();
+    RoaringBitmap exported = new RoaringBitmap();
+    projection.export(filter, batch -> {
+      sizes.add(batch.getSize());
+      for (int i = 0; i < batch.getSize(); ++i) {
+        int row = batch.getRows()[i];
+        assertEquals(batch.getColumn(0)[i], 2D * row);
+        assertEquals(batch.getColumn(1)[i], row < rowCount - (1 << 16) ? -row : 0D);
+        synchronized (exported) {
+          exported.add(row);
+        }
+      }
+      count.addAndGet(batch.getSize());
+    });
+    assertEquals(count.get(), rows.getCardinality());
+    assertEquals(exported, rows);
+    assertTrue(sizes.stream().allMatch(size -> size > 0 && size <= 1000));
+  }
+}
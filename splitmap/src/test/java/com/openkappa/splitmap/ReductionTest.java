@@ -1,15 +1,42 @@
 package com.openkappa.splitmap;
 
+import com.openkappa.splitmap.models.Approximate;
+import com.openkappa.splitmap.models.ArgMax;
+import com.openkappa.splitmap.models.ArgMin;
 import com.openkappa.splitmap.models.Average;
+import com.openkappa.splitmap.models.Bins;
+import com.openkappa.splitmap.models.DistinctCount;
+import com.openkappa.splitmap.models.Expression;
+import com.openkappa.splitmap.models.Extremum;
+import com.openkappa.splitmap.models.Frequencies;
+import com.openkappa.splitmap.models.GroupBy;
+import com.openkappa.splitmap.models.Histogram;
+import com.openkappa.splitmap.models.Max;
+import com.openkappa.splitmap.models.Min;
+import com.openkappa.splitmap.models.MultiAggregate;
+import com.openkappa.splitmap.models.QuantileSketch;
+import com.openkappa.splitmap.models.Quantiles;
+import com.openkappa.splitmap.models.Rollup;
 import com.openkappa.splitmap.models.SimpleLinearRegression;
+import com.openkappa.splitmap.models.Sum;
+import com.openkappa.splitmap.models.VerticalSum;
 import com.openkappa.splitmap.models.SumProduct;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.RunContainer;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.IntStream;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class ReductionTest {
 
@@ -201,9 +228,829 @@ public class ReductionTest {
     assertEquals(sp, spExpected, 1E-5);
   }
 
+  @Test
+  public void groupBy() {
+    int groupCount = 5;
+    double[] values1 = IntStream.range(0, 200000)
+            .mapToDouble(i -> ThreadLocalRandom.current().nextDouble())
+            .toArray();
+    double[] values2 = IntStream.range(0, 200000)
+            .mapToDouble(i -> ThreadLocalRandom.current().nextDouble())
+            .toArray();
+    double[] sums = new double[groupCount];
+    double[] sumProducts = new double[groupCount];
+    double[] counts = new double[groupCount];
+
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    SplitMapPageWriter[] groupWriters = IntStream.range(0, groupCount)
+            .mapToObj(i -> new SplitMapPageWriter(Involutions::reverse))
+            .toArray(SplitMapPageWriter[]::new);
+    DoubleArrayPageWriter writer1 = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer2 = new DoubleArrayPageWriter(Involutions::reverse);
+    for (int i = 0; i < values1.length; ++i) {
+      // group 0 is sparse, group 1 is missing from most keys and the rest are dense
+      int group = i % 97 == 0 ? 0
+              : i >= 100_000 && i < 130_000 ? 1
+              : 2 + ThreadLocalRandom.current().nextInt(groupCount - 2);
+      groupWriters[group].add(i);
+      writer1.add(i, values1[i]);
+      writer2.add(i, values2[i]);
+      if (i % 3 != 0) {
+        filterWriter.add(i);
+        sums[group] += values1[i];
+        sumProducts[group] += values1[i] * values2[i];
+        counts[group] += 1;
+      }
+    }
+
+    PrefixIndex<ChunkedDoubleArray> pi1 = writer1.toIndex();
+    PrefixIndex<ChunkedDoubleArray> pi2 = writer2.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+    SplitMap[] groups = Arrays.stream(groupWriters).map(SplitMapPageWriter::toSplitMap).toArray(SplitMap[]::new);
+
+    double[] sum = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(GroupBy.<InputModel>sum(pi1, groups)))
+            .collect(GroupBy.collector(GroupBy.SUM, groupCount));
+    double[] avg = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(GroupBy.<InputModel>sum(pi1, groups)))
+            .collect(GroupBy.collector(GroupBy.AVERAGE, groupCount));
+    double[] sp = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(GroupBy.<InputModel>sumProduct(pi1, pi2, groups)))
+            .collect(GroupBy.collector(GroupBy.SUM_PRODUCT, groupCount));
+
+    for (int g = 0; g < groupCount; ++g) {
+      assertEquals(sum[g], sums[g], 1E-5);
+      assertEquals(avg[g], sums[g] / counts[g], 1E-5);
+      assertEquals(sp[g], sumProducts[g], 1E-5);
+    }
+  }
+
+  @Test
+  public void multiAggregate() {
+    double[] values1 = IntStream.range(0, 200000)
+            .mapToDouble(i -> ThreadLocalRandom.current().nextDouble())
+            .toArray();
+    double[] values2 = IntStream.range(0, 200000)
+            .mapToDouble(i -> -ThreadLocalRandom.current().nextDouble())
+            .toArray();
+    double[] statistics = new double[6];
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer1 = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer2 = new DoubleArrayPageWriter(Involutions::reverse);
+    for (int i = 0; i < values1.length; ++i) {
+      writer1.add(i, values1[i]);
+      writer2.add(i, values2[i]);
+      if (i % 7 < 4) {
+        filterWriter.add(i);
+        statistics[0] += values1[i];
+        statistics[1] += values2[i];
+        statistics[2] += values1[i] * values1[i];
+        statistics[3] += values2[i] * values2[i];
+        statistics[4] += values1[i] * values2[i];
+        statistics[5] += 1;
+      }
+    }
+    double sx = statistics[0];
+    double sy = statistics[1];
+    double sxx = statistics[2];
+    double syy = statistics[3];
+    double sxy = statistics[4];
+    double n = statistics[5];
+    double pmccExpected = (n * sxy - sx * sy) / (Math.sqrt((n * syy - sy * sy) * (n * sxx - sx * sx)));
+
+    PrefixIndex<ChunkedDoubleArray> pi1 = writer1.toIndex();
+    PrefixIndex<ChunkedDoubleArray> pi2 = writer2.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+
+    MultiAggregate<String> aggregates = MultiAggregate.<String>builder()
+            .withSum("sum", pi1)
+            .withAverage("avg", pi2)
+            .withSumProduct("sp", pi1, pi2)
+            .withPMCC("pmcc", pi1, pi2)
+            .build();
+    Map<String, Double> result = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(aggregates.<InputModel>reducer()))
+            .collect(aggregates.collector());
+
+    assertEquals(result.get("sum"), sx, 1E-5);
+    assertEquals(result.get("avg"), sy / n, 1E-5);
+    assertEquals(result.get("sp"), sxy, 1E-5);
+    assertEquals(result.get("pmcc"), pmccExpected, 1E-5);
+  }
+
+  @Test
+  public void approximateSum() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    double expected = 0D;
+    for (int k = 0; k < 1000; ++k) {
+      for (int i = 0; i < 200; ++i) {
+        double value = ThreadLocalRandom.current().nextDouble();
+        writer.add(k << 16 | i, value);
+        if (i % 2 == 0) {
+          filterWriter.add(k << 16 | i);
+          expected += value;
+        }
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    QueryContext<Integer, InputModel> context = new QueryContext<>(Map.of(0, filterWriter.toSplitMap()), null);
+
+    SampledSplitMap exact = Circuits.evaluateSample(context, KeySample.of(1D, 0L), slice -> slice.get(0), 0);
+    Approximate.Estimate total = exact.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Approximate.reducer(Sum.<InputModel>reducer(pi))))
+            .collect(Approximate.estimate(exact, 1.96));
+    assertEquals(total.getValue(), expected, 1E-5);
+    assertEquals(total.getStandardError(), 0D);
+
+    SampledSplitMap sample = Circuits.evaluateSample(context, KeySample.of(0.2, 42L), slice -> slice.get(0), 0);
+    assertEquals(sample.getPopulationSize(), 1000);
+    assertTrue(sample.getSampleSize() < 1000);
+    Approximate.Estimate estimate = sample.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Approximate.reducer(Sum.<InputModel>reducer(pi))))
+            .collect(Approximate.estimate(sample, 5));
+    assertTrue(estimate.getLowerBound() <= expected && expected <= estimate.getUpperBound(), estimate + " vs " + expected);
+    Approximate.Estimate count = sample.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Approximate.<InputModel>count()))
+            .collect(Approximate.estimate(sample, 1.96));
+    assertEquals(count.getValue(), 100000D, 1E-5);
+  }
+
+  @Test
+  public void quantiles() {
+    double[] values = IntStream.range(0, 500000)
+            .mapToDouble(i -> ThreadLocalRandom.current().nextGaussian())
+            .toArray();
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    for (int i = 0; i < values.length; ++i) {
+      writer.add(i, values[i]);
+      if (i % 3 != 0) {
+        filterWriter.add(i);
+      }
+    }
+    double[] selected = IntStream.range(0, values.length).filter(i -> i % 3 != 0).mapToDouble(i -> values[i]).sorted().toArray();
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+
+    QuantileSketch sketch = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Quantiles.<InputModel>reducer(pi)))
+            .collect(Quantiles.collector());
+
+    assertEquals(sketch.getCount(), selected.length);
+    assertEquals(sketch.quantile(0), selected[0]);
+    assertEquals(sketch.quantile(1), selected[selected.length - 1]);
+    for (double q : new double[]{0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99}) {
+      double estimate = sketch.quantile(q);
+      int rank = Arrays.binarySearch(selected, estimate);
+      assertTrue(Math.abs((double) rank / selected.length - q) < 0.02, q + " -> " + rank);
+      assertEquals(sketch.rank(estimate), q, 0.02);
+    }
+  }
+
+  @Test
+  public void distinctCount() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    Set<Double> distinct = new HashSet<>();
+    for (int i = 0; i < 500000; ++i) {
+      double counterparty = ThreadLocalRandom.current().nextInt(50000);
+      writer.add(i, counterparty);
+      if (i % 5 == 0) {
+        filterWriter.add(i);
+        distinct.add(counterparty);
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+
+    long estimate = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(DistinctCount.<InputModel>reducer(pi)))
+            .collect(DistinctCount.collector());
+
+    assertEquals(estimate, distinct.size(), distinct.size() * 0.05);
+  }
+
+  @Test
+  public void sparseKeysShouldVisitEachSelectedRow() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer1 = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer2 = new DoubleArrayPageWriter(Involutions::reverse);
+    double[] statistics = new double[6];
+    Set<Double> distinct = new HashSet<>();
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < 200000; ++i) {
+      // integral values keep the sums exact regardless of the order of accumulation
+      double x = ThreadLocalRandom.current().nextInt(1000);
+      double y = ThreadLocalRandom.current().nextInt(1000) - 500;
+      writer1.add(i, x);
+      writer2.add(i, y);
+      // fewer rows per key than the sparse threshold
+      if (i % 41 == 0) {
+        filterWriter.add(i);
+        statistics[0] += x;
+        statistics[1] += y;
+        statistics[2] += x * x;
+        statistics[3] += y * y;
+        statistics[4] += x * y;
+        statistics[5] += 1;
+        distinct.add(x);
+        min = Math.min(min, x);
+        max = Math.max(max, x);
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> pi1 = writer1.toIndex();
+    PrefixIndex<ChunkedDoubleArray> pi2 = writer2.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+    filter.stream().forEach(partition -> partition.forEach((key, mask) ->
+            assertTrue(mask.getCardinality() < MaskUtils.SPARSE_THRESHOLD)));
+    double sx = statistics[0];
+    double sy = statistics[1];
+    double sxx = statistics[2];
+    double syy = statistics[3];
+    double sxy = statistics[4];
+    double n = statistics[5];
+    double pmccExpected = (n * sxy - sx * sy) / (Math.sqrt((n * syy - sy * sy) * (n * sxx - sx * sx)));
+
+    double average = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Average.<InputModel>reducer(pi1)))
+            .collect(Average.collector());
+    assertEquals(average, sx / n, 1E-9);
+    double pmcc = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(SimpleLinearRegression.<InputModel>reducer(pi1, pi2)))
+            .collect(SimpleLinearRegression.pmcc());
+    assertEquals(pmcc, pmccExpected, 1E-9);
+    MultiAggregate<String> aggregates = MultiAggregate.<String>builder()
+            .withSum("sum", pi1)
+            .withAverage("avg", pi2)
+            .withSumProduct("sp", pi1, pi2)
+            .build();
+    Map<String, Double> result = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(aggregates.<InputModel>reducer()))
+            .collect(aggregates.collector());
+    assertEquals(result.get("sum"), sx);
+    assertEquals(result.get("avg"), sy / n, 1E-9);
+    assertEquals(result.get("sp"), sxy);
+    QuantileSketch sketch = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Quantiles.<InputModel>reducer(pi1)))
+            .collect(Quantiles.collector());
+    assertEquals(sketch.getCount(), (long) n);
+    assertEquals(sketch.quantile(0), min);
+    assertEquals(sketch.quantile(1), max);
+    long estimate = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(DistinctCount.<InputModel>reducer(pi1)))
+            .collect(DistinctCount.collector());
+    assertEquals(estimate, distinct.size(), distinct.size() * 0.05);
+  }
+
+  @Test
+  public void fullPagesShouldUsePageStatistics() {
+    double[] values1 = IntStream.range(0, 1 << 16)
+            .mapToDouble(i -> ThreadLocalRandom.current().nextDouble())
+            .toArray();
+    double[] values2 = IntStream.range(0, 1 << 16)
+            .mapToDouble(i -> -ThreadLocalRandom.current().nextDouble())
+            .toArray();
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer1 = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer2 = new DoubleArrayPageWriter(Involutions::reverse);
+    double[] statistics = new double[6];
+    for (int i = 0; i < values1.length; ++i) {
+      writer1.add(i, values1[i]);
+      writer2.add(i, values2[i]);
+      // whole pages selected, a sparse page and then nothing
+      if (i < 5 * 1024 || (i < 6 * 1024 && i % 2 == 0)) {
+        filterWriter.add(i);
+        statistics[0] += values1[i];
+        statistics[1] += values2[i];
+        statistics[2] += values1[i] * values1[i];
+        statistics[3] += values2[i] * values2[i];
+        statistics[4] += values1[i] * values2[i];
+        statistics[5] += 1;
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> pi1 = writer1.toIndex();
+    PrefixIndex<ChunkedDoubleArray> pi2 = writer2.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+
+    double sum = filter.stream()
+            .parallel()
+            .mapToDouble(partition -> partition.reduceDouble(Sum.<InputModel>reducer(pi1)))
+            .sum();
+    double verticalSum = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(VerticalSum.<InputModel>reducer(pi1)))
+            .collect(VerticalSum.horizontalSum());
+    double[] factors = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(SimpleLinearRegression.<InputModel>reducer(pi1, pi2)).getReducedValue())
+            .reduce(Reduction::sum)
+            .orElseGet(() -> new double[6]);
+
+    assertEquals(sum, statistics[0], 1E-5);
+    assertEquals(verticalSum, statistics[0], 1E-5);
+    for (int i = 0; i < factors.length; ++i) {
+      assertEquals(factors[i], statistics[i], 1E-5);
+    }
+  }
+
+  @Test
+  public void partialPagesShouldIncludeEveryRow() {
+    // rows either side of each page boundary, sparse enough for an array container or dense
+    // enough for a bitmap container but without any full pages
+    for (int modulus : new int[]{37, 3}) {
+      double[] values1 = IntStream.range(0, 1 << 16)
+              .mapToDouble(i -> ThreadLocalRandom.current().nextInt(100))
+              .toArray();
+      double[] values2 = IntStream.range(0, 1 << 16)
+              .mapToDouble(i -> ThreadLocalRandom.current().nextInt(100))
+              .toArray();
+      SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+      DoubleArrayPageWriter writer1 = new DoubleArrayPageWriter(Involutions::reverse);
+      DoubleArrayPageWriter writer2 = new DoubleArrayPageWriter(Involutions::reverse);
+      double[] statistics = new double[6];
+      for (int i = 0; i < values1.length; ++i) {
+        writer1.add(i, values1[i]);
+        writer2.add(i, values2[i]);
+        boolean selected = modulus == 3 ? i % 3 != 0 : i % modulus == 0;
+        if (selected || (i & 1023) == 1023 || (i & 1023) == 0) {
+          filterWriter.add(i);
+          statistics[0] += values1[i];
+          statistics[1] += values2[i];
+          statistics[2] += values1[i] * values1[i];
+          statistics[3] += values2[i] * values2[i];
+          statistics[4] += values1[i] * values2[i];
+          statistics[5] += 1;
+        }
+      }
+      PrefixIndex<ChunkedDoubleArray> pi1 = writer1.toIndex();
+      PrefixIndex<ChunkedDoubleArray> pi2 = writer2.toIndex();
+      SplitMap filter = filterWriter.toSplitMap();
+
+      double sum = filter.stream()
+              .parallel()
+              .mapToDouble(partition -> partition.reduceDouble(Sum.<InputModel>reducer(pi1)))
+              .sum();
+      double verticalSum = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(VerticalSum.<InputModel>reducer(pi1)))
+              .collect(VerticalSum.horizontalSum());
+      double average = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(Average.<InputModel>reducer(pi1)))
+              .collect(Average.collector());
+      double sumProduct = filter.stream()
+              .parallel()
+              .mapToDouble(partition -> partition.reduceDouble(SumProduct.<InputModel>reducer(pi1, pi2)))
+              .sum();
+      double[] factors = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(SimpleLinearRegression.<InputModel>reducer(pi1, pi2)).getReducedValue())
+              .reduce(Reduction::sum)
+              .orElseGet(() -> new double[6]);
+
+      assertEquals(sum, statistics[0]);
+      assertEquals(verticalSum, statistics[0]);
+      assertEquals(average, statistics[0] / statistics[5], 1E-9);
+      assertEquals(sumProduct, statistics[4]);
+      assertEquals(factors, statistics);
+    }
+  }
+
+  @Test
+  public void runsShouldBeSplitAtPageBoundaries() {
+    // pages 3 and 4 are missing, and the runs cover full pages, span the missing pages and end at the last row
+    int[][] runs = {{1000, 3100}, {3500, 5200}, {7000, 7001}, {64000, 1 << 16}};
+    DoubleArrayPageWriter writer1 = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer2 = new DoubleArrayPageWriter(Involutions::reverse);
+    double[] values1 = new double[1 << 16];
+    double[] values2 = new double[1 << 16];
+    for (int i = 0; i < values1.length; ++i) {
+      if ((i >>> 10) != 3 && (i >>> 10) != 4) {
+        values1[i] = ThreadLocalRandom.current().nextInt(100);
+        values2[i] = ThreadLocalRandom.current().nextInt(100);
+        writer1.add(i, values1[i]);
+        writer2.add(i, values2[i]);
+      }
+    }
+    Container mask = new RunContainer();
+    double[] statistics = new double[6];
+    for (int[] run : runs) {
+      mask = mask.iadd(run[0], run[1]);
+      for (int i = run[0]; i < run[1]; ++i) {
+        statistics[0] += values1[i];
+        statistics[1] += values2[i];
+        statistics[2] += values1[i] * values1[i];
+        statistics[3] += values2[i] * values2[i];
+        statistics[4] += values1[i] * values2[i];
+        statistics[5] += 1;
+      }
+    }
+    assertTrue(mask instanceof RunContainer);
+    SplitMap filter = new SplitMap(Involutions::reverse);
+    filter.insert((short) 0, mask);
+    PrefixIndex<ChunkedDoubleArray> pi1 = writer1.toIndex();
+    PrefixIndex<ChunkedDoubleArray> pi2 = writer2.toIndex();
+
+    double sum = filter.stream()
+            .mapToDouble(partition -> partition.reduceDouble(Sum.<InputModel>reducer(pi1)))
+            .sum();
+    double sumProduct = filter.stream()
+            .mapToDouble(partition -> partition.reduceDouble(SumProduct.<InputModel>reducer(pi1, pi2)))
+            .sum();
+    double[] factors = filter.stream()
+            .map(partition -> partition.reduce(SimpleLinearRegression.<InputModel>reducer(pi1, pi2)).getReducedValue())
+            .reduce(Reduction::sum)
+            .orElseGet(() -> new double[6]);
+
+    assertEquals(sum, statistics[0]);
+    assertEquals(sumProduct, statistics[4]);
+    assertEquals(factors, statistics);
+  }
+
+  @Test
+  public void verticalSumShouldAccumulatePerLane() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    double[] expected = new double[1 << 10];
+    for (int i = 0; i < 3 << 16; ++i) {
+      double value = ThreadLocalRandom.current().nextInt(1000);
+      writer.add(i, value);
+      // whole pages, and sparse pages across several keys
+      if ((i >= 5 << 10 && i < 7 << 10) || i % 3 == 0) {
+        filterWriter.add(i);
+        expected[i & 0x3FF] += value;
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> values = writer.toIndex();
+    double[] lanes = filterWriter.toSplitMap().stream()
+            .parallel()
+            .map(partition -> partition.reduce(VerticalSum.<InputModel>reducer(values)).getReducedValue())
+            .reduce(Reduction::sum)
+            .orElseGet(() -> new double[1 << 10]);
+    assertEquals(lanes, expected);
+  }
+
+  @Test
+  public void expression() {
+    double[] price = new double[1 << 16];
+    double[] qty = new double[1 << 16];
+    double[] fee = new double[1 << 16];
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter priceWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter qtyWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter feeWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    double expectedNet = 0D;
+    double notional = 0D;
+    double totalQty = 0D;
+    int count = 0;
+    for (int i = 0; i < price.length; ++i) {
+      price[i] = ThreadLocalRandom.current().nextInt(1, 100);
+      qty[i] = ThreadLocalRandom.current().nextInt(1, 1000);
+      priceWriter.add(i, price[i]);
+      qtyWriter.add(i, qty[i]);
+      // fees are only recorded for the first half of the rows
+      if (i < price.length / 2) {
+        fee[i] = ThreadLocalRandom.current().nextInt(10);
+        feeWriter.add(i, fee[i]);
+      }
+      if (i % 3 == 0 || (i > 10_000 && i < 20_000)) {
+        filterWriter.add(i);
+        expectedNet += price[i] * qty[i] - fee[i];
+        notional += price[i] * qty[i];
+        totalQty += qty[i];
+        ++count;
+      }
+    }
+    QueryContext<String, InputModel> context = new QueryContext<>(Map.of(),
+            Map.of(InputModel.X, priceWriter.toIndex(),
+                    InputModel.Y, qtyWriter.toIndex(),
+                    InputModel.FEE, feeWriter.toIndex()));
+    Map<String, InputModel> names = Map.of("price", InputModel.X, "qty", InputModel.Y, "fee", InputModel.FEE);
+    SplitMap filter = filterWriter.toSplitMap();
+
+    Expression net = Expression.compile("sum(price * qty - fee)", context, names::get);
+    Expression vwap = Expression.compile("sum(price*qty) / sum(qty)", context, names::get);
+    Expression mixed = Expression.compile("avg(qty) * count() + -sum(2 * (1 + 1)) / 4", context, names::get);
+
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(net.reducer())).collect(net.collector()), expectedNet);
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(vwap.reducer())).collect(vwap.collector()),
+            notional / totalQty, 1E-9);
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(mixed.reducer())).collect(mixed.collector()),
+            totalQty - count, 1E-6);
+
+    Expression scaled = Expression.compile("sum(1e-3 * qty) + sum(.5E+1) - 5 * count()", context, names::get);
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(scaled.reducer())).collect(scaled.collector()),
+            1e-3 * totalQty, 1E-6);
+    try {
+      Expression.compile("sum(2price)", context, names::get);
+      fail("sum(2price) should not compile");
+    } catch (IllegalArgumentException expected) {
+      assertEquals(expected.getMessage(), "Unexpected 'p' at position 5 in sum(2price)");
+    }
+
+    for (String malformed : new String[]{"price", "sum(price", "sum(sum(price))", "sum(volume)", "median(price)",
+            "sum(price) $", "sum(1e)", "sum(1.2.3)", "sum(1e+price)"}) {
+      try {
+        Expression.compile(malformed, context, names::get);
+        fail(malformed + " should not compile");
+      } catch (IllegalArgumentException expected) {
+        assertTrue(expected.getMessage().contains(malformed));
+      }
+    }
+  }
+
+  @Test
+  public void expressionShouldEvaluateSparseAndDensePages() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter priceWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter qtyWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    double expected = 0D;
+    for (int i = 0; i < 1 << 16; ++i) {
+      double price = ThreadLocalRandom.current().nextInt(1, 100);
+      // few rows of the first half are selected and most of the second half, and each unselected
+      // row divides by zero
+      boolean selected = i < 1 << 15 ? i % 11 == 0 : i % 4 != 0;
+      double qty = selected ? 1 << ThreadLocalRandom.current().nextInt(4) : 0;
+      priceWriter.add(i, price);
+      qtyWriter.add(i, qty);
+      if (selected) {
+        filterWriter.add(i);
+        expected += price / qty;
+      }
+    }
+    QueryContext<String, InputModel> context = new QueryContext<>(Map.of(),
+            Map.of(InputModel.X, priceWriter.toIndex(), InputModel.Y, qtyWriter.toIndex()));
+    Map<String, InputModel> names = Map.of("price", InputModel.X, "qty", InputModel.Y);
+    SplitMap filter = filterWriter.toSplitMap();
+
+    Expression ratio = Expression.compile("sum(price / qty)", context, names::get);
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(ratio.reducer())).collect(ratio.collector()), expected);
+  }
+
+  @Test
+  public void expressionShouldReadMissingMetricsAsZero() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter priceWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter qtyWriter = new DoubleArrayPageWriter(Involutions::reverse);
+    double totalPrice = 0D;
+    int count = 0;
+    for (int i = 0; i < 3 << 16; i += 7) {
+      filterWriter.add(i);
+      ++count;
+      // prices are only recorded for the first half of the first key, and qty never is
+      if (i < 1 << 15) {
+        double price = ThreadLocalRandom.current().nextInt(1, 100);
+        priceWriter.add(i, price);
+        totalPrice += price;
+      }
+    }
+    QueryContext<String, InputModel> context = new QueryContext<>(Map.of(),
+            Map.of(InputModel.X, priceWriter.toIndex(), InputModel.Y, qtyWriter.toIndex()));
+    Map<String, InputModel> names = Map.of("price", InputModel.X, "qty", InputModel.Y);
+    SplitMap filter = filterWriter.toSplitMap();
+
+    Expression complement = Expression.compile("sum(1 - price)", context, names::get);
+    Expression shifted = Expression.compile("sum(qty + price + 2)", context, names::get);
+    Expression product = Expression.compile("sum(price * qty)", context, names::get);
+
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(complement.reducer())).collect(complement.collector()),
+            count - totalPrice);
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(shifted.reducer())).collect(shifted.collector()),
+            totalPrice + 2 * count);
+    assertEquals(filter.stream().parallel().map(p -> p.reduce(product.reducer())).collect(product.collector()), 0D);
+  }
+
+  @Test
+  public void rollup() {
+    int rowCount = 200_000;
+    double[] values = new double[rowCount];
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    boolean[] selected = new boolean[rowCount];
+    for (int i = 0; i < rowCount; ++i) {
+      values[i] = ThreadLocalRandom.current().nextInt(100);
+      writer.add(i, values[i]);
+      if (i % 5 == 0 || (i > 70_000 && i < 90_000)) {
+        filterWriter.add(i);
+        selected[i] = true;
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+    // large buckets, buckets smaller than a page, and too few buckets to cover every row
+    for (int[] buckets : new int[][]{{10_000, 20}, {100, 2000}, {3000, 10}}) {
+      int bucketSize = buckets[0];
+      int bucketCount = buckets[1];
+      double[] expectedSums = new double[bucketCount];
+      double[] expectedCounts = new double[bucketCount];
+      for (int i = 0; i < rowCount && i / bucketSize < bucketCount; ++i) {
+        if (selected[i]) {
+          expectedSums[i / bucketSize] += values[i];
+          expectedCounts[i / bucketSize] += 1;
+        }
+      }
+      double[] sums = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(Rollup.<InputModel>sum(pi, bucketSize, bucketCount)))
+              .collect(Rollup.collector(Rollup.SUM, bucketCount));
+      double[] counts = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(Rollup.<InputModel>count(bucketSize, bucketCount)))
+              .collect(Rollup.collector(Rollup.COUNT, bucketCount));
+      double[] averages = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(Rollup.<InputModel>sum(pi, bucketSize, bucketCount)))
+              .collect(Rollup.collector(Rollup.AVERAGE, bucketCount));
+      assertEquals(sums, expectedSums);
+      assertEquals(counts, expectedCounts);
+      for (int b = 0; b < bucketCount; ++b) {
+        assertEquals(averages[b], expectedSums[b] / expectedCounts[b], 1E-9);
+      }
+    }
+  }
+
+  @Test
+  public void histogram() {
+    double[] values = new double[1 << 16];
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    List<Double> selected = new ArrayList<>();
+    for (int i = 0; i < values.length; ++i) {
+      // mostly in [0, 100], with some values on the upper edge and some outside
+      values[i] = i % 101 == 0 ? 100 : i % 103 == 0 ? -5 : i % 107 == 0 ? 150 : ThreadLocalRandom.current().nextInt(100);
+      writer.add(i, values[i]);
+      if (i % 3 != 0 || (i > 30_000 && i < 40_000)) {
+        filterWriter.add(i);
+        selected.add(values[i]);
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+
+    for (Bins bins : new Bins[]{Bins.uniform(0, 100, 10), Bins.of(0, 10, 50, 99.5, 100), Bins.adaptive(pi, 7)}) {
+      double[] edges = bins.getEdges();
+      long[] expectedCounts = new long[bins.getCount()];
+      double[] expectedSums = new double[bins.getCount()];
+      long underflow = 0;
+      long overflow = 0;
+      for (double value : selected) {
+        if (value < edges[0]) {
+          ++underflow;
+        } else if (value > edges[edges.length - 1]) {
+          ++overflow;
+        } else {
+          int bin = 0;
+          while (bin < bins.getCount() - 1 && value >= edges[bin + 1]) {
+            ++bin;
+          }
+          ++expectedCounts[bin];
+          expectedSums[bin] += value;
+        }
+      }
+      Frequencies counts = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(Histogram.<InputModel>reducer(pi, bins)))
+              .collect(Histogram.collector(bins));
+      Frequencies sums = filter.stream()
+              .parallel()
+              .map(partition -> partition.reduce(Histogram.<InputModel>reducer(pi, bins, true)))
+              .collect(Histogram.collector(bins, true));
+      assertEquals(counts.getCounts(), expectedCounts, bins.toString());
+      assertEquals(counts.getUnderflow(), underflow);
+      assertEquals(counts.getOverflow(), overflow);
+      assertEquals(counts.getTotalCount(), selected.size());
+      assertTrue(Double.isNaN(counts.getSum(0)));
+      assertEquals(sums.getCounts(), expectedCounts);
+      for (int bin = 0; bin < bins.getCount(); ++bin) {
+        assertEquals(sums.getSum(bin), expectedSums[bin], 1E-6);
+      }
+    }
+  }
+
+  @Test
+  public void histogramShouldCountNaNAsOverflow() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    int nans = 0;
+    for (int i = 0; i < 1 << 16; ++i) {
+      double value = i % 5 == 0 ? Double.NaN : i % 10;
+      nans += Double.isNaN(value) ? 1 : 0;
+      writer.add(i, value);
+      filterWriter.add(i);
+    }
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+    for (Bins bins : new Bins[]{Bins.uniform(0, 10, 5), Bins.of(0, 2, 4, 6, 8, 10), Bins.adaptive(pi, 5)}) {
+      Frequencies counts = filter.stream()
+              .map(partition -> partition.reduce(Histogram.<InputModel>reducer(pi, bins)))
+              .collect(Histogram.collector(bins));
+      assertEquals(counts.getUnderflow(), 0L, bins.toString());
+      assertEquals(counts.getOverflow(), nans, bins.toString());
+      assertEquals(Arrays.stream(counts.getCounts()).sum(), (1 << 16) - nans, bins.toString());
+      assertEquals(counts.getTotalCount(), 1 << 16);
+    }
+    // the NaN in every page is left out of the adaptive range
+    double[] edges = Bins.adaptive(pi, 5).getEdges();
+    assertEquals(edges[0], 1D);
+    assertEquals(edges[edges.length - 1], 9D);
+  }
+
+  @Test
+  public void extrema() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    int argMin = -1;
+    int argMax = -1;
+    for (int i = 0; i < 500000; ++i) {
+      double value = ThreadLocalRandom.current().nextGaussian();
+      writer.add(i, value);
+      if (i % 3 == 0) {
+        filterWriter.add(i);
+        if (value < min) {
+          min = value;
+          argMin = i;
+        }
+        if (value > max) {
+          max = value;
+          argMax = i;
+        }
+      }
+    }
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+
+    double minimum = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Min.<InputModel>reducer(pi)))
+            .collect(Min.collector());
+    double maximum = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(Max.<InputModel>reducer(pi)))
+            .collect(Max.collector());
+    Extremum argMinimum = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(ArgMin.<InputModel>reducer(pi)))
+            .collect(ArgMin.collector());
+    Extremum argMaximum = filter.stream()
+            .parallel()
+            .map(partition -> partition.reduce(ArgMax.<InputModel>reducer(pi)))
+            .collect(ArgMax.collector());
+
+    assertEquals(minimum, min);
+    assertEquals(maximum, max);
+    assertEquals(argMinimum.getValue(), min);
+    assertEquals(argMinimum.getRow(), argMin);
+    assertEquals(argMaximum.getValue(), max);
+    assertEquals(argMaximum.getRow(), argMax);
+  }
+
+
+  @Test
+  public void extremaShouldSkipNaN() {
+    SplitMapPageWriter filterWriter = new SplitMapPageWriter(Involutions::reverse);
+    DoubleArrayPageWriter writer = new DoubleArrayPageWriter(Involutions::reverse);
+    for (int i = 0; i < 1 << 16; ++i) {
+      // the first row is NaN, and the extremes are next to NaN in a later page
+      double value = i == 0 || i == 5000 || i == 5003 ? Double.NaN
+              : i == 5001 ? 100 : i == 5002 ? -100 : ThreadLocalRandom.current().nextDouble(-1, 1);
+      writer.add(i, value);
+      filterWriter.add(i);
+    }
+    PrefixIndex<ChunkedDoubleArray> pi = writer.toIndex();
+    SplitMap filter = filterWriter.toSplitMap();
+    Extremum argMinimum = filter.stream()
+            .map(partition -> partition.reduce(ArgMin.<InputModel>reducer(pi)))
+            .collect(ArgMin.collector());
+    Extremum argMaximum = filter.stream()
+            .map(partition -> partition.reduce(ArgMax.<InputModel>reducer(pi)))
+            .collect(ArgMax.collector());
+    assertEquals(argMinimum.getValue(), -100D);
+    assertEquals(argMinimum.getRow(), 5002);
+    assertEquals(argMaximum.getValue(), 100D);
+    assertEquals(argMaximum.getRow(), 5001);
+  }
+
 
   private enum InputModel {
-    X, Y
+    X, Y, FEE
   }
 
 }
@@ -1,7 +1,14 @@
 package com.openkappa.splitmap;
 
+import org.roaringbitmap.ArrayContainer;
+import org.roaringbitmap.Container;
+import org.roaringbitmap.ContainerPointer;
+import org.roaringbitmap.RoaringBitmap;
 import org.testng.annotations.Test;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
@@ -42,4 +49,138 @@ public class SplitMapTest {
     assertEquals(writer.toSplitMap().getCardinality(), 4);
   }
 
-}
\ No newline at end of file
+
+  @Test
+  public void batchIteratorShouldProduceOriginalRowsInOrder() {
+    int[] rows = IntStream.range(0, 1 << 22)
+            .filter(i -> i % 7 == 0 || (i > 200_000 && i < 300_000))
+            .toArray();
+    SplitMapPageWriter writer = new SplitMapPageWriter(Involutions::reverse);
+    for (int row : rows) {
+      writer.add(row);
+    }
+    SplitMap splitMap = writer.toSplitMap();
+
+    int[] buffer = new int[1000];
+    int[] iterated = new int[rows.length];
+    int count = 0;
+    RowBatchIterator it = splitMap.batchIterator();
+    while (it.hasNext()) {
+      int written = it.nextBatch(buffer);
+      System.arraycopy(buffer, 0, iterated, count, written);
+      count += written;
+    }
+    assertEquals(count, rows.length);
+    assertEquals(iterated, rows);
+
+    int[] partitioned = splitMap.streamBatchIterators()
+            .parallel()
+            .flatMapToInt(iterator -> {
+              IntStream.Builder builder = IntStream.builder();
+              int[] batch = new int[77];
+              int previous = -1;
+              while (iterator.hasNext()) {
+                int written = iterator.nextBatch(batch);
+                for (int i = 0; i < written; ++i) {
+                  assertTrue(batch[i] > previous);
+                  previous = batch[i];
+                  builder.add(batch[i]);
+                }
+              }
+              return builder.build();
+            })
+            .sorted()
+            .toArray();
+    assertEquals(partitioned, rows);
+  }
+
+  @Test
+  public void roaringBitmapsShouldConvertBothWays() {
+    RoaringBitmap bitmap = new RoaringBitmap();
+    bitmap.add(0L, 100_000L);
+    for (int i = 0; i < 1_000_000; ++i) {
+      bitmap.add(ThreadLocalRandom.current().nextInt(1 << 28) + (1 << 20));
+    }
+    bitmap.add(-1);
+    bitmap.runOptimize();
+    for (KeyInvolution involution : new KeyInvolution[]{Involutions::reverse, key -> key}) {
+      SplitMap splitMap = SplitMap.fromRoaring(bitmap, involution);
+      assertEquals(splitMap.getCardinality(), bitmap.getLongCardinality());
+      assertTrue(splitMap.contains(99_999));
+      assertTrue(splitMap.contains(-1));
+
+      int[] rows = new int[bitmap.getCardinality()];
+      int count = 0;
+      RowBatchIterator it = splitMap.batchIterator();
+      int[] buffer = new int[4096];
+      while (it.hasNext()) {
+        int written = it.nextBatch(buffer);
+        System.arraycopy(buffer, 0, rows, count, written);
+        count += written;
+      }
+      assertEquals(rows, bitmap.toArray());
+
+      RoaringBitmap roundTrip = splitMap.toRoaring();
+      assertEquals(roundTrip, bitmap);
+      // the containers are shared rather than copied
+      ContainerPointer pointer = bitmap.getContainerPointer();
+      pointer.advance();
+      assertTrue(splitMap.getContainer(involution.invert(pointer.key())) == pointer.getContainer());
+    }
+  }
+
+  @Test
+  public void statisticsShouldBeMaintainedByTheWriter() {
+    SplitMapPageWriter writer = new SplitMapPageWriter(Involutions::reverse);
+    // one row, a sparse key, a dense key and a full key
+    writer.add(7);
+    for (int i = 1 << 16; i < 2 << 16; i += 100) {
+      writer.add(i);
+    }
+    for (int i = 2 << 16; i < 3 << 16; i += 2) {
+      writer.add(i);
+    }
+    for (int i = 3 << 16; i < 4 << 16; ++i) {
+      writer.add(i);
+    }
+    SplitMap splitMap = writer.toSplitMap();
+    FilterStatistics statistics = splitMap.getStatistics();
+    long expectedCardinality = 1 + 656 + (1 << 15) + (1 << 16);
+    assertEquals(statistics.getCardinality(), expectedCardinality);
+    assertEquals(splitMap.getCardinality(), expectedCardinality);
+    assertEquals(statistics.getKeyCount(), 4);
+    assertEquals(statistics.getArrayContainerCount(), 2);
+    assertEquals(statistics.getBitmapContainerCount() + statistics.getRunContainerCount(), 2);
+    long[] histogram = new long[17];
+    histogram[0] = 1;
+    histogram[9] = 1;
+    histogram[15] = 1;
+    histogram[16] = 1;
+    assertEquals(statistics.getKeyCardinalityHistogram(), histogram);
+    assertEquals(statistics.getDensity(), expectedCardinality / (4D * (1 << 16)));
+
+    // statistics computed from the containers should agree with those maintained on insertion
+    FilterStatistics computed = SplitMap.fromRoaring(splitMap.toRoaring(), Involutions::reverse).getStatistics();
+    assertEquals(computed.getCardinality(), statistics.getCardinality());
+    assertEquals(computed.getKeyCardinalityHistogram(), statistics.getKeyCardinalityHistogram());
+
+    // replacing a container replaces its contribution
+    splitMap.insert(Involutions.reverse((short) 0), new ArrayContainer().add((short) 1).add((short) 2));
+    assertEquals(splitMap.getCardinality(), expectedCardinality + 1);
+    assertEquals(splitMap.getStatistics().getKeyCardinalityHistogram()[1], 1);
+  }
+
+  @Test
+  public void statisticsOfSharedIndicesShouldNotGoStale() {
+    PrefixIndex<Container> index = new PrefixIndex<>();
+    index.insert((short) 0, new ArrayContainer().add((short) 1));
+    SplitMap splitMap = new SplitMap(index);
+    assertEquals(splitMap.getCardinality(), 1);
+    assertEquals(splitMap.getStatistics().getKeyCount(), 1);
+    // the index is modified without going through the SplitMap
+    index.insert((short) 1, new ArrayContainer().add((short) 1).add((short) 2));
+    assertEquals(splitMap.getCardinality(), 3);
+    assertEquals(splitMap.getStatistics().getCardinality(), 3);
+    assertEquals(splitMap.getStatistics().getKeyCount(), 2);
+  }
+}
@@ -0,0 +1,100 @@
+package com.openkappa.splitmap;
+
+import org.roaringbitmap.Container;
+import org.roaringbitmap.RoaringBitmap;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertThrows;
+
+public class ThresholdTest {
+
+  private static final int FILTERS = 7;
+  private static final int ROWS = 1 << 20;
+
+  private QueryContext<Integer, ?> context;
+  private int[] counts;
+
+  @DataProvider
+  public Object[][] thresholds() {
+    return new Object[][]{
+            {1}, {2}, {3}, {4}, {7}, {8}
+    };
+  }
+
+  @BeforeClass
+  public void setup() {
+    Map<Integer, SplitMap> filters = new HashMap<>();
+    counts = new int[ROWS];
+    for (int f = 0; f < FILTERS; ++f) {
+      SplitMapPageWriter writer = new SplitMapPageWriter();
+      // a mix of sparse, dense and run containers
+      double density = new double[]{0.001, 0.3, 0.6}[f % 3];
+      for (int i = 0; i < ROWS; ++i) {
+        boolean selected = (i >>> 16) % 4 == f % 4
+                ? (i & 0xFFFF) < 40_000
+                : ThreadLocalRandom.current().nextDouble() < density;
+        if (selected) {
+          writer.add(i);
+          ++counts[i];
+        }
+      }
+      filters.put(f, writer.toSplitMap());
+    }
+    context = new QueryContext<>(filters, null);
+  }
+
+  @Test(dataProvider = "thresholds")
+  public void atLeast(int k) {
+    check(Threshold.atLeast(k), count -> count >= k);
+  }
+
+  @Test(dataProvider = "thresholds")
+  public void exactly(int k) {
+    check(Threshold.exactly(k), count -> count == k);
+  }
+
+  @Test(dataProvider = "thresholds")
+  public void atMost(int k) {
+    check(Threshold.atMost(k), count -> count >= 1 && count <= k);
+  }
+
+  @Test
+  public void parity() {
+    check(Threshold.symmetric(count -> (count & 1) == 1), count -> (count & 1) == 1);
+  }
+
+  @Test
+  public void symmetricShouldTestEachCountOncePerKey() {
+    AtomicInteger tests = new AtomicInteger();
+    check(Threshold.symmetric(count -> tests.incrementAndGet() > 0 && count >= 6), count -> count >= 6);
+    assertEquals(tests.get(), (ROWS >>> 16) * FILTERS);
+  }
+
+  @Test
+  public void thresholdMustBePositive() {
+    assertThrows(IllegalArgumentException.class, () -> Threshold.atLeast(0));
+  }
+
+  private void check(Function<Slice<Integer, Container>, Container> circuit,
+                     IntPredicate expected) {
+    RoaringBitmap bitmap = new RoaringBitmap();
+    for (int i = 0; i < ROWS; ++i) {
+      if (expected.test(counts[i])) {
+        bitmap.add(i);
+      }
+    }
+    SplitMap result = Circuits.evaluate(context, circuit, 0, 1, 2, 3, 4, 5, 6);
+    assertEquals(result.getCardinality(), bitmap.getLongCardinality());
+    assertEquals(result.toRoaring(), bitmap);
+  }
+}